@@ -0,0 +1,79 @@
+package de.metager.tileserver.benchmark;
+
+import java.io.File;
+import java.io.InputStream;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+import org.mapsforge.map.datastore.MultiMapDataStore.DataPolicy;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.StreamRenderTheme;
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+import de.metager.tileserver.MapsforgeHelper;
+
+/**
+ * @author SumaEV
+ * The map data and Rendertheme all benchmarks run with.
+ * By default the map data is generated (see SyntheticMapDataStore) and the Rendertheme is the small
+ * benchmark-theme.xml, so the benchmarks run without any download. For numbers that match production
+ * pass a directory with real Map Files and the real Rendertheme:
+ *
+ * gradle jmh -Dtileserver.benchmark.mapDir=/path/to/maps -Dtileserver.benchmark.theme=/path/to/metager.xml
+ *
+ * With real Map Files all Tiles are taken around the start position of the map.
+ */
+public class BenchmarkFixture {
+
+	public static final GraphicFactory GRAPHIC_FACTORY = AwtGraphicFactory.INSTANCE;
+
+	public final MultiMapDataStore mf;
+	public final DisplayModel displayModel;
+	public final RenderThemeFuture renderThemeFuture;
+
+	public BenchmarkFixture() throws Exception {
+		String mapDir = System.getProperty("tileserver.benchmark.mapDir");
+		if (mapDir != null) {
+			this.mf = MapsforgeHelper.getMultiMapDataStore(new File(mapDir));
+			if (this.mf == null) throw new IllegalArgumentException("There are no Map Files in " + mapDir);
+		} else {
+			this.mf = new MultiMapDataStore(DataPolicy.RETURN_ALL);
+			this.mf.addMapDataStore(new SyntheticMapDataStore(), true, true);
+		}
+
+		XmlRenderTheme theme;
+		String themeFile = System.getProperty("tileserver.benchmark.theme");
+		if (themeFile != null) {
+			theme = new ExternalRenderTheme(new File(themeFile));
+		} else {
+			InputStream stream = BenchmarkFixture.class.getResourceAsStream("/benchmark-theme.xml");
+			theme = new StreamRenderTheme("", stream);
+		}
+		this.displayModel = new DisplayModel();
+		this.displayModel.setFixedTileSize(256);
+		this.renderThemeFuture = new RenderThemeFuture(GRAPHIC_FACTORY, theme, this.displayModel);
+		new Thread(this.renderThemeFuture).start();
+		// Parsing the Rendertheme is not part of any benchmark
+		this.renderThemeFuture.get();
+	}
+
+	/**
+	 * The x and y of the Tile on the given zoom level that all benchmarks use
+	 */
+	public int[] tileAt(int zoom) {
+		LatLong position = this.mf.startPosition();
+		if (position == null) position = this.mf.boundingBox().getCenterPoint();
+		return new int[] { MercatorProjection.longitudeToTileX(position.longitude, (byte) zoom),
+				MercatorProjection.latitudeToTileY(position.latitude, (byte) zoom) };
+	}
+
+	public void close() {
+		this.renderThemeFuture.decrementRefCount();
+		this.mf.close();
+	}
+}
@@ -0,0 +1,87 @@
+package de.metager.tileserver.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.awt.graphics.AwtTileBitmap;
+import org.mapsforge.map.layer.cache.InMemoryTileCache;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.metager.tileserver.MetaTile;
+import de.metager.tileserver.PngEncoder;
+
+/**
+ * @author SumaEV
+ * PNG encoding of a rendered Tile on its own. A sparse low zoom Tile and a busy high zoom Tile
+ * compress very differently, so both are measured. The encoder "imageio" is the ImageIO encoder of mapsforge,
+ * the others are the PngEncoder with the deflate level, filter and quantization given as "level;filter;quantize".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncodeBenchmark {
+
+	@Param({ "8", "16" })
+	public int zoom;
+
+	@Param({ "imageio", "1;NONE;false", "1;NONE;true", "1;ADAPTIVE;false", "1;ADAPTIVE;true", "6;NONE;false", "6;NONE;true",
+			"6;ADAPTIVE;false", "6;ADAPTIVE;true" })
+	public String encoder;
+
+	private BenchmarkFixture fixture;
+	private AwtTileBitmap bitmap;
+	private ByteArrayOutputStream bos;
+	private BufferedImage image;
+	// Null for the ImageIO encoder
+	private PngEncoder pngEncoder;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.fixture = new BenchmarkFixture();
+		int[] tile = this.fixture.tileAt(this.zoom);
+		RendererJob job = new MetaTile(tile[0], tile[1], this.zoom, 1, this.fixture.mf, this.fixture.renderThemeFuture,
+				this.fixture.displayModel, BenchmarkFixture.GRAPHIC_FACTORY).getRendererJob();
+		DatabaseRenderer renderer = new DatabaseRenderer(this.fixture.mf, BenchmarkFixture.GRAPHIC_FACTORY,
+				new InMemoryTileCache(1), null, true, false, null);
+		this.bitmap = (AwtTileBitmap) renderer.executeJob(job);
+		this.bos = new ByteArrayOutputStream(64 * 1024);
+		this.image = AwtGraphicFactory.getBitmap(this.bitmap);
+		if (!"imageio".equals(this.encoder)) {
+			String[] settings = this.encoder.split(";");
+			this.pngEncoder = new PngEncoder(Integer.parseInt(settings[0]), PngEncoder.Filter.valueOf(settings[1]),
+					Boolean.parseBoolean(settings[2]));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.fixture.close();
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		if (this.pngEncoder != null) return this.pngEncoder.encode(this.image).length;
+		this.bos.reset();
+		this.bitmap.compress(this.bos);
+		return this.bos.size();
+	}
+}
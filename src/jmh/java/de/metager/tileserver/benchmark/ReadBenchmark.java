@@ -0,0 +1,73 @@
+package de.metager.tileserver.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.metager.tileserver.BlockMapDataStore;
+import de.metager.tileserver.MetaTile;
+
+/**
+ * @author SumaEV
+ * Reading map data from the MultiMapDataStore, for a single Tile and for the block of a whole MetaTile.
+ * Only meaningful with real Map Files (see BenchmarkFixture), the generated map data costs next to nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadBenchmark {
+
+	@Param({ "8", "12", "16" })
+	public int zoom;
+
+	@Param({ "4" })
+	public int metaTileSize;
+
+	private BenchmarkFixture fixture;
+	private Tile tile;
+	private Tile upperLeft;
+	private Tile lowerRight;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.fixture = new BenchmarkFixture();
+		int[] xy = this.fixture.tileAt(this.zoom);
+		this.tile = new Tile(xy[0], xy[1], (byte) this.zoom, 256);
+		int size = MetaTile.sizeForZoom(this.metaTileSize, this.zoom);
+		int minX = xy[0] - (xy[0] % size);
+		int minY = xy[1] - (xy[1] % size);
+		this.upperLeft = new Tile(minX, minY, (byte) this.zoom, 256);
+		this.lowerRight = new Tile(minX + size - 1, minY + size - 1, (byte) this.zoom, 256);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.fixture.close();
+	}
+
+	@Benchmark
+	public MapReadResult readTile() {
+		return this.fixture.mf.readMapData(this.tile);
+	}
+
+	@Benchmark
+	public MapReadResult readMetaTileBlock() {
+		return new BlockMapDataStore(this.fixture.mf, this.upperLeft, this.lowerRight).getBlock();
+	}
+}
@@ -0,0 +1,63 @@
+package de.metager.tileserver.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.metager.tileserver.MetaTile;
+
+/**
+ * @author SumaEV
+ * Reading, rendering and encoding a whole MetaTile, which is what a cache miss costs.
+ * With a metaTileSize of 4 one operation renders 16 Tiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+	@Param({ "8", "12", "16" })
+	public int zoom;
+
+	@Param({ "1", "4" })
+	public int metaTileSize;
+
+	private BenchmarkFixture fixture;
+	private int x;
+	private int y;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.fixture = new BenchmarkFixture();
+		int[] tile = this.fixture.tileAt(this.zoom);
+		this.x = tile[0];
+		this.y = tile[1];
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.fixture.close();
+	}
+
+	@Benchmark
+	public Map<RendererJob, byte[]> renderMetaTile() {
+		return new MetaTile(this.x, this.y, this.zoom, this.metaTileSize, this.fixture.mf, this.fixture.renderThemeFuture,
+				this.fixture.displayModel, BenchmarkFixture.GRAPHIC_FACTORY).render();
+	}
+}
@@ -0,0 +1,130 @@
+package de.metager.tileserver.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.metager.tileserver.PackedTileStore;
+import de.metager.tileserver.PackedTileWriter;
+import de.metager.tileserver.TileMemoryCache;
+
+/**
+ * @author SumaEV
+ * The paths a request takes that doesn't need rendering: a hit in the memory Cache and a Tile from the
+ * packed tileset, either read into memory or transferred to another channel without copying.
+ * The tileset holds a block of 64 x 64 Tiles on zoom 12 with PNG sized payloads, requests pick one at random.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServeBenchmark {
+
+	private static final int ZOOM = 12;
+	private static final int TILES = 64;
+	private static final int REQUESTS = 4096;
+
+	private File directory;
+	private PackedTileStore store;
+	private FileChannel sink;
+	private TileMemoryCache<RendererJob> memoryCache;
+	private BenchmarkFixture fixture;
+	private int[][] requests;
+	private RendererJob[] jobs;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.fixture = new BenchmarkFixture();
+		this.directory = Files.createTempDirectory("tileserver-benchmark").toFile();
+		File packFile = new File(this.directory, "tiles.pack");
+		Random random = new Random(42);
+		this.memoryCache = new TileMemoryCache<>(256L * 1024 * 1024);
+		try (PackedTileWriter writer = new PackedTileWriter(packFile, ZOOM)) {
+			for (int y = 0; y < TILES; y++) {
+				for (int x = 0; x < TILES; x++) {
+					byte[] png = new byte[8 * 1024 + random.nextInt(24 * 1024)];
+					random.nextBytes(png);
+					writer.put(ZOOM, x, y, png);
+					this.memoryCache.put(job(x, y), png);
+				}
+			}
+		}
+		this.store = PackedTileStore.open(packFile);
+		this.sink = FileChannel.open(new File(this.directory, "sink").toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		this.requests = new int[REQUESTS][];
+		this.jobs = new RendererJob[REQUESTS];
+		for (int i = 0; i < REQUESTS; i++) {
+			this.requests[i] = new int[] { random.nextInt(TILES), random.nextInt(TILES) };
+			this.jobs[i] = job(this.requests[i][0], this.requests[i][1]);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.store.close();
+		this.sink.close();
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+		this.fixture.close();
+	}
+
+	private RendererJob job(int x, int y) {
+		return new RendererJob(new Tile(x, y, (byte) ZOOM, 256), this.fixture.mf, this.fixture.renderThemeFuture,
+				this.fixture.displayModel, 1, false, false);
+	}
+
+	private int nextRequest() {
+		this.next = (this.next + 1) % REQUESTS;
+		return this.next;
+	}
+
+	@Benchmark
+	public byte[] memoryCacheHit() {
+		return this.memoryCache.get(this.jobs[nextRequest()]);
+	}
+
+	@Benchmark
+	public long packedIndexLookup() {
+		int[] request = this.requests[nextRequest()];
+		return this.store.getEntry(ZOOM, request[0], request[1]);
+	}
+
+	@Benchmark
+	public byte[] packedRead() throws IOException {
+		int[] request = this.requests[nextRequest()];
+		return this.store.get(ZOOM, request[0], request[1]);
+	}
+
+	@Benchmark
+	public long packedTransfer() throws IOException {
+		int[] request = this.requests[nextRequest()];
+		long entry = this.store.getEntry(ZOOM, request[0], request[1]);
+		this.sink.position(0);
+		return this.store.getChannel().transferTo(PackedTileStore.offset(entry), PackedTileStore.length(entry), this.sink);
+	}
+}
@@ -0,0 +1,129 @@
+package de.metager.tileserver.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+
+/**
+ * @author SumaEV
+ * Map data for the benchmarks when no real Map File is given. Every Tile gets the same amount of
+ * map data, whatever zoom level it is on: a street grid with names, a lake, a forest, a city label and
+ * on the high zoom levels buildings and restaurants. The data only depends on the Tile, so every run
+ * renders exactly the same.
+ */
+public class SyntheticMapDataStore extends MapDataStore {
+
+	private static final BoundingBox WORLD = new BoundingBox(-85.05, -180, 85.05, 180);
+	// Streets per Tile edge
+	private static final int STREETS = 8;
+	// Buildings per Tile edge from zoom 15 on
+	private static final int BUILDINGS = 8;
+
+	@Override
+	public BoundingBox boundingBox() {
+		return WORLD;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public long getDataTimestamp(Tile tile) {
+		return 0;
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile tile) {
+		MapReadResult result = readPoiData(tile);
+		BoundingBox box = tile.getBoundingBox();
+		double height = box.maxLatitude - box.minLatitude;
+		double width = box.maxLongitude - box.minLongitude;
+		// Ways reach a bit into the neighbouring Tiles like they do in real Map Files
+		double north = box.maxLatitude + height / 8;
+		double south = box.minLatitude - height / 8;
+		double west = box.minLongitude - width / 8;
+		double east = box.maxLongitude + width / 8;
+
+		result.ways.add(area(0, Arrays.asList(new Tag("landuse", "forest")), box.minLatitude + height * 0.6,
+				box.minLongitude + width * 0.05, box.minLatitude + height * 0.95, box.minLongitude + width * 0.4));
+		result.ways.add(area(0, Arrays.asList(new Tag("natural", "water")), box.minLatitude + height * 0.05,
+				box.minLongitude + width * 0.6, box.minLatitude + height * 0.35, box.minLongitude + width * 0.95));
+
+		for (int i = 0; i < STREETS; i++) {
+			String highway = i % 4 == 0 ? "primary" : "residential";
+			double latitude = box.minLatitude + height * (i + 0.5) / STREETS;
+			double longitude = box.minLongitude + width * (i + 0.5) / STREETS;
+			result.ways.add(new Way((byte) 1, Arrays.asList(new Tag("highway", highway), new Tag("name", "Street " + i)),
+					new LatLong[][] { { new LatLong(latitude, west), new LatLong(latitude, east) } }, null));
+			result.ways.add(new Way((byte) 1, Arrays.asList(new Tag("highway", highway), new Tag("name", "Avenue " + i)),
+					new LatLong[][] { { new LatLong(south, longitude), new LatLong(north, longitude) } }, null));
+		}
+
+		if (tile.zoomLevel >= 15) {
+			for (int y = 0; y < BUILDINGS; y++) {
+				for (int x = 0; x < BUILDINGS; x++) {
+					double minLatitude = box.minLatitude + height * (y + 0.55) / BUILDINGS;
+					double minLongitude = box.minLongitude + width * (x + 0.55) / BUILDINGS;
+					result.ways.add(area(2, Arrays.asList(new Tag("building", "yes")), minLatitude, minLongitude,
+							minLatitude + height * 0.3 / BUILDINGS, minLongitude + width * 0.3 / BUILDINGS));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public MapReadResult readPoiData(Tile tile) {
+		MapReadResult result = new MapReadResult();
+		BoundingBox box = tile.getBoundingBox();
+		LatLong center = box.getCenterPoint();
+		result.pointOfInterests.add(new PointOfInterest((byte) 0,
+				Arrays.asList(new Tag("place", "city"), new Tag("name", "City " + tile.tileX + "/" + tile.tileY)), center));
+		if (tile.zoomLevel >= 15) {
+			double height = box.maxLatitude - box.minLatitude;
+			double width = box.maxLongitude - box.minLongitude;
+			for (int i = 0; i < 4; i++) {
+				result.pointOfInterests.add(new PointOfInterest((byte) 0,
+						Arrays.asList(new Tag("amenity", "restaurant"), new Tag("name", "Restaurant " + i)),
+						new LatLong(box.minLatitude + height * (i + 1) / 5, box.minLongitude + width * (4 - i) / 5)));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public LatLong startPosition() {
+		return new LatLong(50.1109, 8.6821);
+	}
+
+	@Override
+	public Byte startZoomLevel() {
+		return 12;
+	}
+
+	@Override
+	public boolean supportsTile(Tile tile) {
+		return true;
+	}
+
+	private static Way area(int layer, List<Tag> tags, double minLatitude, double minLongitude, double maxLatitude,
+			double maxLongitude) {
+		List<LatLong> ring = new ArrayList<>();
+		ring.add(new LatLong(minLatitude, minLongitude));
+		ring.add(new LatLong(minLatitude, maxLongitude));
+		ring.add(new LatLong(maxLatitude, maxLongitude));
+		ring.add(new LatLong(maxLatitude, minLongitude));
+		ring.add(new LatLong(minLatitude, minLongitude));
+		return new Way((byte) layer, tags, new LatLong[][] { ring.toArray(new LatLong[ring.size()]) }, null);
+	}
+}
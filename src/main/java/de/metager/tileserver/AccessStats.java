@@ -0,0 +1,181 @@
+package de.metager.tileserver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author SumaEV
+ * Counts how often the MetaTiles that aren't prerendered get asked for and how long they take to render.
+ * One small entry per MetaTile, at most maxEntries of them: once that many are known, new MetaTiles are
+ * ignored until the next decay. Every decay halves the counts so old traffic fades out and MetaTiles
+ * that nobody asks for anymore are forgotten. The statistics are saved next to the Caches
+ * and survive a restart. The file has one MetaTile per line:
+ *
+ * z;x;y;requests;render microseconds
+ *
+ * x and y are the upper left Tile of the MetaTile, a render time of 0 means it wasn't rendered yet.
+ */
+public class AccessStats implements Runnable {
+
+	private static final long SAVE_INTERVAL = 10 * 60 * 1000;
+	private static final long DECAY_INTERVAL = 24 * 60 * 60 * 1000;
+
+	private static final class Entry {
+		final AtomicInteger requests = new AtomicInteger();
+		// Moving average, races between render Threads only lose a sample
+		volatile int renderMicros;
+	}
+
+	private final File file;
+	private final int metaTileSize;
+	private final int maxEntries;
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+	public AccessStats(File file, int metaTileSize, int maxEntries) {
+		this.file = file;
+		this.metaTileSize = metaTileSize;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Counts a request for the Tile x, y, z
+	 */
+	public void request(int z, int x, int y) {
+		Entry entry = entry(z, x, y);
+		if (entry != null) entry.requests.incrementAndGet();
+	}
+
+	/**
+	 * Records how long the MetaTile containing the Tile x, y, z took to render
+	 */
+	public void rendered(int z, int x, int y, long nanos) {
+		Entry entry = entry(z, x, y);
+		if (entry == null) return;
+		int micros = (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+		int previous = entry.renderMicros;
+		entry.renderMicros = previous == 0 ? micros : (previous * 3 + micros) / 4;
+	}
+
+	private Entry entry(int z, int x, int y) {
+		int size = MetaTile.sizeForZoom(this.metaTileSize, z);
+		long key = TileKey.of(z, x / size * size, y / size * size);
+		Entry entry = this.entries.get(key);
+		if (entry != null || this.entries.size() >= this.maxEntries) return entry;
+		return this.entries.computeIfAbsent(key, k -> new Entry());
+	}
+
+
+	/**
+	 * Returns the upper left Tiles {z, x, y} of the MetaTiles that were asked for at least minRequests times,
+	 * the one that saves the most render time first (requests x render time). MetaTiles that weren't rendered
+	 * yet are assumed to take as long as the average one on their zoom level.
+	 */
+	public List<int[]> ranked(int minRequests) {
+		long[] totalMicros = new long[32];
+		long[] rendered = new long[32];
+		for (Map.Entry<Long, Entry> entry : this.entries.entrySet()) {
+			int micros = entry.getValue().renderMicros;
+			if (micros == 0) continue;
+			int z = TileKey.zoom(entry.getKey());
+			totalMicros[z] += micros;
+			rendered[z]++;
+		}
+		List<long[]> candidates = new ArrayList<>();
+		for (Map.Entry<Long, Entry> entry : this.entries.entrySet()) {
+			int requests = entry.getValue().requests.get();
+			if (requests < minRequests) continue;
+			int z = TileKey.zoom(entry.getKey());
+			long micros = entry.getValue().renderMicros;
+			if (micros == 0) micros = rendered[z] == 0 ? 1 : totalMicros[z] / rendered[z];
+			candidates.add(new long[] { entry.getKey(), requests * micros });
+		}
+		candidates.sort((a, b) -> Long.compare(b[1], a[1]));
+		List<int[]> ranked = new ArrayList<>(candidates.size());
+		for (long[] candidate : candidates) {
+			long key = candidate[0];
+			ranked.add(new int[] { TileKey.zoom(key), TileKey.x(key), TileKey.y(key) });
+		}
+		return ranked;
+	}
+
+	public int getCount() {
+		return this.entries.size();
+	}
+
+	@Override
+	public void run() {
+		long lastDecay = System.currentTimeMillis();
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(SAVE_INTERVAL);
+				if (System.currentTimeMillis() - lastDecay > DECAY_INTERVAL) {
+					lastDecay = System.currentTimeMillis();
+					decay();
+				}
+				save();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	void decay() {
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.requests.updateAndGet(requests -> requests / 2) == 0) it.remove();
+		}
+	}
+
+	/**
+	 * Reads the statistics of the last run if there are any
+	 */
+	public void load() {
+		if (!this.file.exists()) return;
+		try (BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null && this.entries.size() < this.maxEntries) {
+				String[] fields = line.split(";");
+				if (fields.length != 5) continue;
+				Entry entry = new Entry();
+				entry.requests.set(Integer.parseInt(fields[3]));
+				entry.renderMicros = Integer.parseInt(fields[4]);
+				this.entries.put(TileKey.of(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2])), entry);
+			}
+			System.out.println("[" + Instant.now() + "] Loaded access statistics of " + this.entries.size() + " MetaTiles");
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void save() {
+		File tmp = new File(this.file.getPath() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			for (Map.Entry<Long, Entry> entry : this.entries.entrySet()) {
+				long key = entry.getKey();
+				writer.write(TileKey.zoom(key) + ";" + TileKey.x(key) + ";" + TileKey.y(key) + ";"
+						+ entry.getValue().requests.get() + ";" + entry.getValue().renderMicros + "\n");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
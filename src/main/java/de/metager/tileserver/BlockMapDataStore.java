@@ -0,0 +1,129 @@
+package de.metager.tileserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PoiWayBundle;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+
+/**
+ * @author SumaEV
+ * A MapDataStore that reads the map data of a whole block of Tiles (e.g. a MetaTile) at once.
+ * Every Tile of the block is then served from that single read, only with the Ways and
+ * POIs that are close enough to the Tile to be drawn on it.
+ */
+public class BlockMapDataStore extends MapDataStore {
+
+	private final MapDataStore mapDataStore;
+	private final MapReadResult block;
+	// Bounding Box of every Way in the block as {minLat, minLon, maxLat, maxLon}
+	private final double[][] wayBounds;
+
+	public BlockMapDataStore(MapDataStore mapDataStore, Tile upperLeft, Tile lowerRight) {
+		this.mapDataStore = mapDataStore;
+		this.block = mapDataStore.readMapData(upperLeft, lowerRight);
+		if (this.block == null) {
+			this.wayBounds = null;
+			return;
+		}
+		this.wayBounds = new double[this.block.ways.size()][];
+		for (int i = 0; i < this.wayBounds.length; i++) {
+			double[] bounds = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+			for (LatLong[] segment : this.block.ways.get(i).latLongs) {
+				for (LatLong latLong : segment) {
+					bounds[0] = Math.min(bounds[0], latLong.latitude);
+					bounds[1] = Math.min(bounds[1], latLong.longitude);
+					bounds[2] = Math.max(bounds[2], latLong.latitude);
+					bounds[3] = Math.max(bounds[3], latLong.longitude);
+				}
+			}
+			this.wayBounds[i] = bounds;
+		}
+	}
+
+	/**
+	 * The map data of the whole block, null if it couldn't be read
+	 */
+	public MapReadResult getBlock() {
+		return this.block;
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile tile) {
+		if (this.block == null) {
+			return this.mapDataStore.readMapData(tile);
+		}
+		// Everything that is less than a quarter Tile away might still reach into it
+		BoundingBox bbox = tile.getBoundingBox();
+		double marginLat = bbox.getLatitudeSpan() / 4;
+		double marginLon = bbox.getLongitudeSpan() / 4;
+		double minLat = bbox.minLatitude - marginLat;
+		double minLon = bbox.minLongitude - marginLon;
+		double maxLat = bbox.maxLatitude + marginLat;
+		double maxLon = bbox.maxLongitude + marginLon;
+
+		List<Way> ways = new ArrayList<>();
+		for (int i = 0; i < this.wayBounds.length; i++) {
+			double[] bounds = this.wayBounds[i];
+			if (bounds[0] <= maxLat && bounds[2] >= minLat && bounds[1] <= maxLon && bounds[3] >= minLon) {
+				ways.add(this.block.ways.get(i));
+			}
+		}
+		if (ways.isEmpty()) {
+			// Only the real read knows whether an empty Tile lies completely in the sea
+			return this.mapDataStore.readMapData(tile);
+		}
+		List<PointOfInterest> pois = new ArrayList<>();
+		for (PointOfInterest poi : this.block.pointOfInterests) {
+			LatLong position = poi.position;
+			if (position.latitude <= maxLat && position.latitude >= minLat && position.longitude <= maxLon
+					&& position.longitude >= minLon) {
+				pois.add(poi);
+			}
+		}
+		MapReadResult result = new MapReadResult();
+		result.add(new PoiWayBundle(pois, ways));
+		return result;
+	}
+
+	@Override
+	public BoundingBox boundingBox() {
+		return this.mapDataStore.boundingBox();
+	}
+
+	@Override
+	public void close() {
+		// The underlying MapDataStore is shared, it gets closed by its owner
+	}
+
+	@Override
+	public long getDataTimestamp(Tile tile) {
+		return this.mapDataStore.getDataTimestamp(tile);
+	}
+
+	@Override
+	public MapReadResult readPoiData(Tile tile) {
+		return this.mapDataStore.readPoiData(tile);
+	}
+
+	@Override
+	public LatLong startPosition() {
+		return this.mapDataStore.startPosition();
+	}
+
+	@Override
+	public Byte startZoomLevel() {
+		return this.mapDataStore.startZoomLevel();
+	}
+
+	@Override
+	public boolean supportsTile(Tile tile) {
+		return this.mapDataStore.supportsTile(tile);
+	}
+}
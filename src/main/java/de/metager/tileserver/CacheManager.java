@@ -3,39 +3,46 @@ package de.metager.tileserver;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.apache.commons.io.FileUtils;
 import org.mapsforge.core.graphics.GraphicFactory;
 import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
 import org.mapsforge.map.datastore.MultiMapDataStore;
-import org.mapsforge.map.layer.cache.FileSystemTileCache;
-import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
 import org.mapsforge.map.model.DisplayModel;
 import org.mapsforge.map.rendertheme.ExternalRenderTheme;
 import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
 
 public class CacheManager implements Runnable {
 
-	private FileSystemTileCache tileCache;
 	private GraphicFactory GRAPHIC_FACTORY;
 	private File cacheDir;
-	private final ArrayList<HashMap<String, Integer>> preRenderAreas = new ArrayList<>();
-	private DatabaseRenderer databaseRenderer;
+	private List<PrerenderArea> preRenderAreas;
 	private MultiMapDataStore mf;
 	private RenderThemeFuture renderThemeFuture;
 	private DisplayModel displayModel;
 	private ExternalRenderTheme xmlRenderTheme;
 	private File mapFileDir;
+	private int metaTileSize;
+	private ForkJoinPool pool;
+	private RenderContextPool renderContexts;
 
 	public CacheManager(File tileCacheDir, File mapFileDir, File renderThemeFile) {
 		this.GRAPHIC_FACTORY = AwtGraphicFactory.INSTANCE;
-		this.tileCache = new FileSystemTileCache(0, tileCacheDir, this.GRAPHIC_FACTORY, true);
 		
 		// Create the multimapDataStore
 		this.mf = MapsforgeHelper.getMultiMapDataStore(mapFileDir);
-	
-		this.databaseRenderer = new DatabaseRenderer(this.mf, this.GRAPHIC_FACTORY, this.tileCache, null, true, false, null);
+		
+		// Tiles get rendered in blocks of metaTileSize x metaTileSize
+		this.metaTileSize = Integer.getInteger("tileserver.metaTileSize", 4);
 		
 		this.displayModel = new DisplayModel();
 		this.displayModel.setFixedTileSize(256);
@@ -48,34 +55,24 @@ public class CacheManager implements Runnable {
 		this.renderThemeFuture = new RenderThemeFuture(this.GRAPHIC_FACTORY, this.xmlRenderTheme, this.displayModel);
 		new Thread(this.renderThemeFuture).start();
 
-		// Fill the Array List of Areas that need to get prerenderd
-		// Syntax for an Area is:
-		// {
-		// minX - minimal xTile (Zoom 7)
-		// minY - minimal yTile (Zoom 7)
-		// maxX - maximal xTile (Zoom 7)
-		// maxY - maximal yTile (Zoom 7)
-		// maxZoom - Zoom Level upto which we should prerender this area
-		// }
-		// Germany:
-		HashMap<String, Integer> germany = new HashMap<>();
-		germany.put("minX", 65);
-		germany.put("minY", 40);
-		germany.put("maxX", 69);
-		germany.put("maxY", 44);
-		germany.put("maxZoom", 12);
-		// Add Germany to the Prerender List
-		this.preRenderAreas.add(germany);
-	
-		// Poland: 
-		HashMap<String, Integer> poland = new HashMap<>();
-		poland.put("minX", 70);
-		poland.put("minY", 40);
-		poland.put("maxX", 72);
-		poland.put("maxY", 43);
-		poland.put("maxZoom", 12);
-		// Add poland to the Prerender List
-		this.preRenderAreas.add(poland);
+		// Load the Areas that need to get prerendered (see PrerenderArea for the format).
+		// Without a configuration we prerender the whole world up to zoom 6 and Germany and Poland up to zoom 12
+		String areaFile = System.getProperty("tileserver.prerenderAreas");
+		if (areaFile == null) {
+			this.preRenderAreas = PrerenderArea.defaults();
+		} else {
+			try {
+				this.preRenderAreas = PrerenderArea.load(new File(areaFile));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+
+		// The MetaTiles get rendered by a work stealing pool that keeps all cores busy
+		this.pool = new ForkJoinPool(Integer.getInteger("tileserver.cacheThreads", Runtime.getRuntime().availableProcessors()));
+		// The pool may add Threads while others wait for their children, so no Thread keeps a RenderContext for itself
+		this.renderContexts = new RenderContextPool(mapFileDir, this.pool.getParallelism(), false);
 
 		this.cacheDir = new File(tileCacheDir, "tiles");
 		if (!cacheDir.canWrite()) {
@@ -117,15 +114,8 @@ public class CacheManager implements Runnable {
 			 * a higher zoom level then the prerendering (12)
 			 */
 			this.invalidateCache();
-			// 2. Create the new Tiles
-			// We will prerender every Tile between Zoom 0 and Zoom 6
-			this.updateCache(0, 0, 0, 0, 0, 6);
-	
-			// Prerender all declared Areas
-			for (HashMap<String, Integer> area : this.preRenderAreas) {
-				this.updateCache(area.get("minX"), area.get("minY"), area.get("maxX"), area.get("maxY"), 7,
-						area.get("maxZoom"));
-			}
+			// 2. Create the new Tiles of all declared Areas
+			this.updateCache();
 			try {
 				Thread.sleep(1000 * 60 * 60 * 2);
 			} catch (InterruptedException e) {
@@ -134,94 +124,93 @@ public class CacheManager implements Runnable {
 		}
 	}
 
-	private void updateCache(int minX, int minY, int maxX, int maxY, int minZoom, int maxZoom) {
-		ArrayList<Thread> threads = new ArrayList<>();
-		for (int z = minZoom; z <= maxZoom; z++) {
-			Thread t = new Thread(new Updater(minX, minY, maxX, maxY, z, this.tileCache, this.GRAPHIC_FACTORY, this.mf,
-					this.renderThemeFuture, this.databaseRenderer, this.displayModel, this.cacheDir));
-			threads.add(t);
-			t.start();
-
-			minX = minX * 2;
-			minY = minY * 2;
-			maxX = (maxX * 2) + 1;
-			maxY = (maxY * 2) + 1;
-		}
-
-		// We will make this thread wait until all Updaters are finished
-		while (true) {
-			boolean running = false;
-			for (Thread t : threads) {
-				if (t.isAlive()) {
-					running = true;
-					break;
-				}
-			}
-			if (running) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				continue;
-			} else {
-				break;
-			}
-		}
+	private void updateCache() {
+		System.out.println("[" + Instant.now() + "] Start of rendering " + this.preRenderAreas);
+		// The whole world is a single MetaTile on zoom 0, all other MetaTiles are found by walking down the quadtree
+		this.pool.invoke(new Updater(0, 0, 0));
+		System.out.println("[" + Instant.now() + "] Finished with rendering");
 	}
 
 	private void invalidateCache() {
-		File[] zoomFolders = this.cacheDir.listFiles();
+		File[] zoomFolders = this.cacheDir.listFiles(File::isDirectory);
+		if (zoomFolders == null) return;
 		for (File file : zoomFolders) {
-			int zoom = Integer.parseInt(file.getName());
+			int zoom;
+			try {
+				zoom = Integer.parseInt(file.getName());
+			} catch (NumberFormatException e) {
+				continue;
+			}
 			if(zoom < 0 || zoom > 22) continue;
-			if(zoom > 12) file.delete();
+			// File.delete() only deletes empty directories
+			if(zoom > 12) FileUtils.deleteQuietly(file);
 		}
 	}
 
-	private class Updater implements Runnable {
-		private int maxX;
-		private int maxY;
-		private FileSystemTileCache tileCache;
-		private GraphicFactory GRAPHIC_FACTORY;
+	/**
+	 * Renders a MetaTile and then goes on with the MetaTiles below it. Subtrees that are outside
+	 * of every Area or not covered by the map data are skipped completely.
+	 */
+	private class Updater extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int x;
+		private int y;
 		private int z;
-		private int minX;
-		private int minY;
-		private File cacheDir;
-		private MultiMapDataStore mf;
-		private DatabaseRenderer databaseRenderer;
-		private RenderThemeFuture renderThemeFuture;
-		private DisplayModel displayModel;
-
-		public Updater(int minX, int minY, int maxX, int maxY, int z, FileSystemTileCache tileCache,
-				GraphicFactory gRAPHIC_FACTORY, MultiMapDataStore mf, RenderThemeFuture renderThemeFuture,
-				DatabaseRenderer databaseRenderer, DisplayModel displayModel, File cacheDir) {
-			this.minX = minX;
-			this.minY = minY;
-			this.maxX = maxX;
-			this.maxY = maxY;
+		private int size;
+
+		public Updater(int x, int y, int z) {
+			this.x = x;
+			this.y = y;
 			this.z = z;
-			this.tileCache = tileCache;
-			this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
-			this.cacheDir = cacheDir;
-			this.mf = mf;
-			this.databaseRenderer = databaseRenderer;
-			this.renderThemeFuture = renderThemeFuture;
-			this.displayModel = displayModel;
+			this.size = MetaTile.sizeForZoom(metaTileSize, z);
 		}
 
 		@Override
-		public void run() {
-			System.out.println("Start of rendering zoom " + z);
-
-			for (int x = minX; x <= maxX; x++) {
-				for (int y = minY; y <= maxY; y++) {
-					Tile tile = new Tile(x, y, z, this.mf, this.renderThemeFuture, this.displayModel,
-							this.databaseRenderer, this.tileCache, this.GRAPHIC_FACTORY);
-					tile.updateCache(this.cacheDir);
+		protected void compute() {
+			if (!isWanted()) return;
+			// A MetaTile covers exactly one Tile a few zoom levels higher up
+			int shift = Integer.numberOfTrailingZeros(this.size);
+			if (!mf.supportsTile(new org.mapsforge.core.model.Tile(this.x >> shift, this.y >> shift, (byte) (this.z - shift), 256))) return;
+
+			RenderContext context;
+			try {
+				context = renderContexts.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try {
+				MetaTile metaTile = new MetaTile(this.x, this.y, this.z, this.size, mf, context.getMapDataStore(),
+						renderThemeFuture, displayModel, GRAPHIC_FACTORY);
+				for (Map.Entry<RendererJob, byte[]> tile : metaTile.render().entrySet()) {
+					try (OutputStream cos = MetaGerTileCache.put(cacheDir, tile.getKey().tile.tileX,
+							tile.getKey().tile.tileY, this.z)) {
+						if (cos != null) cos.write(tile.getValue());
+					} catch (IOException e) {}
+				}
+			} finally {
+				// Given back before the children start, so waiting for them never holds a RenderContext
+				renderContexts.release(context);
+			}
+
+			// The same area on the next zoom level is twice as wide
+			int childZoom = this.z + 1;
+			int childSize = MetaTile.sizeForZoom(metaTileSize, childZoom);
+			List<Updater> children = new ArrayList<>();
+			for (int childY = this.y * 2; childY < (this.y + this.size) * 2; childY += childSize) {
+				for (int childX = this.x * 2; childX < (this.x + this.size) * 2; childX += childSize) {
+					Updater child = new Updater(childX, childY, childZoom);
+					if (child.isWanted()) children.add(child);
 				}
 			}
-			System.out.println("Finished with rendering zoom " + z);
+			invokeAll(children);
+		}
+
+		private boolean isWanted() {
+			for (PrerenderArea area : preRenderAreas) {
+				if (area.intersects(this.z, this.x, this.y, this.x + this.size - 1, this.y + this.size - 1)) return true;
+			}
+			return false;
 		}
 	}
 
@@ -0,0 +1,68 @@
+package de.metager.tileserver;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+
+/**
+ * @author SumaEV
+ * The MapDataStore of a RenderContext. Reads of an area (a MetaTile) go through the shared MapDataCache,
+ * everything else goes straight to the Map Files of the RenderContext.
+ */
+public class CachingMapDataStore extends MapDataStore {
+
+	private final MapDataStore mapDataStore;
+	private final MapDataCache cache;
+
+	public CachingMapDataStore(MapDataStore mapDataStore, MapDataCache cache) {
+		this.mapDataStore = mapDataStore;
+		this.cache = cache;
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile upperLeft, Tile lowerRight) {
+		return this.cache.readMapData(this.mapDataStore, upperLeft, lowerRight);
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile tile) {
+		return this.mapDataStore.readMapData(tile);
+	}
+
+	@Override
+	public BoundingBox boundingBox() {
+		return this.mapDataStore.boundingBox();
+	}
+
+	@Override
+	public void close() {
+		// The Map Files belong to the RenderContext
+	}
+
+	@Override
+	public long getDataTimestamp(Tile tile) {
+		return this.mapDataStore.getDataTimestamp(tile);
+	}
+
+	@Override
+	public MapReadResult readPoiData(Tile tile) {
+		return this.mapDataStore.readPoiData(tile);
+	}
+
+	@Override
+	public LatLong startPosition() {
+		return this.mapDataStore.startPosition();
+	}
+
+	@Override
+	public Byte startZoomLevel() {
+		return this.mapDataStore.startZoomLevel();
+	}
+
+	@Override
+	public boolean supportsTile(Tile tile) {
+		return this.mapDataStore.supportsTile(tile);
+	}
+}
@@ -0,0 +1,203 @@
+package de.metager.tileserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author SumaEV
+ * One client connection of the TileServer. A connection carries exactly one Tile request
+ * ("z;x;y\n", "z;x;y;512\n", "z;x;y@2x\n" or "z;x;y;512@2x\n", see TileVariant) and gets closed after the response was written. The response is either the PNG
+ * or the line "BUSY" if the server is too overloaded to render the Tile in time, "TIMEOUT" if rendering took too long
+ * or "ERROR" if it failed.
+ * All the reading and writing happens non blocking on the selector Thread of the TileServer,
+ * render Threads only hand their result over with reply(). While the Tile is rendered the connection is watched,
+ * so a client that resets the connection is noticed and its request can be dropped.
+ * Instead of a Tile a client can also send "stats" and gets the runtime metrics of the server as text.
+ */
+public class ClientConnection {
+
+	// Reply for requests that got rejected because the render queue is overloaded
+	public static final byte[] BUSY = "BUSY\n".getBytes(StandardCharsets.US_ASCII);
+	// Reply for requests that could not be rendered before their render deadline
+	public static final byte[] TIMEOUT = "TIMEOUT\n".getBytes(StandardCharsets.US_ASCII);
+	// Reply for requests whose rendering failed
+	public static final byte[] ERROR = "ERROR\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final TileServer server;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final ByteBuffer request = ByteBuffer.allocate(128);
+
+	// The response is either a buffer in memory or a region of a file
+	private ByteBuffer response;
+	private FileChannel file;
+	// The tileset the file belongs to, released once the transfer is over
+	private PackedTileStore store;
+	private long position;
+	private long end;
+
+	// Zoom level of the requested Tile and when the request was complete, for the request Metrics
+	private int zoom = -1;
+	private long requested;
+	private long writeStarted;
+
+	// The client sent everything it will send, so a closed input doesn't mean it hung up
+	private boolean inputClosed;
+	// Reading only to notice that the client reset the connection
+	private boolean watching;
+	private volatile boolean closed;
+
+	public ClientConnection(TileServer server, SocketChannel channel, SelectionKey key) {
+		this.server = server;
+		this.channel = channel;
+		this.key = key;
+	}
+
+	/**
+	 * Reads what the client sent so far. Returns the request line once it is complete, null otherwise.
+	 */
+	String readRequest() throws IOException {
+		int read = this.channel.read(this.request);
+		this.inputClosed = read < 0;
+		for (int i = 0; i < this.request.position(); i++) {
+			if (this.request.get(i) == '\n') {
+				return new String(this.request.array(), 0, i, StandardCharsets.US_ASCII).trim();
+			}
+		}
+		if (read < 0 || !this.request.hasRemaining()) {
+			// The client won't send anything more, so this is all we get
+			return new String(this.request.array(), 0, this.request.position(), StandardCharsets.US_ASCII).trim();
+		}
+		return null;
+	}
+
+	/**
+	 * The request is complete, we are not interested in anything else the client sends.
+	 */
+	void readDone() {
+		this.key.interestOps(0);
+		this.requested = System.nanoTime();
+	}
+
+	/**
+	 * Keeps reading while the Tile is rendered to notice when the client resets the connection, see checkClosed().
+	 */
+	void watchClose() {
+		if (this.inputClosed || !this.key.isValid()) return;
+		this.watching = true;
+		this.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	boolean isWatching() {
+		return this.watching;
+	}
+
+	/**
+	 * Called when a watched connection is readable. Whatever the client sends now is thrown away.
+	 * The end of the stream may just be a client that shut down its output and still waits for the
+	 * response, so watching stops there. Only a reset (an IOException) closes the connection.
+	 */
+	void checkClosed() throws IOException {
+		this.request.clear();
+		if (this.channel.read(this.request) < 0) {
+			this.inputClosed = true;
+			this.watching = false;
+			this.key.interestOps(0);
+		}
+	}
+
+	/**
+	 * True once the connection is closed, a response can't be written anymore. Can be called from any Thread.
+	 */
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Records the write and request latency for a Tile of zoom level z once the response is written
+	 */
+	void measure(int z) {
+		this.zoom = z;
+	}
+
+	/**
+	 * Sends the given PNG. Must be called on the selector Thread.
+	 */
+	void send(byte[] png) throws IOException {
+		this.response = ByteBuffer.wrap(png == null ? new byte[0] : png);
+		startWriting();
+	}
+
+	/**
+	 * Sends length bytes of the given tileset starting at position without copying them through the heap.
+	 * The caller retain()s the store, it gets released once the transfer is done or the connection closed.
+	 * Must be called on the selector Thread.
+	 */
+	void send(PackedTileStore store, long position, long length) throws IOException {
+		this.store = store;
+		this.file = store.getChannel();
+		this.position = position;
+		this.end = position + length;
+		startWriting();
+	}
+
+	/**
+	 * Hands the rendered PNG over to the selector Thread. Can be called from any Thread.
+	 */
+	public void reply(byte[] png) {
+		if (this.closed) return;
+		this.response = ByteBuffer.wrap(png == null ? new byte[0] : png);
+		this.server.queueReply(this);
+	}
+
+	void startWriting() throws IOException {
+		this.watching = false;
+		this.writeStarted = System.nanoTime();
+		// Most Tiles fit into the socket buffer, so we try to get rid of them right away
+		write();
+		if (this.key.isValid()) {
+			this.key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	void write() throws IOException {
+		if (this.file != null) {
+			while (this.position < this.end) {
+				long written = this.file.transferTo(this.position, this.end - this.position, this.channel);
+				if (written <= 0) {
+					// Nothing can be sent from a tileset that got truncated, waiting for the socket would spin forever
+					if (this.position >= this.file.size()) throw new IOException("The packed tileset ends before the Tile");
+					return;
+				}
+				this.position += written;
+			}
+		} else if (this.response != null) {
+			this.channel.write(this.response);
+			if (this.response.hasRemaining()) return;
+		} else {
+			return;
+		}
+		if (this.zoom >= 0) {
+			long now = System.nanoTime();
+			Metrics.INSTANCE.record(Metrics.Phase.WRITE, this.zoom, now - this.writeStarted);
+			Metrics.INSTANCE.record(Metrics.Phase.REQUEST, this.zoom, now - this.requested);
+		}
+		close();
+	}
+
+	public void close() {
+		this.closed = true;
+		this.key.cancel();
+		if (this.store != null) {
+			this.store.release();
+			this.store = null;
+		}
+		try {
+			this.channel.close();
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,439 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * @author SumaEV
+ * Keeps Tiles that were rendered on demand on disk ("z/x/y.png", "z/x/y@2x.png" for other TileVariants) within a quota of bytes.
+ * The Cache is a segmented LRU: new Tiles start on probation, a Tile that is asked for again gets protected.
+ * Eviction takes the least recently used Tiles on probation first, so a burst of Tiles that are only
+ * seen once (a crawler, a user panning through a region) can't push out the Tiles that are asked for all the time.
+ * Protected Tiles only lose their place if they haven't been asked for in a long time.
+ * Writing and evicting happens on a background Thread, render Threads only queue the Tiles. If the queue
+ * is full the Tile is simply not cached. The directory is tagged with the Map Files and Rendertheme it was
+ * rendered from and the time since when that is the case. When they change (on startup or with a new render
+ * generation) the Tiles are kept but become stale: they are still served while they get rendered again in the
+ * background (see Revalidator), a Tile written before that time is stale. Each write carries the number of the
+ * RenderGeneration it was rendered with, so a Tile of an old generation that is written late doesn't count as fresh.
+ */
+public class DiskTileCache implements Runnable {
+
+	// Share of the quota that protected Tiles can take
+	private static final double PROTECTED_SHARE = 0.8;
+	// Once the quota is exceeded, Tiles are evicted until this share of the quota is left
+	private static final double LOW_WATERMARK = 0.95;
+	private static final int WRITE_QUEUE_SIZE = 4096;
+	private static final String SIGNATURE_FILE = "signature";
+
+	private static final class Write {
+		final int z;
+		final int x;
+		final int y;
+		final TileVariant variant;
+		final byte[] png;
+		final long generation;
+
+		Write(int z, int x, int y, TileVariant variant, byte[] png, long generation) {
+			this.z = z;
+			this.x = x;
+			this.y = y;
+			this.variant = variant;
+			this.png = png;
+			this.generation = generation;
+		}
+	}
+
+	private final File dir;
+	private final long quota;
+	private String signature;
+	// Tiles written before this time were rendered from older Map Files or an older Rendertheme
+	private long freshSince = 0;
+	// Number of the RenderGeneration the fresh Tiles are rendered with
+	private long generation;
+	// Size in bytes by Tile, both access ordered so the eldest entry is the least recently used one
+	private final LinkedHashMap<Long, Integer> probation = new LinkedHashMap<>(1024, 0.75f, true);
+	private final LinkedHashMap<Long, Integer> protectedTiles = new LinkedHashMap<>(1024, 0.75f, true);
+	private long probationSize = 0;
+	private long protectedSize = 0;
+	// Tiles of both segments that are stale
+	private final HashSet<Long> stale = new HashSet<>();
+	private final BlockingQueue<Write> writes = new ArrayBlockingQueue<>(WRITE_QUEUE_SIZE);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * A quota of 0 disables the Cache
+	 */
+	public DiskTileCache(File dir, long quota, String signature, long generation) {
+		this.dir = dir;
+		this.quota = quota;
+		this.signature = signature;
+		this.generation = generation;
+	}
+
+	/**
+	 * Identifies the Map Files and the Rendertheme the Tiles get rendered from
+	 */
+	public static String signature(File mapFileDir, File renderThemeFile) {
+		StringBuilder signature = new StringBuilder();
+		File[] mapFiles = mapFileDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				return pathname.isFile() && pathname.getName().toLowerCase().endsWith(".map");
+			}
+		});
+		if (mapFiles != null) {
+			for (File mapFile : mapFiles) {
+				signature.append(mapFile.getName()).append(':').append(mapFile.length()).append(':').append(mapFile.lastModified()).append(';');
+			}
+		}
+		signature.append(renderThemeFile.length()).append(':').append(renderThemeFile.lastModified());
+		return Long.toHexString(MapDataHasher.hash(signature.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public boolean isEnabled() {
+		return this.quota > 0;
+	}
+
+	/**
+	 * Returns the PNG of the Tile or null if it isn't cached
+	 */
+	public byte[] get(int z, int x, int y) {
+		return get(z, x, y, TileVariant.DEFAULT);
+	}
+
+	public byte[] get(int z, int x, int y, TileVariant variant) {
+		if (!isEnabled()) return null;
+		long key = TileKey.of(z, x, y, variant);
+		synchronized (this) {
+			Integer size = this.probation.remove(key);
+			if (size != null) {
+				// Asked for a second time, so it is worth keeping
+				this.probationSize -= size;
+				this.protectedTiles.put(key, size);
+				this.protectedSize += size;
+				demote();
+			} else if (this.protectedTiles.get(key) == null) {
+				this.misses.incrementAndGet();
+				return null;
+			}
+		}
+		try {
+			byte[] png = Files.readAllBytes(file(z, x, y, variant).toPath());
+			this.hits.incrementAndGet();
+			return png;
+		} catch (IOException e) {
+			// Evicted in the meantime
+			forget(key);
+			this.misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the Tile is cached and not stale, without counting as an access
+	 */
+	public synchronized boolean contains(int z, int x, int y) {
+		long key = TileKey.of(z, x, y, TileVariant.DEFAULT);
+		return (this.probation.containsKey(key) || this.protectedTiles.containsKey(key)) && !this.stale.contains(key);
+	}
+
+	/**
+	 * Whether the Tile is cached, stale or not, without counting as an access
+	 */
+	public synchronized boolean isCached(int z, int x, int y, TileVariant variant) {
+		if (!isEnabled()) return false;
+		long key = TileKey.of(z, x, y, variant);
+		return this.probation.containsKey(key) || this.protectedTiles.containsKey(key);
+	}
+
+	/**
+	 * Whether the cached Tile was rendered from older Map Files or an older Rendertheme
+	 */
+	public synchronized boolean isStale(int z, int x, int y, TileVariant variant) {
+		return this.stale.contains(TileKey.of(z, x, y, variant));
+	}
+
+	/**
+	 * Queues the Tile to be written. generation is the number of the RenderGeneration it was rendered with.
+	 * Can be called from any Thread.
+	 */
+	public void put(int z, int x, int y, TileVariant variant, byte[] png, long generation) {
+		if (!isEnabled() || png == null || png.length == 0) return;
+		if (!this.writes.offer(new Write(z, x, y, variant, png, generation))) this.dropped.incrementAndGet();
+	}
+
+	/**
+	 * Tags the Cache with other Map Files or another Rendertheme, the ones of the RenderGeneration with the given number.
+	 * Every Tile cached so far and every Tile of an older generation written from now on is stale.
+	 */
+	public void retag(String signature, long generation) {
+		if (!isEnabled()) return;
+		synchronized (this) {
+			this.signature = signature;
+			this.freshSince = System.currentTimeMillis();
+			this.generation = generation;
+			this.stale.addAll(this.probation.keySet());
+			this.stale.addAll(this.protectedTiles.keySet());
+		}
+		writeSignature();
+	}
+
+	@Override
+	public void run() {
+		if (!isEnabled()) return;
+		load();
+		try {
+			while (!Thread.interrupted()) {
+				Write write = this.writes.poll(1, TimeUnit.SECONDS);
+				if (write != null) write(write);
+				if (getSize() > this.quota) evict();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Takes over the Tiles of the last run. If they were rendered from other Map Files or another Rendertheme
+	 * they are stale.
+	 */
+	private void load() {
+		File signatureFile = new File(this.dir, SIGNATURE_FILE);
+		String current;
+		synchronized (this) {
+			current = this.signature;
+		}
+		try {
+			if (!signatureFile.exists()) {
+				wipe();
+				return;
+			}
+			// The signature and the time since when the Tiles are rendered from it
+			String[] tag = new String(Files.readAllBytes(signatureFile.toPath()), StandardCharsets.UTF_8).split("\n");
+			synchronized (this) {
+				if (tag[0].equals(current)) {
+					this.freshSince = tag.length > 1 ? Long.parseLong(tag[1].trim()) : 0;
+				} else {
+					this.freshSince = System.currentTimeMillis();
+				}
+			}
+			if (!tag[0].equals(current)) writeSignature();
+		} catch (IOException | NumberFormatException e) {
+			wipe();
+			return;
+		}
+		long freshSince;
+		synchronized (this) {
+			freshSince = this.freshSince;
+		}
+		List<File> files = new ArrayList<>();
+		File[] zooms = this.dir.listFiles(File::isDirectory);
+		for (File zoom : zooms == null ? new File[0] : zooms) {
+			File[] columns = zoom.listFiles(File::isDirectory);
+			for (File column : columns == null ? new File[0] : columns) {
+				File[] tiles = column.listFiles((d, name) -> name.endsWith(".png"));
+				if (tiles != null) files.addAll(Arrays.asList(tiles));
+			}
+		}
+		// Without access times, the most recently written Tiles count as the most recently used ones
+		Map<File, Long> modified = new HashMap<>();
+		for (File file : files) {
+			modified.put(file, file.lastModified());
+		}
+		files.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+		int loaded = 0;
+		for (File file : files) {
+			try {
+				int z = Integer.parseInt(file.getParentFile().getParentFile().getName());
+				int x = Integer.parseInt(file.getParentFile().getName());
+				String name = file.getName().substring(0, file.getName().length() - 4);
+				TileVariant variant = TileVariant.bySuffix(name);
+				int y = Integer.parseInt(name.substring(0, name.length() - variant.getSuffix().length()));
+				synchronized (this) {
+					long key = TileKey.of(z, x, y, variant);
+					if (this.probation.containsKey(key) || this.protectedTiles.containsKey(key)) continue;
+					this.probation.put(key, (int) file.length());
+					this.probationSize += file.length();
+					if (modified.get(file) < freshSince) this.stale.add(key);
+				}
+				loaded++;
+			} catch (NumberFormatException e) {
+				file.delete();
+			}
+		}
+		System.out.println("[" + Instant.now() + "] Disk Cache holds " + loaded + " Tiles (" + getSize() / 1024 / 1024 + " MB, "
+				+ getStale() + " of them stale)");
+	}
+
+	/**
+	 * Deletes every Tile and tags the directory with the current signature
+	 */
+	private void wipe() {
+		FileUtils.deleteQuietly(this.dir);
+		writeSignature();
+	}
+
+	private void writeSignature() {
+		String tag;
+		synchronized (this) {
+			tag = this.signature + "\n" + this.freshSince + "\n";
+		}
+		try {
+			Files.createDirectories(this.dir.toPath());
+			File file = new File(this.dir, SIGNATURE_FILE);
+			File tmp = new File(this.dir, SIGNATURE_FILE + ".tmp");
+			Files.write(tmp.toPath(), tag.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void write(Write write) {
+		File file = file(write.z, write.x, write.y, write.variant);
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			// Readers never see a half written Tile
+			File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+			Files.write(tmp.toPath(), write.png);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		long key = TileKey.of(write.z, write.x, write.y, write.variant);
+		synchronized (this) {
+			if (write.generation == this.generation) {
+				this.stale.remove(key);
+			} else {
+				// Rendered before the signature changed, after a restart it must still be stale
+				this.stale.add(key);
+				file.setLastModified(this.freshSince - 1);
+			}
+			Integer previous = this.protectedTiles.get(key);
+			if (previous != null) {
+				this.protectedTiles.put(key, write.png.length);
+				this.protectedSize += write.png.length - previous;
+				return;
+			}
+			previous = this.probation.put(key, write.png.length);
+			this.probationSize += write.png.length - (previous == null ? 0 : previous);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used Tiles, the ones on probation first
+	 */
+	private void evict() {
+		List<Long> victims = new ArrayList<>();
+		synchronized (this) {
+			long target = (long) (this.quota * LOW_WATERMARK);
+			evict(this.probation, true, target, victims);
+			evict(this.protectedTiles, false, target, victims);
+		}
+		for (long key : victims) {
+			file(TileKey.zoom(key), TileKey.x(key), TileKey.y(key), TileKey.variant(key)).delete();
+		}
+		this.evictions.addAndGet(victims.size());
+	}
+
+	private void evict(LinkedHashMap<Long, Integer> segment, boolean probation, long target, List<Long> victims) {
+		Iterator<Map.Entry<Long, Integer>> it = segment.entrySet().iterator();
+		while (this.probationSize + this.protectedSize > target && it.hasNext()) {
+			Map.Entry<Long, Integer> eldest = it.next();
+			if (probation) {
+				this.probationSize -= eldest.getValue();
+			} else {
+				this.protectedSize -= eldest.getValue();
+			}
+			victims.add(eldest.getKey());
+			this.stale.remove(eldest.getKey());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Moves the least recently used protected Tiles back on probation while they take more than their share
+	 */
+	private void demote() {
+		Iterator<Map.Entry<Long, Integer>> it = this.protectedTiles.entrySet().iterator();
+		while (this.protectedSize > this.quota * PROTECTED_SHARE && it.hasNext()) {
+			Map.Entry<Long, Integer> eldest = it.next();
+			it.remove();
+			this.protectedSize -= eldest.getValue();
+			this.probation.put(eldest.getKey(), eldest.getValue());
+			this.probationSize += eldest.getValue();
+		}
+	}
+
+	private synchronized void forget(long key) {
+		Integer size = this.probation.remove(key);
+		if (size != null) this.probationSize -= size;
+		size = this.protectedTiles.remove(key);
+		if (size != null) this.protectedSize -= size;
+		this.stale.remove(key);
+	}
+
+	private File file(int z, int x, int y, TileVariant variant) {
+		return new File(this.dir, z + "/" + x + "/" + y + variant.getSuffix() + ".png");
+	}
+
+	public synchronized long getSize() {
+		return this.probationSize + this.protectedSize;
+	}
+
+	public synchronized int getCount() {
+		return this.probation.size() + this.protectedTiles.size();
+	}
+
+	/**
+	 * Number of Tiles that wait to be rendered again
+	 */
+	public synchronized int getStale() {
+		return this.stale.size();
+	}
+
+	public long getQuota() {
+		return this.quota;
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	public long getDropped() {
+		return this.dropped.get();
+	}
+}
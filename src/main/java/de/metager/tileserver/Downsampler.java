@@ -0,0 +1,159 @@
+package de.metager.tileserver;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.util.MercatorProjection;
+
+/**
+ * @author SumaEV
+ * Builds the Tiles of the lower zoom levels of a prerendering from the ones below them instead of
+ * rendering them from the map data. Each Tile is the composite of its four children scaled down to half
+ * the size, so only the highest zoom level has to be read and rendered from the Map Files.
+ * Zoom levels where labels matter more than speed can still be rendered from the map data, they are left out here
+ * and the zoom levels above them are built from them. A child that is missing (outside of the Bounding Box)
+ * stays transparent. If all four children are the same single coloured Tile (open sea), it is taken as it is.
+ */
+public class Downsampler {
+
+	private PackedTileWriter output;
+	private BoundingBox bbox;
+	private int metaTileSize;
+	private boolean[] vectorZooms;
+	private int processes;
+
+	/**
+	 * vectorZooms[z] is true for the zoom levels that got rendered from the map data
+	 */
+	public Downsampler(PackedTileWriter output, BoundingBox bbox, int metaTileSize, boolean[] vectorZooms, int processes) {
+		this.output = output;
+		this.bbox = bbox;
+		this.metaTileSize = metaTileSize;
+		this.vectorZooms = vectorZooms;
+		this.processes = processes;
+	}
+
+	/**
+	 * Builds every zoom level from endZoom - 1 up to 0 that wasn't rendered from the map data
+	 */
+	public void run(int endZoom) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(this.processes);
+		try {
+			for (int z = endZoom - 1; z >= 0; z--) {
+				if (this.vectorZooms[z]) continue;
+				System.out.println("[" + Instant.now() + "] Downsampling zoom " + z);
+				downsample(executor, z);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void downsample(ExecutorService executor, int z) throws IOException, InterruptedException {
+		// Whole MetaTiles, like the rendering would have written them
+		int cellSize = MetaTile.sizeForZoom(this.metaTileSize, z);
+		int last = (1 << z) - 1;
+		int minX = MercatorProjection.longitudeToTileX(this.bbox.minLongitude, (byte) z) / cellSize * cellSize;
+		int maxX = Math.min(last, (MercatorProjection.longitudeToTileX(this.bbox.maxLongitude, (byte) z) / cellSize + 1) * cellSize - 1);
+		int minY = MercatorProjection.latitudeToTileY(this.bbox.maxLatitude, (byte) z) / cellSize * cellSize;
+		int maxY = Math.min(last, (MercatorProjection.latitudeToTileY(this.bbox.minLatitude, (byte) z) / cellSize + 1) * cellSize - 1);
+		List<Callable<Void>> rows = new ArrayList<>();
+		for (int y = minY; y <= maxY; y++) {
+			int row = y;
+			rows.add(() -> {
+				for (int x = minX; x <= maxX; x++) {
+					byte[] png = downsample(z, x, row);
+					if (png != null) this.output.put(z, x, row, png);
+				}
+				return null;
+			});
+		}
+		for (Future<Void> row : executor.invokeAll(rows)) {
+			try {
+				row.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Returns the PNG of the Tile built from its four children or null if none of them is there
+	 */
+	private byte[] downsample(int z, int x, int y) throws IOException {
+		byte[][] children = new byte[4][];
+		boolean any = false;
+		for (int i = 0; i < 4; i++) {
+			children[i] = this.output.get(z + 1, 2 * x + (i & 1), 2 * y + (i >> 1));
+			any |= children[i] != null;
+		}
+		if (!any) return null;
+		if (children[0] != null && Arrays.equals(children[0], children[1]) && Arrays.equals(children[0], children[2])
+				&& Arrays.equals(children[0], children[3])) {
+			BufferedImage child = ImageIO.read(new ByteArrayInputStream(children[0]));
+			if (child != null && MetaTile.uniformColour(child) != null) return children[0];
+		}
+		int size = 0;
+		BufferedImage[] images = new BufferedImage[4];
+		for (int i = 0; i < 4; i++) {
+			if (children[i] == null) continue;
+			images[i] = ImageIO.read(new ByteArrayInputStream(children[i]));
+			if (images[i] == null) throw new IOException("Tile " + (z + 1) + "/" + (2 * x + (i & 1)) + "/" + (2 * y + (i >> 1)) + " is not a readable PNG");
+			size = images[i].getWidth();
+		}
+		return PngEncoder.DEFAULT.encode(scale(images, size));
+	}
+
+	/**
+	 * Scales the four children (upper left, upper right, lower left, lower right) of size x size pixels
+	 * down into a single Tile of the same size. Every pixel is the average of the 2 x 2 pixels below it,
+	 * weighted by their alpha so transparent pixels don't darken the edges.
+	 */
+	static BufferedImage scale(BufferedImage[] children, int size) {
+		BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		int half = size / 2;
+		int[] upper = new int[size];
+		int[] lower = new int[size];
+		int[] row = new int[half];
+		for (int i = 0; i < 4; i++) {
+			BufferedImage child = children[i];
+			if (child == null) continue;
+			int offsetX = (i & 1) * half;
+			int offsetY = (i >> 1) * half;
+			for (int y = 0; y < half; y++) {
+				child.getRGB(0, 2 * y, size, 1, upper, 0, size);
+				child.getRGB(0, 2 * y + 1, size, 1, lower, 0, size);
+				for (int x = 0; x < half; x++) {
+					row[x] = average(upper[2 * x], upper[2 * x + 1], lower[2 * x], lower[2 * x + 1]);
+				}
+				tile.setRGB(offsetX, offsetY + y, half, 1, row, 0, half);
+			}
+		}
+		return tile;
+	}
+
+	static int average(int p0, int p1, int p2, int p3) {
+		if (p0 == p1 && p0 == p2 && p0 == p3) return p0;
+		int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+		int alpha = a0 + a1 + a2 + a3;
+		if (alpha == 0) return 0;
+		int r = (((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1 + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3 + alpha / 2) / alpha;
+		int g = (((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1 + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3 + alpha / 2) / alpha;
+		int b = ((p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3 + alpha / 2) / alpha;
+		return ((alpha + 2) / 4) << 24 | r << 16 | g << 8 | b;
+	}
+}
@@ -0,0 +1,124 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+
+/**
+ * @author SumaEV
+ * Watches the Map File directory and the Rendertheme. If any of them changes, a new RenderGeneration
+ * gets loaded in the background and replaces the current one, so the Tileserver doesn't need to be restarted.
+ * Map Files are big and take a while to be copied, so we only reload once there was no change for QUIET_PERIOD.
+ * If the new Map Files or the new Rendertheme can't be loaded, the current generation stays in place.
+ */
+public class GenerationWatcher implements Runnable {
+
+	private static final long QUIET_PERIOD = 5000;
+
+	private AtomicReference<RenderGeneration> generation;
+	private TileMemoryCache<RendererJob> memoryCache;
+	private DiskTileCache diskCache;
+	private File mapFileDir;
+	private File renderThemeFile;
+	private DisplayModel displayModel;
+	private GraphicFactory GRAPHIC_FACTORY;
+	private int renderThreads;
+	private boolean affinity;
+
+	public GenerationWatcher(AtomicReference<RenderGeneration> generation, TileMemoryCache<RendererJob> memoryCache,
+			DiskTileCache diskCache, File mapFileDir, File renderThemeFile, DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY,
+			int renderThreads, boolean affinity) {
+		this.generation = generation;
+		this.memoryCache = memoryCache;
+		this.diskCache = diskCache;
+		this.mapFileDir = mapFileDir;
+		this.renderThemeFile = renderThemeFile;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+		this.renderThreads = renderThreads;
+		this.affinity = affinity;
+	}
+
+	@Override
+	public void run() {
+		Path mapDir = this.mapFileDir.getAbsoluteFile().toPath();
+		Path themeDir = this.renderThemeFile.getAbsoluteFile().getParentFile().toPath();
+		Path themeName = this.renderThemeFile.toPath().getFileName();
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			WatchEvent.Kind<?>[] kinds = { StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE };
+			mapDir.register(watcher, kinds);
+			if (!themeDir.equals(mapDir)) themeDir.register(watcher, kinds);
+
+			while (true) {
+				boolean changed = isRelevant(watcher.take(), mapDir, themeDir, themeName);
+				// Wait until the Files stopped changing
+				WatchKey key;
+				while ((key = watcher.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+					changed |= isRelevant(key, mapDir, themeDir, themeName);
+				}
+				if (changed) reload();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean isRelevant(WatchKey key, Path mapDir, Path themeDir, Path themeName) {
+		boolean relevant = false;
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				relevant = true;
+				continue;
+			}
+			Path name = (Path) event.context();
+			if (dir.equals(mapDir) && name.toString().toLowerCase().endsWith(".map")) relevant = true;
+			if (dir.equals(themeDir) && name.equals(themeName)) relevant = true;
+		}
+		key.reset();
+		return relevant;
+	}
+
+	private void reload() {
+		RenderGeneration current = this.generation.get();
+		RenderGeneration next;
+		try {
+			next = RenderGeneration.load(current.getNumber() + 1, this.mapFileDir, this.renderThemeFile, this.displayModel,
+					this.GRAPHIC_FACTORY, this.renderThreads, this.affinity);
+		} catch (Exception e) {
+			System.err.println("[" + Instant.now() + "] Couldn't load the changed Map Files or Rendertheme, keeping generation " + current.getNumber());
+			e.printStackTrace();
+			return;
+		}
+		swap(current, next);
+		System.out.println("[" + Instant.now() + "] Switched to render generation " + next.getNumber());
+	}
+
+	/**
+	 * Replaces the current generation with next. The current one is retired before the Caches are cleared,
+	 * so renderings that are still running with it don't put their Tiles into the Caches anymore.
+	 */
+	void swap(RenderGeneration current, RenderGeneration next) {
+		this.generation.set(next);
+		current.retire();
+		// The memory Cache is keyed by generation, its old Tiles would never be asked for again.
+		// The old Tiles on disk are served as stale until they are rendered again (see Revalidator)
+		this.memoryCache.clear();
+		this.diskCache.retag(DiskTileCache.signature(this.mapFileDir, this.renderThemeFile), next.getNumber());
+	}
+}
@@ -0,0 +1,118 @@
+package de.metager.tileserver;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author SumaEV
+ * Renders in the background without competing with real requests: it runs on a single Thread of its own
+ * and only while the render queue is empty and a render Thread is idle. The most recently queued item is
+ * rendered first. At most budget items wait, if more get queued the oldest ones are dropped.
+ * An item that is waiting already (same key()) isn't queued twice.
+ */
+public abstract class IdleRenderer<T> implements Runnable {
+
+	// How long to wait before checking again whether the render Threads are idle
+	static final long IDLE_WAIT = 50;
+
+	private final ThreadPoolExecutor executor;
+	private final int budget;
+
+	// The waiting items, the most recent one last
+	private final ArrayDeque<T> pending = new ArrayDeque<>();
+	private final Set<Long> queued = new HashSet<>();
+	private final AtomicLong dropped = new AtomicLong();
+
+	protected IdleRenderer(ThreadPoolExecutor executor, int budget) {
+		this.executor = executor;
+		this.budget = budget;
+	}
+
+	/**
+	 * Identifies an item, see TileKey
+	 */
+	protected abstract long key(T item);
+
+	/**
+	 * Renders an item, called on the Thread of this IdleRenderer
+	 */
+	protected abstract void render(T item);
+
+	/**
+	 * Without a budget nothing gets queued
+	 */
+	public boolean isEnabled() {
+		return this.budget > 0;
+	}
+
+	/**
+	 * Queues the item unless it is waiting already, dropping the oldest ones that exceed the budget
+	 */
+	protected synchronized void queue(T item) {
+		if (!isEnabled() || !this.queued.add(key(item))) return;
+		this.pending.addLast(item);
+		while (this.pending.size() > this.budget) {
+			this.queued.remove(key(this.pending.removeFirst()));
+			this.dropped.incrementAndGet();
+		}
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				synchronized (this) {
+					while (this.pending.isEmpty()) {
+						wait();
+					}
+				}
+				// Real requests come first
+				awaitIdle(this.executor, Long.MAX_VALUE);
+				T next;
+				synchronized (this) {
+					next = this.pending.pollLast();
+					if (next == null) continue;
+					this.queued.remove(key(next));
+				}
+				try {
+					render(next);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Whether the render queue is empty and a render Thread has nothing to do
+	 */
+	static boolean isIdle(ThreadPoolExecutor executor) {
+		return executor.getQueue().isEmpty() && executor.getActiveCount() < executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * Waits until the render Threads are idle or the deadline (in milliseconds) has passed.
+	 * Returns whether they are idle.
+	 */
+	static boolean awaitIdle(ThreadPoolExecutor executor, long deadline) throws InterruptedException {
+		while (!isIdle(executor)) {
+			if (System.currentTimeMillis() > deadline) return false;
+			Thread.sleep(IDLE_WAIT);
+		}
+		return true;
+	}
+
+	public synchronized int getPending() {
+		return this.pending.size();
+	}
+
+	public long getDropped() {
+		return this.dropped.get();
+	}
+}
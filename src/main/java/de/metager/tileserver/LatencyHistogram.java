@@ -0,0 +1,80 @@
+package de.metager.tileserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author SumaEV
+ * A lock free histogram of durations in the style of HdrHistogram. Every power of two of microseconds
+ * is split into 8 buckets, so a percentile is never off by more than 12.5%, however far the values spread.
+ * Recording a value is a few atomic increments, cheap enough for every Tile and every request.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		this.counts.incrementAndGet(index(micros));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(micros);
+		long currentMax;
+		while (micros > (currentMax = this.max.get()) && !this.max.compareAndSet(currentMax, micros)) {
+		}
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Sum of all recorded values in microseconds
+	 */
+	public long getSum() {
+		return this.sum.get();
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * The value in microseconds that the given share (0 to 1) of the recorded values doesn't exceed
+	 */
+	public long getPercentile(double quantile) {
+		long total = this.count.get();
+		if (total == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= target) return Math.min(highestInBucket(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	static int index(long micros) {
+		if (micros < SUB_BUCKETS) return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowestInBucket(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		return (1L << exponent) | (sub << (exponent - SUB_BUCKET_BITS));
+	}
+
+	static long highestInBucket(int index) {
+		return index + 1 < BUCKETS ? lowestInBucket(index + 1) - 1 : Long.MAX_VALUE;
+	}
+}
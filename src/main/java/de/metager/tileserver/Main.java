@@ -2,40 +2,21 @@ package de.metager.tileserver;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.Files;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.commons.io.FileUtils;
 import org.mapsforge.core.graphics.GraphicFactory;
 import org.mapsforge.core.model.BoundingBox;
-import org.mapsforge.core.model.Rectangle;
 import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
 import org.mapsforge.map.datastore.MultiMapDataStore;
-import org.mapsforge.map.layer.cache.FileSystemTileCache;
-import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
 import org.mapsforge.map.model.DisplayModel;
-import org.mapsforge.map.reader.ReadBuffer;
-import org.mapsforge.map.rendertheme.ExternalRenderTheme;
 import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
 
 /**
@@ -68,6 +49,15 @@ import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
  */
 public class Main {
 
+	// How often a running prerendering writes a checkpoint it can be resumed from
+	private static final long CHECKPOINT_INTERVAL = 60000;
+	// Zoom levels 0 to PRERENDER_MAX_ZOOM get prerendered
+	private static final int PRERENDER_MAX_ZOOM = 13;
+	// Port of the PrerenderCoordinator
+	private static final int COORDINATOR_PORT = 63826;
+	// Threads of the Tileserver that render besides the render executor: Prefetcher, PrerenderScheduler and Revalidator
+	private static final int BACKGROUND_RENDER_THREADS = 3;
+
 	public static void main(String[] args) {
 		// We get supplied with a path to the tile_cache by the arguments
 		// If it's not a valid Path we won't start up this program
@@ -106,104 +96,277 @@ public class Main {
 		
 		//ReadBuffer.setMaximumBufferSize(65000000);
 		
+		// Tiles get rendered in blocks of metaTileSize x metaTileSize (1 disables MetaTiles)
+		int metaTileSize = Integer.getInteger("tileserver.metaTileSize", 4);
+		
 		// Create the needed resources to render Tiles
-		// Create the multimapDataStore
-		MultiMapDataStore mf = MapsforgeHelper.getMultiMapDataStore(mapFilePath);
+		// The Map Files and the Rendertheme form a RenderGeneration that can be replaced while the Tileserver is running.
+		// Every render Thread reads the map data with its own RenderContext, only the Rendertheme is shared.
+		// With tileserver.renderAffinity a Thread keeps its RenderContext instead of taking any free one
+		boolean renderAffinity = Boolean.getBoolean("tileserver.renderAffinity");
 		GraphicFactory GRAPHIC_FACTORY = AwtGraphicFactory.INSTANCE;
-		ExternalRenderTheme xmlRenderTheme = null;
+		DisplayModel displayModel = new DisplayModel();
+		displayModel.setFixedTileSize(256);
+		// The Tileserver has a RenderContext for every Thread that renders, so the background Threads never take
+		// one a request waits for and with thread affinity none of them takes one for good that a render Thread needs
+		boolean serving = !(args.length >= 5 && (args[4].equals("prerender") || args[4].equals("coordinate")))
+				&& !(args.length >= 6 && args[4].equals("work"));
+		int renderContexts = serving ? numberOfThreads + BACKGROUND_RENDER_THREADS : numberOfThreads;
+		RenderGeneration generation = null;
 		try {
-			xmlRenderTheme = new ExternalRenderTheme(renderThemeFile);
-		} catch (FileNotFoundException e) {
+			generation = RenderGeneration.load(1, mapFilePath, renderThemeFile, displayModel, GRAPHIC_FACTORY, renderContexts, renderAffinity);
+		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
-		DisplayModel displayModel = new DisplayModel();
-		displayModel.setFixedTileSize(256);
-		RenderThemeFuture renderThemeFuture = new RenderThemeFuture(GRAPHIC_FACTORY, xmlRenderTheme, displayModel);
-		new Thread(renderThemeFuture).start();
-
-		FileSystemTileCache tileCache = new FileSystemTileCache(0, tileCachePath, GRAPHIC_FACTORY, true);
-		DatabaseRenderer databaseRenderer = new DatabaseRenderer(mf, GRAPHIC_FACTORY, tileCache, null, true, false, null);
-		
 		
 		// Distinct whether this is a Tileserver process or a prerendering process:
-		if(args.length == 5 && args[4].equals("prerender")) {
-			prerender(numberOfThreads, mapFilePath, tileCachePath, mf, renderThemeFuture, displayModel, databaseRenderer, tileCache, GRAPHIC_FACTORY);
-		}else {
-			// Create the socket which will accept a new Connection
-			// Each connection will be a tilerequest
+		// An additional argument "incremental" makes the prerendering only render the Tiles whose map data changed
+		if(args.length >= 5 && args[4].equals("prerender")) {
+			boolean incremental = args.length >= 6 && args[5].equals("incremental");
+			prerender(numberOfThreads, metaTileSize, incremental, mapFilePath, renderThemeFile, tileCachePath, generation.getMapDataStore(),
+					generation.getRenderContexts(), generation.getRenderThemeFuture(), displayModel, GRAPHIC_FACTORY);
+		}else if(args.length >= 5 && args[4].equals("coordinate")) {
+			// A prerendering that is split between worker processes: "coordinate [port]" hands out the shards
+			// and writes the tileset, every worker needs the same Map Files and Rendertheme.
+			// Shards are the MetaTiles of zoom level tileserver.shardZoom with everything below them
+			int port = args.length >= 6 ? Integer.parseInt(args[5]) : COORDINATOR_PORT;
+			long seed;
 			try {
-				ServerSocket serverSocket = new ServerSocket(63825);
-				ThreadPoolExecutor executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads*2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingDeque<>());
-				while(true) {
-					if(Thread.interrupted()) break;
-					Socket clientSocket = serverSocket.accept();
-					executor.execute(
-							new TileRenderer(mf, renderThemeFuture, displayModel, databaseRenderer, tileCache, GRAPHIC_FACTORY, tileCachePath, clientSocket)
-							);
-				}
-				serverSocket.close();
+				seed = prerenderSeed(renderThemeFile, metaTileSize);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
 				e.printStackTrace();
+				return;
+			}
+			new PrerenderCoordinator(port, tileCachePath, MapsforgeHelper.generateBoundingBox(mapFilePath),
+					Integer.getInteger("tileserver.shardZoom", 8), PRERENDER_MAX_ZOOM, metaTileSize, seed,
+					Long.getLong("tileserver.leaseSeconds", 300) * 1000).run();
+		}else if(args.length >= 6 && args[4].equals("work")) {
+			// "work host[:port]" renders shards for the coordinator on the given host
+			String[] address = args[5].split(":");
+			int port = address.length >= 2 ? Integer.parseInt(address[1]) : COORDINATOR_PORT;
+			new PrerenderWorker(address[0], port, numberOfThreads, mapFilePath, generation.getRenderContexts(),
+					generation.getMapDataStore(), generation.getRenderThemeFuture(), displayModel, GRAPHIC_FACTORY).run();
+		}else {
+			// The TileServer accepts the connections, each connection will be a tilerequest
+			// Only Tiles that need to get rendered are handed to the executor
+			// The render queue is bounded and requests that waited too long get shed
+			RenderQueue renderQueue = new RenderQueue(Integer.getInteger("tileserver.renderQueueSize", numberOfThreads * 16));
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS, renderQueue, renderQueue);
+			TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer = new TileRequestCoalescer<>();
+			// Size of the in-memory Cache for encoded Tiles in MB
+			TileMemoryCache<RendererJob> memoryCache = new TileMemoryCache<>(Long.getLong("tileserver.memoryCacheMB", 256) * 1024 * 1024);
+			// New Map Files or a changed Rendertheme are picked up without a restart
+			// Tiles rendered on demand are kept on disk within tileserver.diskCacheMB (0 disables the disk Cache)
+			DiskTileCache diskCache = new DiskTileCache(new File(tileCachePath, "ondemand"),
+					Long.getLong("tileserver.diskCacheMB", 1024) * 1024 * 1024, DiskTileCache.signature(mapFilePath, renderThemeFile),
+					generation.getNumber());
+			if (diskCache.isEnabled()) {
+				Thread diskCacheThread = new Thread(diskCache);
+				diskCacheThread.setDaemon(true);
+				diskCacheThread.start();
+			}
+			// How often the Tiles that aren't prerendered get asked for and how long they take to render
+			AccessStats accessStats = new AccessStats(new File(tileCachePath, "access.stats"), metaTileSize,
+					Integer.getInteger("tileserver.accessStatsEntries", 1 << 20));
+			accessStats.load();
+			Thread accessStatsThread = new Thread(accessStats);
+			accessStatsThread.setDaemon(true);
+			accessStatsThread.start();
+			AtomicReference<RenderGeneration> currentGeneration = new AtomicReference<>(generation);
+			Thread watcher = new Thread(new GenerationWatcher(currentGeneration, memoryCache, diskCache, mapFilePath, renderThemeFile,
+					displayModel, GRAPHIC_FACTORY, renderContexts, renderAffinity));
+			watcher.setDaemon(true);
+			watcher.start();
+			// Optionally the neighbours and children of Tiles rendered on demand get rendered while the render Threads are idle.
+			// tileserver.prefetch is the number of MetaTiles that may wait for it (0 disables prefetching)
+			int prefetchBudget = Integer.getInteger("tileserver.prefetch", 0);
+			Prefetcher prefetcher = new Prefetcher(currentGeneration, executor, coalescer, memoryCache, diskCache, accessStats, displayModel,
+					GRAPHIC_FACTORY, metaTileSize, prefetchBudget, Integer.getInteger("tileserver.prefetchMinZoom", 13),
+					Integer.getInteger("tileserver.prefetchMaxZoom", 20));
+			if (prefetchBudget > 0) {
+				Thread prefetchThread = new Thread(prefetcher);
+				prefetchThread.setDaemon(true);
+				prefetchThread.setPriority(Thread.MIN_PRIORITY);
+				prefetchThread.start();
+			}
+			// Optionally the MetaTiles that save the most render time (requests x render time) get rendered into the
+			// disk Cache every tileserver.scheduleMinutes while the render Threads are idle. Each run stops after
+			// tileserver.scheduleBudgetMinutes (0 disables it) or tileserver.scheduleBudgetMB of new Tiles
+			long scheduleBudget = Long.getLong("tileserver.scheduleBudgetMinutes", 0) * 60 * 1000;
+			PrerenderScheduler scheduler = new PrerenderScheduler(currentGeneration, executor, coalescer, memoryCache, diskCache,
+					accessStats, displayModel, GRAPHIC_FACTORY, metaTileSize, Long.getLong("tileserver.scheduleMinutes", 60) * 60 * 1000,
+					scheduleBudget, Long.getLong("tileserver.scheduleBudgetMB", 256) * 1024 * 1024);
+			if (scheduleBudget > 0 && diskCache.isEnabled()) {
+				Thread schedulerThread = new Thread(scheduler);
+				schedulerThread.setDaemon(true);
+				schedulerThread.setPriority(Thread.MIN_PRIORITY);
+				schedulerThread.start();
 			}
+			long renderTimeout = Long.getLong("tileserver.renderTimeoutMillis", 30000);
+			// After the Map Files or the Rendertheme changed, the old Tiles of the disk Cache are served while up to
+			// tileserver.revalidateQueue of them wait to be rendered again in the background (0 renders them on demand instead)
+			Revalidator revalidator = new Revalidator(currentGeneration, executor, coalescer, memoryCache, diskCache, accessStats,
+					prefetcher, displayModel, GRAPHIC_FACTORY, metaTileSize, renderTimeout, Integer.getInteger("tileserver.revalidateQueue", 4096));
+			if (revalidator.isEnabled() && diskCache.isEnabled()) {
+				Thread revalidatorThread = new Thread(revalidator);
+				revalidatorThread.setDaemon(true);
+				revalidatorThread.setPriority(Thread.MIN_PRIORITY);
+				revalidatorThread.start();
+			}
+			new TileServer(63825, executor, currentGeneration, displayModel, GRAPHIC_FACTORY,
+					tileCachePath, coalescer, memoryCache, diskCache, accessStats, prefetcher, scheduler, revalidator, metaTileSize,
+					Long.getLong("tileserver.maxQueueMillis", 10000), renderTimeout).run();
 		}
 	}
 
-	private static void prerender(int processes, File mapFilePath, File outputdir, MultiMapDataStore mf, RenderThemeFuture renderThemeFuture, DisplayModel displayModel, DatabaseRenderer databaseRenderer, FileSystemTileCache tileCache, GraphicFactory gRAPHIC_FACTORY) {
+	private static void prerender(int processes, int metaTileSize, boolean incremental, File mapFilePath, File renderThemeFile, File outputdir, MultiMapDataStore mf, RenderContextPool renderContexts, RenderThemeFuture renderThemeFuture, DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY) {
 		// Find out which Bounding Box should get prerendered
 		BoundingBox bbox = MapsforgeHelper.generateBoundingBox(mapFilePath);
 
 		System.out.println("[" + Instant.now() + "] Starting prerendering with " + processes + " processes");
-		LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
-		ThreadPoolExecutor executor = new ThreadPoolExecutor(processes, processes, 0L, TimeUnit.MILLISECONDS, queue);
-		int startZoom = 0;
-		int endZoom = 13;
-		
-		int currentX = 0;
-		int currentY = 0;
-		
-		if(outputdir.exists()) {
+		// The MetaTiles are enumerated lazily and only a few of them wait in the queue at any time.
+		// When the queue is full, the enumeration blocks until a render Thread takes the next one.
+		ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(processes * 4);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(processes, processes, 0L, TimeUnit.MILLISECONDS, queue, (r, e) -> {
 			try {
-				FileUtils.deleteDirectory(outputdir);
-			} catch (IOException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+				e.getQueue().put(r);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
 			}
+		});
+		int startZoom = 0;
+		int endZoom = PRERENDER_MAX_ZOOM;
+		// With downsampling only endZoom and the zoom levels given in tileserver.vectorZooms ("0,5,9") get rendered
+		// from the map data, the others are built from the Tiles below them once the rendering is done.
+		boolean downsample = Boolean.getBoolean("tileserver.downsample");
+		boolean[] vectorZooms = new boolean[endZoom + 1];
+		vectorZooms[endZoom] = true;
+		for(String zoom : System.getProperty("tileserver.vectorZooms", "").split(",")) {
+			if(!zoom.trim().isEmpty() && Integer.parseInt(zoom.trim()) <= endZoom)
+				vectorZooms[Integer.parseInt(zoom.trim())] = true;
 		}
 		
-		
-		
-		for(int currentZoom = startZoom; currentZoom <= endZoom; currentZoom++) {
-			for(int x = 0; x <= currentX; x++) {
-				for(int y = 0; y <= currentY; y++) {
-					// Check if this Tile should get rendered
-					org.mapsforge.core.model.Tile tile = new org.mapsforge.core.model.Tile(x, y, (byte)currentZoom, 256);
-					Rectangle rect = bbox.getPositionRelativeToTile(tile);
-					if(rect.left > 256 || rect.top > 256 || rect.right < 0 || rect.bottom < 0) continue;
-					File outputFile = new File(outputdir, currentZoom + File.separator + x + File.separator + y + ".png");
-					TileWriter writer = new TileWriter(currentZoom + ";" + x + ";" + y,
-							outputFile, mf, renderThemeFuture, displayModel, databaseRenderer, tileCache, gRAPHIC_FACTORY);
-					executor.execute(writer);
+		// The new Tiles get written into a packed tileset which replaces the old one when we're done.
+		// Until then the Tileserver keeps serving the old Tiles.
+		// In incremental mode the existing tileset gets updated in place instead and only
+		// the MetaTiles whose map data changed get rendered again.
+		// If a checkpoint of an interrupted prerendering is there, we continue at that point.
+		File packFile = new File(outputdir, TileServer.PRERENDERED_FILE);
+		PrerenderProgress progress = new PrerenderProgress(new File(outputdir, TileServer.PRERENDERED_FILE + ".progress"), incremental, metaTileSize);
+		long resumeFrom = progress.load();
+		PackedTileWriter output = null;
+		long seed;
+		try {
+			seed = prerenderSeed(renderThemeFile, metaTileSize);
+			if(incremental && packFile.exists()) {
+				output = PackedTileWriter.openExisting(packFile);
+				if(output.getMaxZoom() != endZoom) {
+					System.out.println("[" + Instant.now() + "] Existing tileset has a different zoom range, rendering everything");
+					output.close();
+					output = null;
+				}
+			} else if(!incremental && resumeFrom > 0) {
+				output = PackedTileWriter.resume(packFile);
+				if(output != null && output.getMaxZoom() != endZoom) {
+					output.close();
+					output = null;
 				}
 			}
-			currentX = (currentX * 2) + 1;
-			currentY = (currentY * 2) + 1;
+			if(output == null) {
+				output = new PackedTileWriter(packFile, endZoom);
+				resumeFrom = 0;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if(resumeFrom > 0)
+			System.out.println("[" + Instant.now() + "] Resuming prerendering at zoom " + (resumeFrom >>> 48));
+		
+		// Each Job renders a whole MetaTile
+		UniformTiles uniformTiles = new UniformTiles(metaTileSize, MapsforgeHelper.getSubFileMaxZooms(mapFilePath, endZoom), mf, renderThemeFuture, displayModel, gRAPHIC_FACTORY);
+		if(resumeFrom > 0)
+			progress.loadPruned(uniformTiles);
+		TileEnumerator metaTiles = new TileEnumerator(bbox, startZoom, endZoom, metaTileSize, resumeFrom, uniformTiles);
+		long lastCheckpoint = System.currentTimeMillis();
+		int currentZoom = -1;
+		while(metaTiles.hasNext()) {
+			TileEnumerator.Position metaTile = metaTiles.next();
+			if(downsample && !vectorZooms[metaTile.z])
+				continue;
+			if(metaTile.z != currentZoom) {
+				currentZoom = metaTile.z;
+				System.out.println("[" + Instant.now() + "] Prerendering zoom " + currentZoom);
+			}
+			progress.started(metaTile.order);
+			int size = MetaTile.sizeForZoom(metaTileSize, metaTile.z);
+			TileWriter writer = new TileWriter(metaTile.x, metaTile.y, metaTile.z, size, output, seed, progress, metaTile.order, uniformTiles, renderContexts, mf, renderThemeFuture, displayModel, gRAPHIC_FACTORY);
+			executor.execute(writer);
+			if(System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL) {
+				lastCheckpoint = System.currentTimeMillis();
+				saveProgress(progress, output, uniformTiles);
+			}
 		}
 		
 		executor.shutdown();
-		int queuedProcesses = 0;
 		try {
-			while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
-				if(queue.size() != queuedProcesses) {
-					queuedProcesses = queue.size();
-					System.out.println("[" + Instant.now() + "] " + Integer.toString(queuedProcesses) + " Tiles remaining.");
+			while(!executor.awaitTermination(CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS)) {
+				saveProgress(progress, output, uniformTiles);
+			}
+		} catch (InterruptedException e) {
+			// Stopped before every MetaTile is written. The tileset must not be finished like this,
+			// the checkpoint lets the next run resume it.
+			saveProgress(progress, output, uniformTiles);
+			System.err.println("[" + Instant.now() + "] Prerendering interrupted, run it again to resume it");
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if(progress.getFailed() > 0) {
+			// The checkpoint stays in front of the first MetaTile that failed. A full prerendering is not
+			// finished, its tileset doesn't replace the old one and the next run resumes it.
+			saveProgress(progress, output, uniformTiles);
+			System.err.println("[" + Instant.now() + "] " + progress.getFailed() + " MetaTiles failed, run the prerendering again to resume it");
+			if(incremental) {
+				// Updated in place, the hashes of the failed MetaTiles weren't written so they get rendered again anyway
+				try {
+					output.close();
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 			}
+			return;
+		}
+		try {
+			if(downsample) {
+				// Runs again on resume, the rendered zoom levels are all done by then
+				saveProgress(progress, output, uniformTiles);
+				new Downsampler(output, bbox, metaTileSize, vectorZooms, processes).run(endZoom);
+			}
+			output.close();
+			progress.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
 		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
+			e.printStackTrace();
+			return;
+		}
+		System.out.println("[" + Instant.now() + "] Finished, " + uniformTiles.getPrunedTiles() + " Tiles below open sea were not rendered");
+	}
+
+	/**
+	 * Seed of the map data hashes. A different Rendertheme or MetaTile size changes every Tile
+	 */
+	private static long prerenderSeed(File renderThemeFile, int metaTileSize) throws IOException {
+		return MapDataHasher.hash(Files.readAllBytes(renderThemeFile.toPath())) * 31 + metaTileSize;
+	}
+
+	private static void saveProgress(PrerenderProgress progress, PackedTileWriter output, UniformTiles uniformTiles) {
+		try {
+			progress.save(output, uniformTiles);
+			System.out.println("[" + Instant.now() + "] " + progress.getFinished() + " MetaTiles done, checkpoint at zoom " + (progress.getCheckpoint() >>> 48));
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		System.out.println("[" + Instant.now() + "] Finished");
 	}
 }
@@ -0,0 +1,214 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PoiWayBundle;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+
+/**
+ * @author SumaEV
+ * Decoded map data shared by all RenderContexts of a RenderGeneration. A Map File stores its data in blocks
+ * of a base zoom level and every read of an area above that zoom level decodes the whole block, so the
+ * MetaTiles next to each other within a block decode the same data over and over again. This Cache keeps the
+ * decoded block by its Tile on the base zoom level and the zoom level it was read for (the Map File leaves out
+ * what is not shown on that zoom level). Reads of an area within one block are cut out of the cached block,
+ * everything else is read from the Map Files as before. The capacity is given in (estimated) bytes, the least
+ * recently used blocks are evicted first.
+ */
+public class MapDataCache {
+
+	private static final class Block {
+		final MapReadResult data;
+		// Bounding Box of every Way as {minLat, minLon, maxLat, maxLon}
+		final double[][] wayBounds;
+		final long size;
+
+		Block(MapReadResult data) {
+			this.data = data;
+			long size = 64;
+			this.wayBounds = new double[data.ways.size()][];
+			for (int i = 0; i < this.wayBounds.length; i++) {
+				Way way = data.ways.get(i);
+				double[] bounds = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+				for (LatLong[] segment : way.latLongs) {
+					for (LatLong latLong : segment) {
+						bounds[0] = Math.min(bounds[0], latLong.latitude);
+						bounds[1] = Math.min(bounds[1], latLong.longitude);
+						bounds[2] = Math.max(bounds[2], latLong.latitude);
+						bounds[3] = Math.max(bounds[3], latLong.longitude);
+					}
+					size += 16 + 40L * segment.length;
+				}
+				this.wayBounds[i] = bounds;
+				size += 96 + tagsSize(way.tags);
+			}
+			for (PointOfInterest poi : data.pointOfInterests) {
+				size += 96 + tagsSize(poi.tags);
+			}
+			this.size = size;
+		}
+
+		private static long tagsSize(List<Tag> tags) {
+			long size = 0;
+			for (Tag tag : tags) {
+				size += 64 + 2L * (tag.key.length() + tag.value.length());
+			}
+			return size;
+		}
+
+		/**
+		 * The Ways and POIs that are within the Bounding Box or less than a margin away from it
+		 */
+		MapReadResult cut(BoundingBox bbox, double marginLat, double marginLon) {
+			double minLat = bbox.minLatitude - marginLat;
+			double minLon = bbox.minLongitude - marginLon;
+			double maxLat = bbox.maxLatitude + marginLat;
+			double maxLon = bbox.maxLongitude + marginLon;
+			List<Way> ways = new ArrayList<>();
+			for (int i = 0; i < this.wayBounds.length; i++) {
+				double[] bounds = this.wayBounds[i];
+				if (bounds[0] <= maxLat && bounds[2] >= minLat && bounds[1] <= maxLon && bounds[3] >= minLon) {
+					ways.add(this.data.ways.get(i));
+				}
+			}
+			List<PointOfInterest> pois = new ArrayList<>();
+			for (PointOfInterest poi : this.data.pointOfInterests) {
+				LatLong position = poi.position;
+				if (position.latitude <= maxLat && position.latitude >= minLat && position.longitude <= maxLon
+						&& position.longitude >= minLon) {
+					pois.add(poi);
+				}
+			}
+			MapReadResult result = new MapReadResult();
+			result.add(new PoiWayBundle(pois, ways));
+			// Only known for the whole block. A cut-out is only called water if nothing at all is drawn on it,
+			// otherwise the Tile gets rendered (see UniformTiles)
+			result.isWater = this.data.isWater && ways.isEmpty() && pois.isEmpty();
+			return result;
+		}
+	}
+
+	private final long capacity;
+	// Base zoom level of the blocks by the zoom level they are read for
+	private final int[] baseZooms;
+	private long size = 0;
+	// Access ordered so the eldest entry is always the least recently used one
+	private final LinkedHashMap<Long, Block> blocks = new LinkedHashMap<>(256, 0.75f, true);
+	private final TileRequestCoalescer<Long, Block> coalescer = new TileRequestCoalescer<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * A capacity of 0 disables the Cache
+	 */
+	public MapDataCache(File mapFileDir, long capacity) {
+		this(capacity > 0 ? MapsforgeHelper.getBaseZooms(mapFileDir, 25) : new int[0], capacity);
+	}
+
+	/**
+	 * Takes the base zoom level of the blocks by the zoom level they are read for instead of the Map Files
+	 */
+	MapDataCache(int[] baseZooms, long capacity) {
+		this.capacity = capacity;
+		this.baseZooms = baseZooms;
+	}
+
+	/**
+	 * Reads the map data of the area from upperLeft to lowerRight with the given reader,
+	 * or cuts it out of the cached block it lies in.
+	 */
+	public MapReadResult readMapData(MapDataStore reader, Tile upperLeft, Tile lowerRight) {
+		int z = upperLeft.zoomLevel;
+		if (z >= this.baseZooms.length || z <= this.baseZooms[z]) return reader.readMapData(upperLeft, lowerRight);
+		int baseZoom = this.baseZooms[z];
+		int shift = z - baseZoom;
+		int blockX = upperLeft.tileX >> shift;
+		int blockY = upperLeft.tileY >> shift;
+		if (lowerRight.tileX >> shift != blockX || lowerRight.tileY >> shift != blockY) return reader.readMapData(upperLeft, lowerRight);
+
+		long key = ((long) z << 59) | ((long) baseZoom << 54) | ((long) blockX << 27) | blockY;
+		Block block = get(key);
+		if (block == null) {
+			this.misses.incrementAndGet();
+			// Threads that need the same block wait for the one that reads it
+			block = this.coalescer.render(key, () -> {
+				MapReadResult data = reader.readMapData(new Tile(blockX << shift, blockY << shift, (byte) z, upperLeft.tileSize),
+						new Tile(((blockX + 1) << shift) - 1, ((blockY + 1) << shift) - 1, (byte) z, upperLeft.tileSize));
+				if (data == null) return null;
+				Block read = new Block(data);
+				put(key, read);
+				return read;
+			});
+			if (block == null) return reader.readMapData(upperLeft, lowerRight);
+		} else {
+			this.hits.incrementAndGet();
+		}
+		// The same margin the BlockMapDataStore uses for its Tiles
+		BoundingBox tile = upperLeft.getBoundingBox();
+		return block.cut(Tile.getBoundingBox(upperLeft, lowerRight), tile.getLatitudeSpan() / 4, tile.getLongitudeSpan() / 4);
+	}
+
+	private synchronized Block get(long key) {
+		return this.blocks.get(key);
+	}
+
+	private synchronized void put(long key, Block block) {
+		// A block bigger than the whole Cache would just evict everything else
+		if (block.size > this.capacity) return;
+		Block previous = this.blocks.put(key, block);
+		if (previous != null) this.size -= previous.size;
+		this.size += block.size;
+
+		Iterator<Map.Entry<Long, Block>> it = this.blocks.entrySet().iterator();
+		while (this.size > this.capacity && it.hasNext()) {
+			Map.Entry<Long, Block> eldest = it.next();
+			this.size -= eldest.getValue().size;
+			it.remove();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized void clear() {
+		this.blocks.clear();
+		this.size = 0;
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	public synchronized int getCount() {
+		return this.blocks.size();
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+}
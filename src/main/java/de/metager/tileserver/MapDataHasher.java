@@ -0,0 +1,79 @@
+package de.metager.tileserver;
+
+import java.util.List;
+
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+
+/**
+ * @author SumaEV
+ * Computes 64 bit hashes of the map data that a Tile is rendered from.
+ * If the hash of a Tile didn't change after a map update, the Tile would look exactly the same
+ * and doesn't need to get rendered again. 0 is never returned, it stands for "unknown".
+ */
+public class MapDataHasher {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	public static long hash(MapReadResult mapReadResult, long seed) {
+		long hash = mix(FNV_OFFSET, seed);
+		if (mapReadResult == null) return nonZero(hash);
+		hash = mix(hash, mapReadResult.isWater ? 1 : 0);
+		for (PointOfInterest poi : mapReadResult.pointOfInterests) {
+			hash = mix(hash, poi.layer);
+			hash = mix(hash, poi.position);
+			hash = mix(hash, poi.tags);
+		}
+		for (Way way : mapReadResult.ways) {
+			hash = mix(hash, way.layer);
+			hash = mix(hash, way.tags);
+			hash = mix(hash, way.labelPosition);
+			for (LatLong[] segment : way.latLongs) {
+				hash = mix(hash, segment.length);
+				for (LatLong latLong : segment) {
+					hash = mix(hash, latLong);
+				}
+			}
+		}
+		return nonZero(hash);
+	}
+
+	public static long hash(byte[] data) {
+		long hash = FNV_OFFSET;
+		for (byte b : data) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		return nonZero(hash);
+	}
+
+	private static long mix(long hash, long value) {
+		for (int i = 0; i < 8; i++) {
+			hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+			value >>>= 8;
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, LatLong latLong) {
+		if (latLong == null) return mix(hash, 0);
+		hash = mix(hash, Double.doubleToLongBits(latLong.latitude));
+		return mix(hash, Double.doubleToLongBits(latLong.longitude));
+	}
+
+	private static long mix(long hash, List<Tag> tags) {
+		hash = mix(hash, tags.size());
+		for (Tag tag : tags) {
+			hash = mix(hash, tag.key == null ? 0 : tag.key.hashCode());
+			hash = mix(hash, tag.value == null ? 0 : tag.value.hashCode());
+		}
+		return hash;
+	}
+
+	private static long nonZero(long hash) {
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -8,6 +8,7 @@ import org.mapsforge.map.datastore.MultiMapDataStore;
 import org.mapsforge.map.datastore.MultiMapDataStore.DataPolicy;
 import org.mapsforge.map.reader.MapFile;
 import org.mapsforge.map.reader.header.MapFileException;
+import org.mapsforge.map.reader.header.MapFileHeader;
 
 public class MapsforgeHelper {
 
@@ -55,4 +56,70 @@ public class MapsforgeHelper {
 		}
 	}
 
+	/**
+	 * Map Files are split into sub-files for ranges of zoom levels. Within a sub-file the map data of a zoom level
+	 * contains everything of the lower zoom levels. For every zoom level up to maxZoom this returns the highest
+	 * zoom level which is still read from the same sub-file in all of the Map Files.
+	 */
+	public static int[] getSubFileMaxZooms(File mapFileDir, int maxZoom) {
+		int[] maxZooms = new int[maxZoom + 1];
+		for(int z = 0; z <= maxZoom; z++) {
+			maxZooms[z] = maxZoom;
+		}
+		File[] mapFiles = mapFileDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				return pathname.isFile() && pathname.getName().toLowerCase().endsWith(".map");
+			}
+		});
+		for(File mapFile : mapFiles) {
+			MapFile map = null;
+			try {
+				map = new MapFile(mapFile);
+				MapFileHeader header = map.getMapFileHeader();
+				for(int z = 0; z <= maxZoom; z++) {
+					int subFileMax = header.getSubFileParameter(header.getQueryZoomLevel((byte) z)).zoomLevelMax;
+					maxZooms[z] = Math.max(z, Math.min(maxZooms[z], subFileMax));
+				}
+			}catch(MapFileException e) {
+				System.err.println("Couldn't load " + mapFile.getAbsolutePath());
+			}finally {
+				if(map != null) map.close();
+			}
+		}
+		return maxZooms;
+	}
+
+	/**
+	 * For every zoom level up to maxZoom this returns the base zoom level of the sub-file it is read from,
+	 * the lowest one of all Map Files. The Map Files store their data in blocks of one Tile on that zoom level.
+	 */
+	public static int[] getBaseZooms(File mapFileDir, int maxZoom) {
+		int[] baseZooms = new int[maxZoom + 1];
+		for(int z = 0; z <= maxZoom; z++) {
+			baseZooms[z] = z;
+		}
+		File[] mapFiles = mapFileDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				return pathname.isFile() && pathname.getName().toLowerCase().endsWith(".map");
+			}
+		});
+		for(File mapFile : mapFiles) {
+			MapFile map = null;
+			try {
+				map = new MapFile(mapFile);
+				MapFileHeader header = map.getMapFileHeader();
+				for(int z = 0; z <= maxZoom; z++) {
+					baseZooms[z] = Math.min(baseZooms[z], header.getSubFileParameter(header.getQueryZoomLevel((byte) z)).baseZoomLevel);
+				}
+			}catch(MapFileException e) {
+				System.err.println("Couldn't load " + mapFile.getAbsolutePath());
+			}finally {
+				if(map != null) map.close();
+			}
+		}
+		return baseZooms;
+	}
+
 }
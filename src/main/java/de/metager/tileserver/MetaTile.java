@@ -0,0 +1,311 @@
+package de.metager.tileserver;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Filter;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Matrix;
+import org.mapsforge.core.mapelements.MapElementContainer;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.awt.graphics.AwtTileBitmap;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+import org.mapsforge.map.layer.cache.InMemoryTileCache;
+import org.mapsforge.map.layer.labels.TileBasedLabelStore;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+/**
+ * @author SumaEV
+ * A block of size x size Tiles that gets rendered as one unit.
+ * The map data for the whole block is only read once and the Tiles are rendered one after another
+ * with a renderer that knows about the already rendered Tiles of the block. That way labels that cross
+ * the edge between two Tiles of the block get drawn on both of them instead of being cut off.
+ * With a SharedLabelStore the labels are placed for the whole block at once and the ones that cross the
+ * edge to a neighbouring MetaTile are drawn there as well.
+ * Tiles of a single colour (open sea, empty land) don't get compressed again and again,
+ * all of them share the same PNG.
+ */
+public class MetaTile {
+	// PNGs of single coloured Tiles by their size and ARGB colour
+	private static final Map<Long, byte[]> UNIFORM_PNGS = new ConcurrentHashMap<>();
+	private static final int MAX_UNIFORM_PNGS = 256;
+
+	private MultiMapDataStore mf;
+	private MapDataStore reader;
+	private RenderThemeFuture renderThemeFuture;
+	private DisplayModel displayModel;
+	private GraphicFactory GRAPHIC_FACTORY;
+	private int minX;
+	private int minY;
+	private int z;
+	private int size;
+	private BlockMapDataStore blockMapDataStore;
+	// False if the last rendering stopped at its deadline
+	private boolean complete = true;
+
+	/**
+	 * Creates the MetaTile which contains the Tile x, y, z.
+	 */
+	public MetaTile(int x, int y, int z, int size, MultiMapDataStore mf, RenderThemeFuture renderThemeFuture,
+			DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY) {
+		this(x, y, z, size, mf, mf, renderThemeFuture, displayModel, gRAPHIC_FACTORY);
+	}
+
+	/**
+	 * Creates the MetaTile which contains the Tile x, y, z. The map data is read with the reader
+	 * (see RenderContext), mf still identifies the Tiles.
+	 */
+	public MetaTile(int x, int y, int z, int size, MultiMapDataStore mf, MapDataStore reader,
+			RenderThemeFuture renderThemeFuture, DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY) {
+		this.size = sizeForZoom(size, z);
+		this.minX = x - (x % this.size);
+		this.minY = y - (y % this.size);
+		this.z = z;
+		this.mf = mf;
+		this.reader = reader;
+		this.renderThemeFuture = renderThemeFuture;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+	}
+
+	/**
+	 * The edge length of MetaTiles on the given zoom level. MetaTiles have to line up with the
+	 * Tile grid, so this is always a power of two, and on low zoom levels the whole map has less Tiles than a MetaTile.
+	 */
+	public static int sizeForZoom(int size, int z) {
+		return Math.min(Integer.highestOneBit(Math.max(1, size)), 1 << z);
+	}
+
+	public int getMinX() {
+		return minX;
+	}
+
+	public int getMinY() {
+		return minY;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getZoom() {
+		return z;
+	}
+
+	/**
+	 * The MapDataStore this MetaTile reads its map data from
+	 */
+	public MapDataStore getMapDataStore() {
+		return reader;
+	}
+
+	/**
+	 * The RendererJob of the upper left Tile which identifies the whole MetaTile.
+	 */
+	public RendererJob getRendererJob() {
+		return createRendererJob(this.minX, this.minY);
+	}
+
+	/**
+	 * The RendererJob of the Tile x, y. The Tiles are as big as the DisplayModel says (see TileVariant).
+	 */
+	public RendererJob createRendererJob(int x, int y) {
+		org.mapsforge.core.model.Tile tile = new org.mapsforge.core.model.Tile(x, y, (byte) this.z, this.displayModel.getTileSize());
+		return new RendererJob(tile, this.mf, this.renderThemeFuture, this.displayModel, (float) 1, false, false);
+	}
+
+	/**
+	 * Hash of the map data of this MetaTile. Labels don't cross the edges of a MetaTile,
+	 * so it only needs to get rendered again if this hash changes.
+	 */
+	public long getDataHash(long seed) {
+		BlockMapDataStore block = getBlockMapDataStore();
+		return MapDataHasher.hash(block == null ? null : block.getBlock(), seed);
+	}
+
+	/**
+	 * True if this MetaTile lies completely within the map and there is nothing but water in it
+	 */
+	public boolean isOpenSea() {
+		BlockMapDataStore block = getBlockMapDataStore();
+		MapReadResult data = block == null ? null : block.getBlock();
+		if (data == null || !data.isWater || !data.ways.isEmpty() || !data.pointOfInterests.isEmpty()) {
+			return false;
+		}
+		BoundingBox area = org.mapsforge.core.model.Tile.getBoundingBox(
+				new org.mapsforge.core.model.Tile(this.minX, this.minY, (byte) this.z, 256),
+				new org.mapsforge.core.model.Tile(this.minX + this.size - 1, this.minY + this.size - 1, (byte) this.z, 256));
+		BoundingBox map = this.mf.boundingBox();
+		return map.contains(area.minLatitude, area.minLongitude) && map.contains(area.maxLatitude, area.maxLongitude);
+	}
+
+	private BlockMapDataStore getBlockMapDataStore() {
+		if (this.blockMapDataStore == null) {
+			org.mapsforge.core.model.Tile upperLeft = new org.mapsforge.core.model.Tile(this.minX, this.minY, (byte) this.z, 256);
+			org.mapsforge.core.model.Tile lowerRight = new org.mapsforge.core.model.Tile(this.minX + this.size - 1,
+					this.minY + this.size - 1, (byte) this.z, 256);
+			if (!this.mf.boundingBox().intersects(org.mapsforge.core.model.Tile.getBoundingBox(upperLeft, lowerRight))) {
+				return null;
+			}
+			long start = System.nanoTime();
+			this.blockMapDataStore = new BlockMapDataStore(this.reader, upperLeft, lowerRight);
+			Metrics.INSTANCE.record(Metrics.Phase.READ, this.z, System.nanoTime() - start);
+		}
+		return this.blockMapDataStore;
+	}
+
+	/**
+	 * Whether the last rendering got to every Tile before its deadline
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	/**
+	 * Renders every supported Tile of this MetaTile and returns the PNGs by their RendererJob.
+	 */
+	public Map<RendererJob, byte[]> render() {
+		return render(null, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Renders every supported Tile of this MetaTile and returns the PNGs by their RendererJob.
+	 * The labels are placed with the given SharedLabelStore, without one they don't cross the edges of the MetaTile.
+	 * No more Tiles are started after the deadline (System.currentTimeMillis()), only the ones done until then are returned.
+	 */
+	public Map<RendererJob, byte[]> render(SharedLabelStore labelStore, long deadline) {
+		Map<RendererJob, byte[]> tiles = new LinkedHashMap<>();
+		BlockMapDataStore block = getBlockMapDataStore();
+		if (block == null) {
+			return tiles;
+		}
+
+		// The renderer takes the labels of neighbours that are in its TileCache into account,
+		// unless the labels are left to the SharedLabelStore
+		InMemoryTileCache renderedTiles = new InMemoryTileCache(this.size * this.size);
+		LabelCollector labels = labelStore == null ? null : new LabelCollector();
+		DatabaseRenderer renderer = new DatabaseRenderer(block, this.GRAPHIC_FACTORY, renderedTiles, labels, labels == null,
+				false, null);
+		Map<RendererJob, AwtTileBitmap> bitmaps = new LinkedHashMap<>();
+		this.renderThemeFuture.incrementRefCount();
+		try {
+			rows: for (int y = this.minY; y < this.minY + this.size; y++) {
+				for (int x = this.minX; x < this.minX + this.size; x++) {
+					RendererJob rendererJob = createRendererJob(x, y);
+					if (!this.mf.supportsTile(rendererJob.tile)) continue;
+					// A single Tile can't be stopped once it is started
+					if (System.currentTimeMillis() > deadline) {
+						this.complete = false;
+						break rows;
+					}
+					long start = System.nanoTime();
+					AwtTileBitmap tileImage = (AwtTileBitmap) renderer.executeJob(rendererJob);
+					Metrics.INSTANCE.record(Metrics.Phase.RENDER, this.z, System.nanoTime() - start);
+					if (tileImage == null) continue;
+					bitmaps.put(rendererJob, tileImage);
+					renderedTiles.put(rendererJob, tileImage);
+				}
+			}
+			if (labels != null && !bitmaps.isEmpty()) {
+				long start = System.nanoTime();
+				List<org.mapsforge.core.model.Tile> placed = new ArrayList<>();
+				for (RendererJob rendererJob : bitmaps.keySet()) {
+					placed.add(rendererJob.tile);
+				}
+				drawLabels(bitmaps, labelStore.place(placed, labels.getLabels()));
+				Metrics.INSTANCE.record(Metrics.Phase.RENDER, this.z, System.nanoTime() - start);
+			}
+			for (Map.Entry<RendererJob, AwtTileBitmap> entry : bitmaps.entrySet()) {
+				BufferedImage image = AwtGraphicFactory.getBitmap(entry.getValue());
+				Integer colour = uniformColour(image);
+				Long uniform = colour == null ? null : (long) image.getWidth() << 32 | (colour & 0xFFFFFFFFL);
+				byte[] png = uniform == null ? null : UNIFORM_PNGS.get(uniform);
+				if (png == null) {
+					long start = System.nanoTime();
+					png = PngEncoder.DEFAULT.encode(image);
+					Metrics.INSTANCE.record(Metrics.Phase.ENCODE, this.z, System.nanoTime() - start);
+					if (colour != null && UNIFORM_PNGS.size() < MAX_UNIFORM_PNGS) UNIFORM_PNGS.putIfAbsent(uniform, png);
+				}
+				tiles.put(entry.getKey(), png);
+			}
+		} finally {
+			renderedTiles.destroy();
+			this.renderThemeFuture.decrementRefCount();
+		}
+		return tiles;
+	}
+
+	/**
+	 * Draws every label onto the Tiles it reaches into, the ones with the lowest priority first
+	 * so the more important ones end up on top (like the renderer does it).
+	 */
+	private void drawLabels(Map<RendererJob, AwtTileBitmap> bitmaps, Set<MapElementContainer> labels) {
+		List<MapElementContainer> ordered = new ArrayList<>(labels);
+		Collections.sort(ordered);
+		Canvas canvas = this.GRAPHIC_FACTORY.createCanvas();
+		Matrix matrix = this.GRAPHIC_FACTORY.createMatrix();
+		try {
+			for (Map.Entry<RendererJob, AwtTileBitmap> entry : bitmaps.entrySet()) {
+				org.mapsforge.core.model.Tile tile = entry.getKey().tile;
+				canvas.setBitmap(entry.getValue());
+				for (MapElementContainer label : ordered) {
+					if (label.intersects(tile.getBoundaryAbsolute())) label.draw(canvas, tile.getOrigin(), matrix, Filter.NONE);
+				}
+			}
+		} finally {
+			canvas.destroy();
+		}
+	}
+
+	/**
+	 * Collects the labels the renderer found for the Tiles of the MetaTile instead of drawing them
+	 */
+	private static final class LabelCollector extends TileBasedLabelStore {
+		private static final long serialVersionUID = 1L;
+
+		private final Set<MapElementContainer> labels = new LinkedHashSet<>();
+
+		LabelCollector() {
+			super(1);
+		}
+
+		@Override
+		public synchronized void storeMapItems(org.mapsforge.core.model.Tile tile, List<MapElementContainer> mapItems) {
+			this.labels.addAll(mapItems);
+		}
+
+		synchronized Set<MapElementContainer> getLabels() {
+			return this.labels;
+		}
+	}
+
+	/**
+	 * Returns the colour of the image if every pixel has the same one, null otherwise
+	 */
+	static Integer uniformColour(BufferedImage image) {
+		int width = image.getWidth();
+		int colour = image.getRGB(0, 0);
+		int[] row = new int[width];
+		for (int y = 0; y < image.getHeight(); y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int pixel : row) {
+				if (pixel != colour) return null;
+			}
+		}
+		return colour;
+	}
+}
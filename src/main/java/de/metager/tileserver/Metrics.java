@@ -0,0 +1,112 @@
+package de.metager.tileserver;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author SumaEV
+ * Runtime metrics of the Tileserver: latency histograms for every phase of a Tile on every zoom level
+ * and counters for where the requests were answered from. MetaTiles are created in many places,
+ * so there is a single instance that everything records into.
+ * The TileServer prints them with the gauges of the memory Cache and the render queue as answer to the
+ * "stats" request, one "name{labels} value" line per value so they can be scraped as plain text metrics.
+ */
+public class Metrics {
+
+	public static final Metrics INSTANCE = new Metrics();
+
+	private static final int MAX_ZOOM = 21;
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	public enum Phase {
+		// Waiting in the render queue
+		QUEUE,
+		// Reading the map data of a MetaTile
+		READ,
+		// Drawing a single Tile
+		RENDER,
+		// Compressing a single Tile to PNG
+		ENCODE,
+		// Writing a Tile to the packed tileset or to the client
+		WRITE,
+		// From the complete request line until the last byte of the response is written
+		REQUEST
+	}
+
+	public enum Source {
+		MEMORY, PACKED, DISK, STALE, RENDERED, BUSY, FAILED, TIMEOUT, ABANDONED, INVALID
+	}
+
+	private final LatencyHistogram[][] histograms = new LatencyHistogram[Phase.values().length][MAX_ZOOM + 1];
+	private final AtomicLong[] requests = new AtomicLong[Source.values().length];
+
+	private Metrics() {
+		for (LatencyHistogram[] zooms : this.histograms) {
+			for (int z = 0; z <= MAX_ZOOM; z++) {
+				zooms[z] = new LatencyHistogram();
+			}
+		}
+		for (int i = 0; i < this.requests.length; i++) {
+			this.requests[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Records how long the given phase took for a Tile on zoom level z, measured with System.nanoTime()
+	 */
+	public void record(Phase phase, int z, long nanos) {
+		this.histograms[phase.ordinal()][Math.max(0, Math.min(MAX_ZOOM, z))].record(nanos);
+	}
+
+	public void count(Source source) {
+		this.requests[source.ordinal()].incrementAndGet();
+	}
+
+	public long getRequests(Source source) {
+		return this.requests[source.ordinal()].get();
+	}
+
+	public LatencyHistogram getHistogram(Phase phase, int z) {
+		return this.histograms[phase.ordinal()][z];
+	}
+
+	/**
+	 * Appends every counter and the percentiles of every histogram that recorded anything. Durations are in seconds.
+	 */
+	public void format(StringBuilder out) {
+		for (Source source : Source.values()) {
+			line(out, "tileserver_requests_total{source=\"" + name(source) + "\"}", getRequests(source));
+		}
+		for (Phase phase : Phase.values()) {
+			for (int z = 0; z <= MAX_ZOOM; z++) {
+				LatencyHistogram histogram = getHistogram(phase, z);
+				long count = histogram.getCount();
+				if (count == 0) continue;
+				String labels = "phase=\"" + name(phase) + "\",zoom=\"" + z + "\"";
+				for (double quantile : QUANTILES) {
+					line(out, "tileserver_latency_seconds{" + labels + ",quantile=\"" + quantile + "\"}",
+							seconds(histogram.getPercentile(quantile)));
+				}
+				line(out, "tileserver_latency_seconds_max{" + labels + "}", seconds(histogram.getMax()));
+				line(out, "tileserver_latency_seconds_sum{" + labels + "}", seconds(histogram.getSum()));
+				line(out, "tileserver_latency_seconds_count{" + labels + "}", count);
+			}
+		}
+	}
+
+	static void line(StringBuilder out, String name, long value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	static void line(StringBuilder out, String name, String value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(long micros) {
+		return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+	}
+
+	private static String name(Enum<?> value) {
+		return value.name().toLowerCase(Locale.ROOT);
+	}
+}
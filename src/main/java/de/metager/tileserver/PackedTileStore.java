@@ -0,0 +1,185 @@
+package de.metager.tileserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author SumaEV
+ * Read access to a packed tileset. Instead of one File per Tile (z/x/y.png) all Tiles
+ * of a prerendering live in a single File:
+ *
+ * Header (32 bytes): magic, version, maxZoom, offset of the data section
+ * Index: two longs per Tile of zoom 0 to maxZoom, addressed by the Tile number. The upper 40 bits of
+ *        the first one are the offset of the PNG in the File, the lower 24 bits its length. 0 means there
+ *        is no such Tile. The second one is the hash of the map data the Tile was rendered from.
+ * Data: the PNGs, appended one after another.
+ *
+ * The index is memory mapped, so a lookup doesn't need any system call. A new tileset gets
+ * written by the PackedTileWriter into a temporary File and replaces the old one with an atomic rename.
+ * Like a RenderGeneration a store that is shared between Threads is retain()ed by every user and release()d
+ * when done. The last release() after it got retired closes the File.
+ */
+public class PackedTileStore implements Closeable {
+
+	static final long MAGIC = 0x4D4754494C455331L; // "MGTILES1"
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 32;
+	static final int ENTRY_SIZE = 16;
+	// The length of a PNG has to fit into the lower 24 bits of its index entry
+	static final int MAX_PNG_SIZE = 0xFFFFFF;
+	// Entries of the index that get mapped into a single buffer (1 GB)
+	static final long CHUNK_ENTRIES = 1L << 26;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] index;
+	private final int maxZoom;
+	// Users of this store, the one who opened it counts as one until it is retired
+	private final AtomicInteger users = new AtomicInteger(1);
+
+	private PackedTileStore(FileChannel channel) throws IOException {
+		this.channel = channel;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getLong() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not a packed tileset");
+		}
+		this.maxZoom = header.getInt();
+		this.index = mapIndex(channel, MapMode.READ_ONLY, this.maxZoom);
+	}
+
+	public static PackedTileStore open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new PackedTileStore(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int getMaxZoom() {
+		return this.maxZoom;
+	}
+
+	/**
+	 * Returns the index entry of the Tile or 0 if it is not part of this tileset.
+	 * Use offset() and length() to get the location of the PNG.
+	 */
+	public long getEntry(int z, int x, int y) {
+		if (!contains(this.maxZoom, z, x, y)) return 0;
+		return readIndex(this.index, tileNumber(z, x, y), 0);
+	}
+
+	/**
+	 * Returns the hash of the map data the Tile was rendered from or 0 if we don't know it.
+	 */
+	public long getHash(int z, int x, int y) {
+		if (!contains(this.maxZoom, z, x, y)) return 0;
+		return readIndex(this.index, tileNumber(z, x, y), 8);
+	}
+
+	public byte[] get(int z, int x, int y) throws IOException {
+		long entry = getEntry(z, x, y);
+		if (entry == 0) return null;
+		ByteBuffer png = ByteBuffer.allocate(length(entry));
+		long position = offset(entry);
+		while (png.hasRemaining()) {
+			int read = this.channel.read(png, position + png.position());
+			if (read < 0) throw new IOException("Packed tileset is truncated");
+		}
+		return png.array();
+	}
+
+	/**
+	 * The Channel of the tileset, so the PNGs can be transferred to a socket directly
+	 */
+	public FileChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Registers a user of this store. Fails if the store is closed already.
+	 */
+	public boolean retain() {
+		while (true) {
+			int current = this.users.get();
+			if (current <= 0) return false;
+			if (this.users.compareAndSet(current, current + 1)) return true;
+		}
+	}
+
+	public void release() {
+		if (this.users.decrementAndGet() == 0) {
+			try {
+				close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Called once a newer tileset took over. It gets closed as soon as its last user is done.
+	 */
+	public void retire() {
+		release();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	public static long offset(long entry) {
+		return entry >>> 24;
+	}
+
+	public static int length(long entry) {
+		return (int) (entry & MAX_PNG_SIZE);
+	}
+
+	static long entry(long offset, int length) {
+		return (offset << 24) | length;
+	}
+
+	/**
+	 * Number of the Tile within the index. All Tiles of the lower zoom levels come first.
+	 */
+	static long tileNumber(int z, int x, int y) {
+		return (((1L << (2 * z)) - 1) / 3) + ((long) y << z) + x;
+	}
+
+	static boolean contains(int maxZoom, int z, int x, int y) {
+		return z >= 0 && z <= maxZoom && x >= 0 && y >= 0 && x < (1 << z) && y < (1 << z);
+	}
+
+	static long readIndex(MappedByteBuffer[] index, long number, int field) {
+		return index[(int) (number / CHUNK_ENTRIES)].getLong((int) (number % CHUNK_ENTRIES) * ENTRY_SIZE + field);
+	}
+
+	static void writeIndex(MappedByteBuffer[] index, long number, int field, long value) {
+		index[(int) (number / CHUNK_ENTRIES)].putLong((int) (number % CHUNK_ENTRIES) * ENTRY_SIZE + field, value);
+	}
+
+	static long indexEntries(int maxZoom) {
+		return tileNumber(maxZoom + 1, 0, 0);
+	}
+
+	static MappedByteBuffer[] mapIndex(FileChannel channel, MapMode mode, int maxZoom) throws IOException {
+		long entries = indexEntries(maxZoom);
+		MappedByteBuffer[] index = new MappedByteBuffer[(int) ((entries + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES)];
+		for (int i = 0; i < index.length; i++) {
+			long chunkEntries = Math.min(CHUNK_ENTRIES, entries - i * CHUNK_ENTRIES);
+			index[i] = channel.map(mode, HEADER_SIZE + i * CHUNK_ENTRIES * ENTRY_SIZE, chunkEntries * ENTRY_SIZE);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,211 @@
+package de.metager.tileserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author SumaEV
+ * Writes a packed tileset (see PackedTileStore).
+ * A new tileset is written into "target.tmp" and replaces the target in a single atomic rename once
+ * close() is called, so the Tileserver never sees a half written tileset.
+ * An existing tileset can also be updated in place: new PNGs get appended and only the index entries
+ * of the changed Tiles are replaced, everything else stays where it is. The replaced PNGs are never removed,
+ * so every update makes the tileset grow. close() logs how much of it is dead, prerendering it anew compacts it.
+ * An interrupted prerendering can be resumed by opening its "target.tmp" again.
+ * Small PNGs are mostly single coloured Tiles (open sea, empty land) which appear over and over again.
+ * Every distinct one of them is stored only once and all Tiles that look like it point to the same data.
+ * put() can be called from any number of Threads at the same time.
+ */
+public class PackedTileWriter implements Closeable, TileOutput {
+
+	static final int SHARED_PNG_SIZE = 1024;
+	private static final int MAX_SHARED_PNGS = 4096;
+
+	private final File target;
+	private final File tmpFile;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] index;
+	private final int maxZoom;
+	private final AtomicLong dataEnd;
+	// Bytes of replaced PNGs, an upper bound as a shared PNG may still be used by other Tiles
+	private final AtomicLong replaced = new AtomicLong();
+	// Index entries of the PNGs that get shared by their content
+	private final ConcurrentHashMap<ByteBuffer, Long> shared = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new tileset which replaces target on close()
+	 */
+	public PackedTileWriter(File target, int maxZoom) throws IOException {
+		this.target = target;
+		this.tmpFile = new File(target.getPath() + ".tmp");
+		this.maxZoom = maxZoom;
+		target.getAbsoluteFile().getParentFile().mkdirs();
+		this.channel = FileChannel.open(this.tmpFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		long dataOffset = PackedTileStore.HEADER_SIZE + PackedTileStore.indexEntries(maxZoom) * PackedTileStore.ENTRY_SIZE;
+		ByteBuffer header = ByteBuffer.allocate(PackedTileStore.HEADER_SIZE);
+		header.putLong(PackedTileStore.MAGIC).putInt(PackedTileStore.VERSION).putInt(maxZoom).putLong(dataOffset);
+		header.flip();
+		this.channel.write(header, 0);
+		// The index stays sparse on disk, only the parts with Tiles in it take up space
+		this.index = PackedTileStore.mapIndex(this.channel, MapMode.READ_WRITE, maxZoom);
+		this.dataEnd = new AtomicLong(dataOffset);
+	}
+
+	private PackedTileWriter(File target, File tmpFile, FileChannel channel) throws IOException {
+		this.target = target;
+		this.tmpFile = tmpFile;
+		this.channel = channel;
+		ByteBuffer header = ByteBuffer.allocate(PackedTileStore.HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < PackedTileStore.HEADER_SIZE || header.getLong() != PackedTileStore.MAGIC
+				|| header.getInt() != PackedTileStore.VERSION) {
+			throw new IOException("Not a packed tileset");
+		}
+		this.maxZoom = header.getInt();
+		this.index = PackedTileStore.mapIndex(channel, MapMode.READ_WRITE, this.maxZoom);
+		this.dataEnd = new AtomicLong(Math.max(header.getLong(), channel.size()));
+	}
+
+	/**
+	 * Opens an existing tileset to update it in place. The Tileserver sees the updated Tiles right away.
+	 */
+	public static PackedTileWriter openExisting(File target) throws IOException {
+		FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return new PackedTileWriter(target, null, channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the "target.tmp" of an interrupted prerendering to continue writing it.
+	 * Returns null if there is none. Like a new tileset it replaces the target on close().
+	 */
+	public static PackedTileWriter resume(File target) throws IOException {
+		File tmpFile = new File(target.getPath() + ".tmp");
+		if (!tmpFile.exists()) return null;
+		FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return new PackedTileWriter(target, tmpFile, channel);
+		} catch (IOException e) {
+			channel.close();
+			System.err.println("Ignoring unreadable tileset " + tmpFile.getAbsolutePath());
+			return null;
+		}
+	}
+
+	public int getMaxZoom() {
+		return this.maxZoom;
+	}
+
+	@Override
+	public void put(int z, int x, int y, byte[] png) throws IOException {
+		if (png == null || png.length == 0) return;
+		if (!PackedTileStore.contains(this.maxZoom, z, x, y)) throw new IllegalArgumentException("Tile " + z + "/" + x + "/" + y + " is not part of this tileset");
+		if (png.length > PackedTileStore.MAX_PNG_SIZE) throw new IOException("Tile " + z + "/" + x + "/" + y + " is too big to be packed");
+		long entry;
+		if (png.length <= SHARED_PNG_SIZE) {
+			Long existing = this.shared.get(ByteBuffer.wrap(png));
+			if (existing != null) {
+				entry = existing;
+			} else {
+				entry = append(png);
+				if (this.shared.size() < MAX_SHARED_PNGS) this.shared.putIfAbsent(ByteBuffer.wrap(png.clone()), entry);
+			}
+		} else {
+			entry = append(png);
+		}
+		// The Tile only becomes visible once its data is written
+		long tileNumber = PackedTileStore.tileNumber(z, x, y);
+		long old = PackedTileStore.readIndex(this.index, tileNumber, 0);
+		if (old != 0 && old != entry) this.replaced.addAndGet(PackedTileStore.length(old));
+		PackedTileStore.writeIndex(this.index, tileNumber, 0, entry);
+	}
+
+	private long append(byte[] png) throws IOException {
+		long offset = this.dataEnd.getAndAdd(png.length);
+		ByteBuffer data = ByteBuffer.wrap(png);
+		while (data.hasRemaining()) {
+			this.channel.write(data, offset + data.position());
+		}
+		return PackedTileStore.entry(offset, png.length);
+	}
+
+	/**
+	 * Reads back a Tile that was put before, null if there is none
+	 */
+	public byte[] get(int z, int x, int y) throws IOException {
+		if (!PackedTileStore.contains(this.maxZoom, z, x, y)) return null;
+		long entry = PackedTileStore.readIndex(this.index, PackedTileStore.tileNumber(z, x, y), 0);
+		if (entry == 0) return null;
+		ByteBuffer png = ByteBuffer.allocate(PackedTileStore.length(entry));
+		long offset = PackedTileStore.offset(entry);
+		while (png.hasRemaining()) {
+			if (this.channel.read(png, offset + png.position()) < 0) throw new IOException("Tile " + z + "/" + x + "/" + y + " is truncated");
+		}
+		return png.array();
+	}
+
+	@Override
+	public long getHash(int z, int x, int y) {
+		if (!PackedTileStore.contains(this.maxZoom, z, x, y)) return 0;
+		return PackedTileStore.readIndex(this.index, PackedTileStore.tileNumber(z, x, y), 8);
+	}
+
+	@Override
+	public void putHash(int z, int x, int y, long hash) {
+		if (!PackedTileStore.contains(this.maxZoom, z, x, y)) return;
+		PackedTileStore.writeIndex(this.index, PackedTileStore.tileNumber(z, x, y), 8, hash);
+	}
+
+	/**
+	 * Writes everything that was put so far to disk
+	 */
+	public void flush() throws IOException {
+		// The data has to be on disk before the index entries pointing to it
+		this.channel.force(false);
+		for (MappedByteBuffer buffer : this.index) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Flushes the tileset to disk and, if it is a new one, replaces the target File with it.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		this.channel.force(true);
+		this.channel.close();
+		if (this.tmpFile != null) {
+			Files.move(this.tmpFile.toPath(), this.target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} else if (this.replaced.get() > 0) {
+			System.out.println("[" + Instant.now() + "] Up to " + this.replaced.get() / 1024 + " KB of replaced Tiles stay in "
+					+ this.target.getAbsolutePath() + ", prerender it anew to compact it");
+		}
+	}
+
+	/**
+	 * Bytes of the PNGs that were replaced by put(), at most that much of the tileset is dead data
+	 */
+	public long getReplaced() {
+		return this.replaced.get();
+	}
+}
@@ -0,0 +1,516 @@
+package de.metager.tileserver;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * @author SumaEV
+ * Encodes rendered Tiles to PNG without going through ImageIO. Map styles use few colours, so every Tile
+ * with up to 256 colours is written as an indexed PNG with 1, 2, 4 or 8 bits per pixel, which is lossless
+ * and a lot smaller than truecolour. With quantize enabled, Tiles with more colours (anti aliasing) are
+ * reduced to the 256 most common ones as well. Everything else is written as RGB or RGBA.
+ * The deflate level and the PNG filter of truecolour Tiles are configurable:
+ *
+ * -Dtileserver.pngLevel=0..9 (default 6)
+ * -Dtileserver.pngFilter=none|sub|up|average|paeth|adaptive (default adaptive)
+ * -Dtileserver.pngQuantize=true|false (default false)
+ *
+ * The pixel, row and output buffers are kept per Thread and reused for every Tile. The Deflaters hold native
+ * memory that only end() frees, so they are not tied to a Thread but taken from a bounded pool and reset().
+ */
+public class PngEncoder {
+
+	public enum Filter {
+		NONE, SUB, UP, AVERAGE, PAETH,
+		// Picks the filter with the smallest sum of absolute differences for every row
+		ADAPTIVE
+	}
+
+	public static final PngEncoder DEFAULT = new PngEncoder(Integer.getInteger("tileserver.pngLevel", 6),
+			Filter.valueOf(System.getProperty("tileserver.pngFilter", "adaptive").toUpperCase(Locale.ROOT)),
+			Boolean.getBoolean("tileserver.pngQuantize"));
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+	private static final byte[] IHDR = { 'I', 'H', 'D', 'R' };
+	private static final byte[] PLTE = { 'P', 'L', 'T', 'E' };
+	private static final byte[] TRNS = { 't', 'R', 'N', 'S' };
+	private static final byte[] IDAT = { 'I', 'D', 'A', 'T' };
+	private static final byte[] IEND = { 'I', 'E', 'N', 'D' };
+	private static final int COLOUR_TYPE_RGB = 2;
+	private static final int COLOUR_TYPE_INDEXED = 3;
+	private static final int COLOUR_TYPE_RGBA = 6;
+	private static final int MAX_COLOURS = 256;
+	// Size of the hash table for counting colours, a power of two well above MAX_COLOURS
+	private static final int COLOUR_SLOTS = 1024;
+	// Quantization counts colours in bins of 4 bits per channel
+	private static final int BINS = 1 << 16;
+
+	private final int level;
+	private final Filter filter;
+	private final boolean quantize;
+	private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+	// Deflaters that are not in use, one per processor. Any more are ended right after encoding
+	private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+	public PngEncoder(int level, Filter filter, boolean quantize) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Deflate level must be between 0 and 9, got " + level);
+		}
+		this.level = level;
+		this.filter = filter;
+		this.quantize = quantize;
+	}
+
+	/**
+	 * Returns the PNG of the given image
+	 */
+	public byte[] encode(BufferedImage image) {
+		Buffers buffers = this.buffers.get();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = buffers.pixels(width * height);
+		readPixels(image, pixels, width, height);
+
+		int colours = buffers.indexColours(pixels, width * height);
+		if (colours < 0 && this.quantize) colours = buffers.quantize(pixels, width * height);
+
+		int colourType;
+		int bitDepth = 8;
+		boolean opaque = true;
+		if (colours > 0) {
+			colourType = COLOUR_TYPE_INDEXED;
+			bitDepth = colours <= 2 ? 1 : colours <= 4 ? 2 : colours <= 16 ? 4 : 8;
+		} else {
+			for (int i = 0; i < width * height && opaque; i++) {
+				opaque = pixels[i] >>> 24 == 0xFF;
+			}
+			colourType = opaque ? COLOUR_TYPE_RGB : COLOUR_TYPE_RGBA;
+		}
+
+		Buffers.Output out = buffers.output;
+		out.reset();
+		out.write(SIGNATURE, 0, SIGNATURE.length);
+		byte[] header = buffers.chunk(13);
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = (byte) bitDepth;
+		header[9] = (byte) colourType;
+		header[10] = 0;
+		header[11] = 0;
+		header[12] = 0;
+		writeChunk(buffers, IHDR, header, 13);
+		if (colourType == COLOUR_TYPE_INDEXED) writePalette(buffers, colours);
+
+		int rowBytes = colourType == COLOUR_TYPE_INDEXED ? (width * bitDepth + 7) / 8
+				: width * (colourType == COLOUR_TYPE_RGB ? 3 : 4);
+		int bytesPerPixel = colourType == COLOUR_TYPE_INDEXED ? 1 : colourType == COLOUR_TYPE_RGB ? 3 : 4;
+		// Filters don't pay off for indexed images
+		Filter filter = colourType == COLOUR_TYPE_INDEXED ? Filter.NONE : this.filter;
+		byte[] raw = buffers.raw(height * (rowBytes + 1));
+		byte[] previous = buffers.previous(rowBytes);
+		byte[] current = buffers.current(rowBytes);
+		for (int y = 0; y < height; y++) {
+			if (colourType == COLOUR_TYPE_INDEXED) {
+				packIndices(buffers.indices, y * width, width, bitDepth, current, rowBytes);
+			} else {
+				unpackPixels(pixels, y * width, width, colourType == COLOUR_TYPE_RGBA, current);
+			}
+			filterRow(buffers, filter, current, previous, rowBytes, bytesPerPixel, raw, y * (rowBytes + 1));
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+
+		Deflater deflater = this.deflaters.poll();
+		if (deflater == null) deflater = new Deflater();
+		byte[] compressed = buffers.compressed;
+		int length = 0;
+		try {
+			deflater.setLevel(this.level);
+			deflater.setStrategy(filter == Filter.NONE ? Deflater.DEFAULT_STRATEGY : Deflater.FILTERED);
+			deflater.setInput(raw, 0, height * (rowBytes + 1));
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					compressed = buffers.compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+		} finally {
+			deflater.reset();
+			if (!this.deflaters.offer(deflater)) deflater.end();
+		}
+		writeChunk(buffers, IDAT, compressed, length);
+		writeChunk(buffers, IEND, compressed, 0);
+		return out.toByteArray();
+	}
+
+	private static void readPixels(BufferedImage image, int[] pixels, int width, int height) {
+		WritableRaster raster = image.getRaster();
+		if (image.getType() == BufferedImage.TYPE_INT_ARGB && raster.getParent() == null
+				&& raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& raster.getDataBuffer() instanceof DataBufferInt) {
+			// The pixels are already stored as ARGB ints, so they can be copied row by row
+			DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+			int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			int[] data = dataBuffer.getData();
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(data, dataBuffer.getOffset() + y * stride, pixels, y * width, width);
+			}
+		} else {
+			image.getRGB(0, 0, width, height, pixels, 0, width);
+		}
+	}
+
+	private static void writePalette(Buffers buffers, int colours) {
+		byte[] palette = buffers.chunk(colours * 3);
+		int transparent = 0;
+		for (int i = 0; i < colours; i++) {
+			int colour = buffers.palette[i];
+			palette[i * 3] = (byte) (colour >> 16);
+			palette[i * 3 + 1] = (byte) (colour >> 8);
+			palette[i * 3 + 2] = (byte) colour;
+			if (colour >>> 24 != 0xFF) transparent = i + 1;
+		}
+		writeChunk(buffers, PLTE, palette, colours * 3);
+		if (transparent > 0) {
+			// Alpha values only need to be given up to the last entry that isn't opaque
+			byte[] alpha = buffers.chunk(transparent);
+			for (int i = 0; i < transparent; i++) {
+				alpha[i] = (byte) (buffers.palette[i] >>> 24);
+			}
+			writeChunk(buffers, TRNS, alpha, transparent);
+		}
+	}
+
+	private static void packIndices(byte[] indices, int offset, int width, int bitDepth, byte[] row, int rowBytes) {
+		if (bitDepth == 8) {
+			System.arraycopy(indices, offset, row, 0, width);
+			return;
+		}
+		Arrays.fill(row, 0, rowBytes, (byte) 0);
+		int perByte = 8 / bitDepth;
+		for (int x = 0; x < width; x++) {
+			int shift = 8 - bitDepth * (x % perByte + 1);
+			row[x / perByte] |= (indices[offset + x] & 0xFF) << shift;
+		}
+	}
+
+	private static void unpackPixels(int[] pixels, int offset, int width, boolean alpha, byte[] row) {
+		int i = 0;
+		for (int x = 0; x < width; x++) {
+			int pixel = pixels[offset + x];
+			row[i++] = (byte) (pixel >> 16);
+			row[i++] = (byte) (pixel >> 8);
+			row[i++] = (byte) pixel;
+			if (alpha) row[i++] = (byte) (pixel >>> 24);
+		}
+	}
+
+	/**
+	 * Writes the filter type and the filtered row to raw at the given offset
+	 */
+	private static void filterRow(Buffers buffers, Filter filter, byte[] current, byte[] previous, int rowBytes,
+			int bytesPerPixel, byte[] raw, int offset) {
+		if (filter != Filter.ADAPTIVE) {
+			raw[offset] = (byte) filter.ordinal();
+			applyFilter(filter, current, previous, rowBytes, bytesPerPixel, raw, offset + 1);
+			return;
+		}
+		Filter best = Filter.NONE;
+		long bestSum = Long.MAX_VALUE;
+		byte[] candidate = buffers.candidate(rowBytes);
+		for (Filter f : Filter.values()) {
+			if (f == Filter.ADAPTIVE) continue;
+			applyFilter(f, current, previous, rowBytes, bytesPerPixel, candidate, 0);
+			long sum = 0;
+			for (int i = 0; i < rowBytes && sum < bestSum; i++) {
+				sum += Math.abs(candidate[i]);
+			}
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = f;
+			}
+		}
+		raw[offset] = (byte) best.ordinal();
+		applyFilter(best, current, previous, rowBytes, bytesPerPixel, raw, offset + 1);
+	}
+
+	private static void applyFilter(Filter filter, byte[] current, byte[] previous, int rowBytes, int bytesPerPixel,
+			byte[] out, int offset) {
+		switch (filter) {
+		case NONE:
+			System.arraycopy(current, 0, out, offset, rowBytes);
+			break;
+		case SUB:
+			for (int i = 0; i < rowBytes; i++) {
+				int left = i >= bytesPerPixel ? current[i - bytesPerPixel] : 0;
+				out[offset + i] = (byte) (current[i] - left);
+			}
+			break;
+		case UP:
+			for (int i = 0; i < rowBytes; i++) {
+				out[offset + i] = (byte) (current[i] - previous[i]);
+			}
+			break;
+		case AVERAGE:
+			for (int i = 0; i < rowBytes; i++) {
+				int left = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+				out[offset + i] = (byte) (current[i] - ((left + (previous[i] & 0xFF)) >>> 1));
+			}
+			break;
+		case PAETH:
+			for (int i = 0; i < rowBytes; i++) {
+				int left = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+				int up = previous[i] & 0xFF;
+				int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+				out[offset + i] = (byte) (current[i] - paeth(left, up, upLeft));
+			}
+			break;
+		default:
+			throw new IllegalArgumentException(filter.name());
+		}
+	}
+
+	private static int paeth(int left, int up, int upLeft) {
+		int p = left + up - upLeft;
+		int pLeft = Math.abs(p - left);
+		int pUp = Math.abs(p - up);
+		int pUpLeft = Math.abs(p - upLeft);
+		if (pLeft <= pUp && pLeft <= pUpLeft) return left;
+		if (pUp <= pUpLeft) return up;
+		return upLeft;
+	}
+
+	private static void writeChunk(Buffers buffers, byte[] type, byte[] data, int length) {
+		Buffers.Output out = buffers.output;
+		byte[] number = new byte[4];
+		putInt(number, 0, length);
+		out.write(number, 0, 4);
+		out.write(type, 0, 4);
+		out.write(data, 0, length);
+		CRC32 crc = buffers.crc;
+		crc.reset();
+		crc.update(type, 0, 4);
+		crc.update(data, 0, length);
+		putInt(number, 0, (int) crc.getValue());
+		out.write(number, 0, 4);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Everything one Thread needs to encode a Tile. The arrays grow with the largest Tile seen so far.
+	 */
+	private static class Buffers {
+
+		private int[] pixels = new int[0];
+		private byte[] indices = new byte[0];
+		private final int[] palette = new int[MAX_COLOURS];
+		private final int[] slotColours = new int[COLOUR_SLOTS];
+		private final int[] slotIndices = new int[COLOUR_SLOTS];
+		private int[] binCounts;
+		private int[][] binSums;
+		private int[] binIndices;
+		private int[] usedBins;
+		private byte[] raw = new byte[0];
+		private byte[] previous = new byte[0];
+		private byte[] current = new byte[0];
+		private byte[] candidate = new byte[0];
+		private byte[] chunk = new byte[MAX_COLOURS * 3];
+		private byte[] compressed = new byte[16 * 1024];
+		private final Output output = new Output();
+		private final CRC32 crc = new CRC32();
+
+		int[] pixels(int length) {
+			if (this.pixels.length < length) {
+				this.pixels = new int[length];
+				this.indices = new byte[length];
+			}
+			return this.pixels;
+		}
+
+		byte[] raw(int length) {
+			if (this.raw.length < length) this.raw = new byte[length];
+			return this.raw;
+		}
+
+		byte[] previous(int length) {
+			if (this.previous.length < length) this.previous = new byte[length];
+			// The row above the first one counts as all zero
+			Arrays.fill(this.previous, 0, length, (byte) 0);
+			return this.previous;
+		}
+
+		byte[] current(int length) {
+			if (this.current.length < length) this.current = new byte[length];
+			return this.current;
+		}
+
+		byte[] candidate(int length) {
+			if (this.candidate.length < length) this.candidate = new byte[length];
+			return this.candidate;
+		}
+
+		byte[] chunk(int length) {
+			if (this.chunk.length < length) this.chunk = new byte[length];
+			return this.chunk;
+		}
+
+		/**
+		 * Builds the palette and the palette index of every pixel. Returns the number of colours,
+		 * -1 if there are more than MAX_COLOURS.
+		 */
+		int indexColours(int[] pixels, int length) {
+			Arrays.fill(this.slotIndices, -1);
+			int colours = 0;
+			int lastColour = 0;
+			int lastIndex = -1;
+			for (int i = 0; i < length; i++) {
+				int colour = pixels[i];
+				// Neighbouring pixels mostly have the same colour
+				if (colour != lastColour || lastIndex < 0) {
+					int slot = (colour * 0x9E3779B9) >>> 22;
+					while (this.slotIndices[slot] >= 0 && this.slotColours[slot] != colour) {
+						slot = (slot + 1) & (COLOUR_SLOTS - 1);
+					}
+					if (this.slotIndices[slot] < 0) {
+						if (colours == MAX_COLOURS) return -1;
+						this.slotColours[slot] = colour;
+						this.slotIndices[slot] = colours;
+						this.palette[colours++] = colour;
+					}
+					lastColour = colour;
+					lastIndex = this.slotIndices[slot];
+				}
+				this.indices[i] = (byte) lastIndex;
+			}
+			return colours;
+		}
+
+		/**
+		 * Reduces the pixels to the MAX_COLOURS most common colours. Colours are counted in bins of
+		 * 4 bits per channel, every palette entry is the average of the pixels of one bin and every
+		 * other bin is mapped to the closest entry. Returns the number of colours.
+		 */
+		int quantize(int[] pixels, int length) {
+			if (this.binCounts == null) {
+				this.binCounts = new int[BINS];
+				this.binSums = new int[4][BINS];
+				this.binIndices = new int[BINS];
+				this.usedBins = new int[BINS];
+			}
+			int[] used = this.usedBins;
+			int usedBins = 0;
+			for (int i = 0; i < length; i++) {
+				int pixel = pixels[i];
+				int bin = bin(pixel);
+				if (this.binCounts[bin]++ == 0) used[usedBins++] = bin;
+				this.binSums[0][bin] += pixel >>> 24;
+				this.binSums[1][bin] += (pixel >> 16) & 0xFF;
+				this.binSums[2][bin] += (pixel >> 8) & 0xFF;
+				this.binSums[3][bin] += pixel & 0xFF;
+			}
+			// The most common bins become the palette
+			long[] ranked = new long[usedBins];
+			for (int i = 0; i < usedBins; i++) {
+				ranked[i] = ((long) this.binCounts[used[i]] << 16) | used[i];
+			}
+			Arrays.sort(ranked);
+			int colours = Math.min(MAX_COLOURS, usedBins);
+			for (int i = 0; i < usedBins; i++) {
+				this.binIndices[used[i]] = -1;
+			}
+			for (int i = 0; i < colours; i++) {
+				int bin = (int) (ranked[usedBins - 1 - i] & 0xFFFF);
+				this.palette[i] = average(bin);
+				this.binIndices[bin] = i;
+			}
+			for (int i = 0; i < usedBins; i++) {
+				int bin = used[i];
+				if (this.binIndices[bin] < 0) this.binIndices[bin] = closest(average(bin), colours);
+			}
+			for (int i = 0; i < length; i++) {
+				this.indices[i] = (byte) this.binIndices[bin(pixels[i])];
+			}
+			// Only the bins of this image were touched, so only those need to be cleared for the next one
+			for (int i = 0; i < usedBins; i++) {
+				int bin = used[i];
+				this.binCounts[bin] = 0;
+				this.binSums[0][bin] = 0;
+				this.binSums[1][bin] = 0;
+				this.binSums[2][bin] = 0;
+				this.binSums[3][bin] = 0;
+			}
+			return colours;
+		}
+
+		private static int bin(int pixel) {
+			return ((pixel >>> 16) & 0xF000) | ((pixel >>> 12) & 0x0F00) | ((pixel >>> 8) & 0x00F0) | ((pixel >>> 4) & 0x000F);
+		}
+
+		private int average(int bin) {
+			int count = this.binCounts[bin];
+			int a = (this.binSums[0][bin] + count / 2) / count;
+			int r = (this.binSums[1][bin] + count / 2) / count;
+			int g = (this.binSums[2][bin] + count / 2) / count;
+			int b = (this.binSums[3][bin] + count / 2) / count;
+			return (a << 24) | (r << 16) | (g << 8) | b;
+		}
+
+		private int closest(int colour, int colours) {
+			int best = 0;
+			int bestDistance = Integer.MAX_VALUE;
+			for (int i = 0; i < colours; i++) {
+				int entry = this.palette[i];
+				int da = (colour >>> 24) - (entry >>> 24);
+				int dr = ((colour >> 16) & 0xFF) - ((entry >> 16) & 0xFF);
+				int dg = ((colour >> 8) & 0xFF) - ((entry >> 8) & 0xFF);
+				int db = (colour & 0xFF) - (entry & 0xFF);
+				int distance = da * da + dr * dr + dg * dg + db * db;
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					best = i;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * A ByteArrayOutputStream without synchronization and IOExceptions that keeps its buffer
+		 */
+		private static class Output {
+			private byte[] buffer = new byte[32 * 1024];
+			private int size = 0;
+
+			void reset() {
+				this.size = 0;
+			}
+
+			void write(byte[] bytes, int offset, int length) {
+				if (this.size + length > this.buffer.length) {
+					this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.size + length));
+				}
+				System.arraycopy(bytes, offset, this.buffer, this.size, length);
+				this.size += length;
+			}
+
+			byte[] toByteArray() {
+				return Arrays.copyOf(this.buffer, this.size);
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package de.metager.tileserver;
+
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+
+/**
+ * @author SumaEV
+ * Renders the MetaTiles a client most likely asks for next into the memory Cache. After a Tile had to be
+ * rendered on demand, the client usually pans to one of the neighbouring MetaTiles or zooms into the Tile.
+ * Prefetching never competes with real requests (see IdleRenderer) and at most budget MetaTiles wait for it.
+ * If more get queued, the oldest ones are dropped because the client has most likely moved on already.
+ * The queued items are the upper left Tiles {z, x, y} of the MetaTiles.
+ */
+public class Prefetcher extends IdleRenderer<int[]> {
+
+	private AtomicReference<RenderGeneration> generation;
+	private TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer;
+	private TileMemoryCache<RendererJob> memoryCache;
+	private DiskTileCache diskCache;
+	private AccessStats accessStats;
+	private DisplayModel displayModel;
+	private GraphicFactory GRAPHIC_FACTORY;
+	private int metaTileSize;
+	private int minZoom;
+	private int maxZoom;
+
+	private final AtomicLong rendered = new AtomicLong();
+
+	public Prefetcher(AtomicReference<RenderGeneration> generation, ThreadPoolExecutor executor,
+			TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer,
+			TileMemoryCache<RendererJob> memoryCache, DiskTileCache diskCache, AccessStats accessStats, DisplayModel displayModel,
+			GraphicFactory gRAPHIC_FACTORY,
+			int metaTileSize, int budget, int minZoom, int maxZoom) {
+		super(executor, budget);
+		this.generation = generation;
+		this.coalescer = coalescer;
+		this.memoryCache = memoryCache;
+		this.diskCache = diskCache;
+		this.accessStats = accessStats;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+		this.metaTileSize = metaTileSize;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+	}
+
+	/**
+	 * Queues the neighbouring MetaTiles of the Tile x, y, z and the MetaTile with its children.
+	 * The children get rendered first.
+	 */
+	public void prefetch(int x, int y, int z) {
+		if (!isEnabled() || z < this.minZoom || z > this.maxZoom) return;
+		int size = MetaTile.sizeForZoom(this.metaTileSize, z);
+		int minX = x / size * size;
+		int minY = y / size * size;
+		synchronized (this) {
+			queue(z, minX - size, minY);
+			queue(z, minX + size, minY);
+			queue(z, minX, minY - size);
+			queue(z, minX, minY + size);
+			if (z < this.maxZoom) {
+				int childSize = MetaTile.sizeForZoom(this.metaTileSize, z + 1);
+				queue(z + 1, 2 * x / childSize * childSize, 2 * y / childSize * childSize);
+			}
+		}
+	}
+
+	private void queue(int z, int x, int y) {
+		if (x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) return;
+		queue(new int[] { z, x, y });
+	}
+
+	@Override
+	protected long key(int[] upperLeft) {
+		return TileKey.of(upperLeft[0], upperLeft[1], upperLeft[2]);
+	}
+
+	@Override
+	protected void render(int[] upperLeft) {
+		int z = upperLeft[0];
+		int x = upperLeft[1];
+		int y = upperLeft[2];
+		RenderGeneration generation = RenderGeneration.acquireCurrent(this.generation);
+		try {
+			MetaTile metaTile = new MetaTile(x, y, z, this.metaTileSize, generation.getMapDataStore(),
+					generation.getRenderThemeFuture(), this.displayModel, this.GRAPHIC_FACTORY);
+			// Rendered on demand or prefetched already
+			if (this.memoryCache.contains(metaTile.createRendererJob(metaTile.getMinX(), metaTile.getMinY()))
+					|| this.diskCache.contains(z, metaTile.getMinX(), metaTile.getMinY())) return;
+			if (TileRenderer.render(generation, this.coalescer, this.memoryCache, this.diskCache, this.accessStats, this.metaTileSize,
+					TileVariant.DEFAULT, x, y, z, this.GRAPHIC_FACTORY, Long.MAX_VALUE) != null) {
+				this.rendered.incrementAndGet();
+			}
+		} finally {
+			generation.release();
+		}
+	}
+
+	public long getRendered() {
+		return this.rendered.get();
+	}
+}
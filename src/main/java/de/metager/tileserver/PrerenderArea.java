@@ -0,0 +1,90 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author SumaEV
+ * A rectangle of Tiles that the CacheManager keeps prerendered up to a zoom level.
+ * Areas are read from a File with one Area per line:
+ *
+ * name;zoom;minX;minY;maxX;maxY;maxZoom
+ *
+ * minX, minY, maxX and maxY are Tile numbers on the given zoom level. Empty lines and lines starting with # are ignored.
+ */
+public class PrerenderArea {
+
+	public final String name;
+	public final int zoom;
+	public final int minX;
+	public final int minY;
+	public final int maxX;
+	public final int maxY;
+	public final int maxZoom;
+
+	public PrerenderArea(String name, int zoom, int minX, int minY, int maxX, int maxY, int maxZoom) {
+		this.name = name;
+		this.zoom = zoom;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZoom = maxZoom;
+	}
+
+	/**
+	 * True if the Tiles minX to maxX and minY to maxY on zoom level z overlap this Area and z is not beyond its maxZoom
+	 */
+	public boolean intersects(int z, int minX, int minY, int maxX, int maxY) {
+		if (z > this.maxZoom) return false;
+		if (z >= this.zoom) {
+			int shift = z - this.zoom;
+			return (maxX >> shift) >= this.minX && (minX >> shift) <= this.maxX && (maxY >> shift) >= this.minY
+					&& (minY >> shift) <= this.maxY;
+		}
+		int shift = this.zoom - z;
+		return maxX >= (this.minX >> shift) && minX <= (this.maxX >> shift) && maxY >= (this.minY >> shift)
+				&& minY <= (this.maxY >> shift);
+	}
+
+	/**
+	 * The whole world up to zoom 6, Germany and Poland up to zoom 12
+	 */
+	public static List<PrerenderArea> defaults() {
+		List<PrerenderArea> areas = new ArrayList<>();
+		areas.add(new PrerenderArea("world", 0, 0, 0, 0, 0, 6));
+		areas.add(new PrerenderArea("germany", 7, 65, 40, 69, 44, 12));
+		areas.add(new PrerenderArea("poland", 7, 70, 40, 72, 43, 12));
+		return areas;
+	}
+
+	public static List<PrerenderArea> load(File file) throws IOException {
+		List<PrerenderArea> areas = new ArrayList<>();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String[] fields = line.split(";");
+			if (fields.length != 7) throw new IOException(file.getName() + ":" + lineNumber + " needs 7 fields, got " + fields.length);
+			try {
+				areas.add(new PrerenderArea(fields[0].trim(), Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim()),
+						Integer.parseInt(fields[3].trim()), Integer.parseInt(fields[4].trim()), Integer.parseInt(fields[5].trim()),
+						Integer.parseInt(fields[6].trim())));
+			} catch (NumberFormatException e) {
+				throw new IOException(file.getName() + ":" + lineNumber + " is not a valid Area", e);
+			}
+		}
+		return areas;
+	}
+
+	@Override
+	public String toString() {
+		return this.name + " (" + this.zoom + "/" + this.minX + "/" + this.minY + " - " + this.zoom + "/" + this.maxX + "/"
+				+ this.maxY + ", up to zoom " + this.maxZoom + ")";
+	}
+}
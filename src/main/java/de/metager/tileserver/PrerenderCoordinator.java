@@ -0,0 +1,332 @@
+package de.metager.tileserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.mapsforge.core.model.BoundingBox;
+
+/**
+ * @author SumaEV
+ * Splits a prerendering between PrerenderWorkers, which can run on this machine or on any other one.
+ * The tile pyramid is cut into shards: one for all zoom levels above shardZoom and one for every MetaTile
+ * on shardZoom together with everything below it. A worker leases a shard, renders it and streams the Tiles
+ * back, the coordinator writes them into the packed tileset. Every message of a worker renews its leases.
+ * If a worker stays silent for longer than leaseTime or its connection breaks, its shards are handed out again.
+ * Finished shards are recorded next to the tileset, an interrupted coordinator continues with the missing ones.
+ *
+ * Every message starts with its type byte, followed by the fields given below (DataOutputStream encoding).
+ */
+public class PrerenderCoordinator implements Runnable {
+
+	// Worker: asks for a shard
+	static final byte LEASE = 1;
+	// Coordinator: int id, int zoom, int x, int y, int endZoom, int metaTileSize, long seed, double minLat, minLon, maxLat, maxLon
+	static final byte SHARD = 2;
+	// Coordinator: every shard that isn't done is leased, ask again later
+	static final byte WAIT = 3;
+	// Coordinator: every shard is done
+	static final byte FINISHED = 4;
+	// Worker: int z, int x, int y, int length, the PNG
+	static final byte TILE = 5;
+	// Worker: int z, int x, int y, long hash
+	static final byte HASH = 6;
+	// Worker: int id, every Tile of the shard was sent
+	static final byte DONE = 7;
+	// Worker: still busy with its shards
+	static final byte HEARTBEAT = 8;
+
+	private static final class Shard {
+		final int id;
+		final int z;
+		final int x;
+		final int y;
+		final int endZoom;
+		Connection holder;
+		long leaseEnd;
+		boolean done;
+
+		Shard(int id, int z, int x, int y, int endZoom) {
+			this.id = id;
+			this.z = z;
+			this.x = x;
+			this.y = y;
+			this.endZoom = endZoom;
+		}
+
+		@Override
+		public String toString() {
+			return "shard " + this.id + " (" + this.z + "/" + this.x + "/" + this.y + " to zoom " + this.endZoom + ")";
+		}
+	}
+
+	private int port;
+	private File packFile;
+	private File shardFile;
+	private BoundingBox bbox;
+	private int shardZoom;
+	private int endZoom;
+	private int metaTileSize;
+	private long seed;
+	private long leaseTime;
+
+	private PackedTileWriter output;
+	private final List<Shard> shards = new ArrayList<>();
+	private final ArrayDeque<Shard> pending = new ArrayDeque<>();
+	private final List<Shard> leased = new ArrayList<>();
+	private int remaining;
+
+	public PrerenderCoordinator(int port, File outputdir, BoundingBox bbox, int shardZoom, int endZoom, int metaTileSize,
+			long seed, long leaseTime) {
+		this.port = port;
+		this.packFile = new File(outputdir, TileServer.PRERENDERED_FILE);
+		this.shardFile = new File(outputdir, TileServer.PRERENDERED_FILE + ".shards");
+		this.bbox = bbox;
+		this.shardZoom = shardZoom;
+		this.endZoom = endZoom;
+		this.metaTileSize = metaTileSize;
+		this.seed = seed;
+		this.leaseTime = leaseTime;
+	}
+
+	@Override
+	public void run() {
+		try (ServerSocket serverSocket = new ServerSocket(this.port)) {
+			Set<Integer> done = openOutput();
+			createShards(done);
+			System.out.println("[" + Instant.now() + "] Coordinating " + this.shards.size() + " shards on port " + this.port
+					+ (done.isEmpty() ? "" : ", " + done.size() + " of them are done already"));
+
+			Thread acceptor = new Thread(() -> accept(serverSocket));
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			synchronized (this) {
+				while (this.remaining > 0) {
+					wait(Math.max(1000, this.leaseTime / 4));
+					expireLeases();
+				}
+			}
+			this.output.close();
+			Files.deleteIfExists(this.shardFile.toPath());
+			System.out.println("[" + Instant.now() + "] Finished, all shards are done");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Opens the tileset and returns the shards that are in it already
+	 */
+	private Set<Integer> openOutput() throws IOException {
+		String header = this.shardZoom + ";" + this.endZoom + ";" + this.metaTileSize + ";" + this.seed;
+		Set<Integer> done = new HashSet<>();
+		if (this.shardFile.exists()) {
+			List<String> lines = Files.readAllLines(this.shardFile.toPath(), StandardCharsets.UTF_8);
+			if (!lines.isEmpty() && lines.get(0).equals(header)) {
+				this.output = PackedTileWriter.resume(this.packFile);
+				if (this.output != null && this.output.getMaxZoom() == this.endZoom) {
+					for (String line : lines.subList(1, lines.size())) {
+						if (!line.isEmpty()) done.add(Integer.parseInt(line));
+					}
+				} else if (this.output != null) {
+					this.output.close();
+					this.output = null;
+				}
+			}
+		}
+		if (this.output == null) {
+			this.output = new PackedTileWriter(this.packFile, this.endZoom);
+			done.clear();
+			Files.write(this.shardFile.toPath(), (header + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return done;
+	}
+
+	private synchronized void createShards(Set<Integer> done) {
+		if (this.shardZoom > 0) {
+			this.shards.add(new Shard(0, 0, 0, 0, this.shardZoom - 1));
+		}
+		TileEnumerator roots = new TileEnumerator(this.bbox, this.shardZoom, this.shardZoom, this.metaTileSize, 0, null);
+		while (roots.hasNext()) {
+			TileEnumerator.Position root = roots.next();
+			this.shards.add(new Shard(this.shards.size(), root.z, root.x, root.y, this.endZoom));
+		}
+		for (Shard shard : this.shards) {
+			if (done.contains(shard.id)) {
+				shard.done = true;
+			} else {
+				this.pending.add(shard);
+			}
+		}
+		this.remaining = this.pending.size();
+	}
+
+	private void accept(ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				Thread connection = new Thread(new Connection(socket));
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) e.printStackTrace();
+			}
+		}
+	}
+
+	private synchronized Shard lease(Connection holder) {
+		Shard shard = this.pending.pollFirst();
+		if (shard == null) return null;
+		shard.holder = holder;
+		shard.leaseEnd = System.currentTimeMillis() + this.leaseTime;
+		this.leased.add(shard);
+		return shard;
+	}
+
+	private synchronized void renew(Connection holder) {
+		long leaseEnd = System.currentTimeMillis() + this.leaseTime;
+		for (Shard shard : this.leased) {
+			if (shard.holder == holder) shard.leaseEnd = leaseEnd;
+		}
+	}
+
+	/**
+	 * Called once every Tile of the shard was received. A shard can be reported twice if its first
+	 * lease expired while the worker was still busy, the Tiles are the same either way.
+	 */
+	private synchronized void finish(int id) throws IOException {
+		if (id < 0 || id >= this.shards.size()) throw new IOException("Unknown shard " + id);
+		Shard shard = this.shards.get(id);
+		if (shard.done) return;
+		// The shard may only be recorded once its Tiles are on disk
+		this.output.flush();
+		Files.write(this.shardFile.toPath(), (id + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		shard.done = true;
+		shard.holder = null;
+		this.leased.remove(shard);
+		this.pending.remove(shard);
+		this.remaining--;
+		System.out.println("[" + Instant.now() + "] Finished " + shard + ", " + this.remaining + " shards left");
+		if (this.remaining == 0) notifyAll();
+	}
+
+	/**
+	 * Hands the shards of the given worker, or of every worker whose lease ran out if it is null, out again
+	 */
+	private synchronized void requeue(Connection holder) {
+		long now = System.currentTimeMillis();
+		for (int i = this.leased.size() - 1; i >= 0; i--) {
+			Shard shard = this.leased.get(i);
+			if (holder == null ? shard.leaseEnd < now : shard.holder == holder) {
+				System.out.println("[" + Instant.now() + "] Lease of " + shard + " " + (holder == null ? "expired" : "lost") + ", handing it out again");
+				shard.holder = null;
+				this.leased.remove(i);
+				this.pending.addFirst(shard);
+			}
+		}
+	}
+
+	private void expireLeases() {
+		requeue(null);
+	}
+
+	private synchronized boolean isFinished() {
+		return this.remaining == 0;
+	}
+
+	/**
+	 * The connection to a single worker
+	 */
+	private class Connection implements Runnable {
+
+		private final Socket socket;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			String worker = this.socket.getRemoteSocketAddress().toString();
+			System.out.println("[" + Instant.now() + "] Worker " + worker + " connected");
+			try (Socket socket = this.socket;
+					DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+				while (true) {
+					byte type = in.readByte();
+					switch (type) {
+					case LEASE:
+						Shard shard = lease(this);
+						if (shard == null) {
+							out.writeByte(isFinished() ? FINISHED : WAIT);
+						} else {
+							out.writeByte(SHARD);
+							out.writeInt(shard.id);
+							out.writeInt(shard.z);
+							out.writeInt(shard.x);
+							out.writeInt(shard.y);
+							out.writeInt(shard.endZoom);
+							out.writeInt(PrerenderCoordinator.this.metaTileSize);
+							out.writeLong(PrerenderCoordinator.this.seed);
+							out.writeDouble(PrerenderCoordinator.this.bbox.minLatitude);
+							out.writeDouble(PrerenderCoordinator.this.bbox.minLongitude);
+							out.writeDouble(PrerenderCoordinator.this.bbox.maxLatitude);
+							out.writeDouble(PrerenderCoordinator.this.bbox.maxLongitude);
+						}
+						out.flush();
+						break;
+					case TILE:
+						int z = in.readInt();
+						int x = in.readInt();
+						int y = in.readInt();
+						int length = in.readInt();
+						// A broken or hostile worker must not make us allocate gigabytes
+						if (length < 0 || length > PackedTileStore.MAX_PNG_SIZE) {
+							throw new IOException("Tile " + z + "/" + x + "/" + y + " has an invalid length of " + length + " bytes");
+						}
+						byte[] png = new byte[length];
+						in.readFully(png);
+						PrerenderCoordinator.this.output.put(z, x, y, png);
+						break;
+					case HASH:
+						PrerenderCoordinator.this.output.putHash(in.readInt(), in.readInt(), in.readInt(), in.readLong());
+						break;
+					case DONE:
+						finish(in.readInt());
+						break;
+					case HEARTBEAT:
+						break;
+					default:
+						throw new IOException("Unknown message " + type);
+					}
+					renew(this);
+				}
+			} catch (EOFException e) {
+				System.out.println("[" + Instant.now() + "] Worker " + worker + " disconnected");
+			} catch (IOException | RuntimeException e) {
+				System.err.println("[" + Instant.now() + "] Lost worker " + worker);
+				e.printStackTrace();
+			} finally {
+				requeue(this);
+			}
+		}
+	}
+}
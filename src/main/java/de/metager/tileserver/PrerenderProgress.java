@@ -0,0 +1,138 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author SumaEV
+ * Keeps track of how far a prerendering got, so an interrupted prerendering can continue where it stopped.
+ * The checkpoint is the order (see TileEnumerator) of the first MetaTile that is not finished yet,
+ * every MetaTile before it is in the tileset. The checkpoint File also records the mode and MetaTile
+ * size, a checkpoint of a different kind of prerendering is ignored. Below the checkpoint it lists the
+ * open sea MetaTiles before it that UniformTiles pruned, one "z;x;y;until" per line.
+ * started() and save() are called by the Thread that enumerates the MetaTiles, finished() and failed() by the render Threads.
+ * A MetaTile that failed stays unfinished, so the checkpoint stays in front of it and a resumed run renders it again.
+ */
+public class PrerenderProgress {
+
+	private final File file;
+	private final String mode;
+	private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+	private final AtomicLong finished = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long next = 0;
+
+	public PrerenderProgress(File file, boolean incremental, int metaTileSize) {
+		this.file = file;
+		this.mode = (incremental ? "incremental" : "full") + ";" + metaTileSize;
+	}
+
+	/**
+	 * Returns the checkpoint of the last run or 0 if there is nothing to resume.
+	 */
+	public long load() {
+		List<String> lines = read();
+		if (lines == null) return 0;
+		try {
+			return Long.parseLong(lines.get(1).trim());
+		} catch (NumberFormatException e) {
+			System.err.println("Ignoring unreadable checkpoint " + this.file.getAbsolutePath());
+		}
+		return 0;
+	}
+
+	/**
+	 * Prunes the open sea MetaTiles again that the last run had pruned, so the resumed run leaves out
+	 * their subtrees as well. Only call it when the run is resumed from load().
+	 */
+	public void loadPruned(UniformTiles uniformTiles) {
+		List<String> lines = read();
+		if (lines == null) return;
+		try {
+			for (String line : lines.subList(2, lines.size())) {
+				if (line.isEmpty()) continue;
+				String[] fields = line.split(";");
+				uniformTiles.restore(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+						Integer.parseInt(fields[3]));
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.err.println("Ignoring unreadable pruned MetaTiles in " + this.file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * The lines of the checkpoint File, null if there is none of this kind of prerendering
+	 */
+	private List<String> read() {
+		if (!this.file.exists()) return null;
+		try {
+			List<String> lines = Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8);
+			if (lines.size() >= 2 && lines.get(0).equals(this.mode)) return lines;
+		} catch (IOException e) {
+			System.err.println("Ignoring unreadable checkpoint " + this.file.getAbsolutePath());
+		}
+		return null;
+	}
+
+	public void started(long order) {
+		this.inFlight.add(order);
+		this.next = order + 1;
+	}
+
+	public void finished(long order) {
+		this.inFlight.remove(order);
+		this.finished.incrementAndGet();
+	}
+
+	public void failed(long order) {
+		this.failed.incrementAndGet();
+	}
+
+	/**
+	 * Number of MetaTiles that failed, the tileset is not complete if there are any
+	 */
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	public long getFinished() {
+		return this.finished.get();
+	}
+
+	public long getCheckpoint() {
+		Long first = this.inFlight.ceiling(Long.MIN_VALUE);
+		return first != null ? first : this.next;
+	}
+
+	public void save(PackedTileWriter output) throws IOException {
+		save(output, null);
+	}
+
+	/**
+	 * Flushes the tileset and writes the checkpoint together with the pruned MetaTiles before it.
+	 * The tileset is flushed first so the checkpoint never claims Tiles that are not on disk yet.
+	 */
+	public void save(PackedTileWriter output, UniformTiles uniformTiles) throws IOException {
+		long checkpoint = getCheckpoint();
+		output.flush();
+		StringBuilder content = new StringBuilder(this.mode).append('\n').append(checkpoint).append('\n');
+		if (uniformTiles != null) {
+			for (int[] pruned : uniformTiles.getPruned(checkpoint)) {
+				content.append(pruned[0]).append(';').append(pruned[1]).append(';').append(pruned[2]).append(';').append(pruned[3]).append('\n');
+			}
+		}
+		File tmp = new File(this.file.getPath() + ".tmp");
+		Files.write(tmp.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public void delete() {
+		this.file.delete();
+	}
+}
@@ -0,0 +1,125 @@
+package de.metager.tileserver;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+
+/**
+ * @author SumaEV
+ * Renders the MetaTiles beyond the prerendered zoom levels that users actually look at into the disk Cache,
+ * before they get asked for again. Every interval the MetaTiles are ranked by AccessStats (how often they are
+ * asked for times how long they take to render) and rendered in that order until the time budget or the
+ * byte budget of the run is used up. MetaTiles that are cached already are skipped.
+ * Like the Prefetcher it only renders while the render Threads have nothing else to do (see IdleRenderer).
+ */
+public class PrerenderScheduler implements Runnable {
+
+	// A MetaTile that was asked for only once is not worth it
+	private static final int MIN_REQUESTS = 2;
+
+	private AtomicReference<RenderGeneration> generation;
+	private ThreadPoolExecutor executor;
+	private TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer;
+	private TileMemoryCache<RendererJob> memoryCache;
+	private DiskTileCache diskCache;
+	private AccessStats accessStats;
+	private DisplayModel displayModel;
+	private GraphicFactory GRAPHIC_FACTORY;
+	private int metaTileSize;
+	private long interval;
+	private long timeBudget;
+	private long byteBudget;
+
+	private final AtomicLong rendered = new AtomicLong();
+	private final AtomicLong runs = new AtomicLong();
+
+	public PrerenderScheduler(AtomicReference<RenderGeneration> generation, ThreadPoolExecutor executor,
+			TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer, TileMemoryCache<RendererJob> memoryCache,
+			DiskTileCache diskCache, AccessStats accessStats, DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY,
+			int metaTileSize, long interval, long timeBudget, long byteBudget) {
+		this.generation = generation;
+		this.executor = executor;
+		this.coalescer = coalescer;
+		this.memoryCache = memoryCache;
+		this.diskCache = diskCache;
+		this.accessStats = accessStats;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+		this.metaTileSize = metaTileSize;
+		this.interval = interval;
+		this.timeBudget = timeBudget;
+		this.byteBudget = byteBudget;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(this.interval);
+				prerender();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void prerender() throws InterruptedException {
+		List<int[]> ranked = this.accessStats.ranked(MIN_REQUESTS);
+		long end = System.currentTimeMillis() + this.timeBudget;
+		long bytes = 0;
+		int count = 0;
+		for (int[] metaTile : ranked) {
+			// Real requests come first
+			if (!IdleRenderer.awaitIdle(this.executor, end) || bytes > this.byteBudget) break;
+			long written = render(metaTile[1], metaTile[2], metaTile[0]);
+			if (written > 0) {
+				bytes += written;
+				count++;
+			}
+		}
+		this.runs.incrementAndGet();
+		this.rendered.addAndGet(count);
+		if (count > 0) {
+			System.out.println("[" + Instant.now() + "] Prerendered " + count + " of " + ranked.size() + " ranked MetaTiles ("
+					+ bytes / 1024 + " KB)");
+		}
+	}
+
+	/**
+	 * Renders the MetaTile unless it is cached already and returns the size of its Tiles
+	 */
+	private long render(int x, int y, int z) {
+		if (this.diskCache.contains(z, x, y)) return 0;
+		RenderGeneration generation = RenderGeneration.acquireCurrent(this.generation);
+		try {
+			Map<RendererJob, byte[]> tiles = TileRenderer.render(generation, this.coalescer, this.memoryCache, this.diskCache,
+					this.accessStats, this.metaTileSize, TileVariant.DEFAULT, x, y, z, this.GRAPHIC_FACTORY, Long.MAX_VALUE);
+			if (tiles == null) return 0;
+			long bytes = 0;
+			for (byte[] png : tiles.values()) {
+				bytes += png.length;
+			}
+			return bytes;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			generation.release();
+		}
+	}
+
+	public long getRendered() {
+		return this.rendered.get();
+	}
+
+	public long getRuns() {
+		return this.runs.get();
+	}
+}
@@ -0,0 +1,248 @@
+package de.metager.tileserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+/**
+ * @author SumaEV
+ * Renders shards of a prerendering for a PrerenderCoordinator and streams the Tiles back to it.
+ * The worker needs the same Map Files and Rendertheme as the coordinator. It asks for the next shard
+ * as soon as every MetaTile of the current one is queued, so its render Threads don't run dry at the end of a shard.
+ * A shard is reported as done once all of its Tiles are sent. While rendering, a heartbeat keeps the leases alive.
+ * If a MetaTile of a shard fails, the worker closes the connection, so the coordinator hands out its shards again.
+ * The worker stops when the coordinator has no shards left or the connection to it breaks.
+ */
+public class PrerenderWorker implements Runnable {
+
+	// How long to wait before asking again if every shard is leased to some worker
+	private static final long WAIT_TIME = 5000;
+	private static final long HEARTBEAT_INTERVAL = 10000;
+
+	private String host;
+	private int port;
+	private int processes;
+	private File mapFileDir;
+	private RenderContextPool renderContexts;
+	private MultiMapDataStore mf;
+	private RenderThemeFuture renderThemeFuture;
+	private DisplayModel displayModel;
+	private GraphicFactory GRAPHIC_FACTORY;
+	// Sub-file zoom levels of the Map Files by the last zoom level of a shard
+	private final Map<Integer, int[]> subFileMaxZooms = new HashMap<>();
+
+	public PrerenderWorker(String host, int port, int processes, File mapFileDir, RenderContextPool renderContexts,
+			MultiMapDataStore mf, RenderThemeFuture renderThemeFuture, DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY) {
+		this.host = host;
+		this.port = port;
+		this.processes = processes;
+		this.mapFileDir = mapFileDir;
+		this.renderContexts = renderContexts;
+		this.mf = mf;
+		this.renderThemeFuture = renderThemeFuture;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+	}
+
+	@Override
+	public void run() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(this.processes, this.processes, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(this.processes * 4), (r, e) -> {
+					try {
+						e.getQueue().put(r);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				});
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
+		});
+		try (Socket socket = new Socket(this.host, this.port);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024))) {
+			System.out.println("[" + Instant.now() + "] Connected to the coordinator at " + this.host + ":" + this.port);
+			RemoteOutput output = new RemoteOutput(out);
+			heartbeat.scheduleWithFixedDelay(() -> {
+				try {
+					output.heartbeat();
+				} catch (IOException e) {
+					// The main Thread notices as well
+				}
+			}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+
+			while (true) {
+				output.lease();
+				byte type = in.readByte();
+				if (type == PrerenderCoordinator.FINISHED) break;
+				if (type == PrerenderCoordinator.WAIT) {
+					Thread.sleep(WAIT_TIME);
+					continue;
+				}
+				if (type != PrerenderCoordinator.SHARD) throw new IOException("Unknown message " + type);
+				int id = in.readInt();
+				int z = in.readInt();
+				int x = in.readInt();
+				int y = in.readInt();
+				int endZoom = in.readInt();
+				int metaTileSize = in.readInt();
+				long seed = in.readLong();
+				BoundingBox bbox = new BoundingBox(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+				System.out.println("[" + Instant.now() + "] Rendering shard " + id + " (" + z + "/" + x + "/" + y + " to zoom " + endZoom + ")");
+				render(executor, output, id, z, x, y, endZoom, metaTileSize, seed, bbox);
+			}
+			// Every shard has to be sent before the connection goes away
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			System.out.println("[" + Instant.now() + "] Finished, the coordinator has no shards left");
+		} catch (IOException e) {
+			System.err.println("[" + Instant.now() + "] Lost the connection to the coordinator at " + this.host + ":" + this.port);
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+			heartbeat.shutdownNow();
+		}
+	}
+
+	/**
+	 * Queues every MetaTile of the shard. Returns once the last one is queued, the shard is reported
+	 * as done by whichever render Thread finishes last, unless one of its MetaTiles failed.
+	 */
+	private void render(ThreadPoolExecutor executor, RemoteOutput output, int id, int z, int x, int y, int endZoom,
+			int metaTileSize, long seed, BoundingBox bbox) {
+		int[] maxZooms = this.subFileMaxZooms.computeIfAbsent(endZoom, zoom -> MapsforgeHelper.getSubFileMaxZooms(this.mapFileDir, zoom));
+		UniformTiles uniformTiles = new UniformTiles(metaTileSize, maxZooms, this.mf, this.renderThemeFuture, this.displayModel, this.GRAPHIC_FACTORY);
+		TileEnumerator metaTiles = new TileEnumerator(bbox, z, endZoom, metaTileSize, 0, uniformTiles, z, x, y);
+		// One for the enumeration and one for every queued MetaTile
+		AtomicInteger unfinished = new AtomicInteger(1);
+		AtomicBoolean failed = new AtomicBoolean();
+		Runnable finished = () -> {
+			if (unfinished.decrementAndGet() == 0) {
+				try {
+					if (failed.get()) {
+						output.fail(id);
+					} else {
+						output.done(id);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		while (metaTiles.hasNext()) {
+			TileEnumerator.Position metaTile = metaTiles.next();
+			int size = MetaTile.sizeForZoom(metaTileSize, metaTile.z);
+			TileWriter writer = new TileWriter(metaTile.x, metaTile.y, metaTile.z, size, output, seed, null, metaTile.order,
+					uniformTiles, this.renderContexts, this.mf, this.renderThemeFuture, this.displayModel, this.GRAPHIC_FACTORY);
+			unfinished.incrementAndGet();
+			executor.execute(() -> {
+				try {
+					if (!writer.write()) failed.set(true);
+				} catch (RuntimeException e) {
+					failed.set(true);
+					throw e;
+				} finally {
+					finished.run();
+				}
+			});
+		}
+		finished.run();
+	}
+
+	/**
+	 * Sends the Tiles to the coordinator. Nothing is known about earlier renderings, so every MetaTile gets rendered.
+	 */
+	private static class RemoteOutput implements TileOutput {
+
+		private final DataOutputStream out;
+
+		RemoteOutput(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void put(int z, int x, int y, byte[] png) throws IOException {
+			if (png == null || png.length == 0) return;
+			synchronized (this.out) {
+				this.out.writeByte(PrerenderCoordinator.TILE);
+				this.out.writeInt(z);
+				this.out.writeInt(x);
+				this.out.writeInt(y);
+				this.out.writeInt(png.length);
+				this.out.write(png);
+			}
+		}
+
+		@Override
+		public long getHash(int z, int x, int y) {
+			return 0;
+		}
+
+		@Override
+		public void putHash(int z, int x, int y, long hash) throws IOException {
+			synchronized (this.out) {
+				this.out.writeByte(PrerenderCoordinator.HASH);
+				this.out.writeInt(z);
+				this.out.writeInt(x);
+				this.out.writeInt(y);
+				this.out.writeLong(hash);
+			}
+		}
+
+		void done(int id) throws IOException {
+			synchronized (this.out) {
+				this.out.writeByte(PrerenderCoordinator.DONE);
+				this.out.writeInt(id);
+				this.out.flush();
+			}
+		}
+
+		/**
+		 * Gives up on a shard by closing the connection, the coordinator hands out every shard of this worker again
+		 */
+		void fail(int id) throws IOException {
+			System.err.println("[" + Instant.now() + "] Shard " + id + " failed, giving the shards back to the coordinator");
+			synchronized (this.out) {
+				this.out.close();
+			}
+		}
+
+		void lease() throws IOException {
+			send(PrerenderCoordinator.LEASE);
+		}
+
+		void heartbeat() throws IOException {
+			send(PrerenderCoordinator.HEARTBEAT);
+		}
+
+		private void send(byte type) throws IOException {
+			synchronized (this.out) {
+				this.out.writeByte(type);
+				this.out.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package de.metager.tileserver;
+
+import java.io.File;
+
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+
+/**
+ * @author SumaEV
+ * Everything a render Thread needs for itself. Each RenderContext opens the Map Files on its own,
+ * so the render Threads don't compete for the index cache and read buffers of a single MapFile.
+ * The Rendertheme is not part of it, all RenderContexts share it read only.
+ * The MultiMapDataStore of the Tileserver still identifies the Tiles (see MetaTile.createRendererJob()),
+ * the one of the RenderContext is only used to read the map data. Reads go through the MapDataCache of the pool.
+ */
+public class RenderContext {
+
+	private final MultiMapDataStore mapDataStore;
+	private final CachingMapDataStore reader;
+
+	public RenderContext(File mapFileDir, MapDataCache mapDataCache) {
+		this.mapDataStore = MapsforgeHelper.getMultiMapDataStore(mapFileDir);
+		this.reader = new CachingMapDataStore(this.mapDataStore, mapDataCache);
+	}
+
+	public MapDataStore getMapDataStore() {
+		return this.reader;
+	}
+
+	public void close() {
+		this.mapDataStore.close();
+	}
+}
@@ -0,0 +1,78 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * @author SumaEV
+ * A fixed number of RenderContexts, as many as there are render Threads.
+ * A Thread takes a RenderContext with acquire() before it renders and gives it back with release().
+ * With thread affinity every Thread keeps the first RenderContext it got for good, which keeps the
+ * read buffers and index caches warm for that Thread. The pool must be as big as the number of Threads
+ * that render (the render executor and the background Threads of the Tileserver), otherwise a Thread
+ * waits for a RenderContext that another one keeps for good or uses for background work.
+ * All RenderContexts share one MapDataCache of tileserver.mapDataCacheMB (0 disables it)
+ * and one SharedLabelStore of tileserver.labelStoreTiles Tiles (0 disables it).
+ */
+public class RenderContextPool {
+
+	private final ArrayBlockingQueue<RenderContext> free;
+	private final List<RenderContext> all = new ArrayList<>();
+	private final boolean affinity;
+	private final ThreadLocal<RenderContext> owned = new ThreadLocal<>();
+	private final MapDataCache mapDataCache;
+	private final SharedLabelStore labelStore;
+
+	public RenderContextPool(File mapFileDir, int size, boolean affinity) {
+		this.free = new ArrayBlockingQueue<>(size);
+		this.affinity = affinity;
+		this.mapDataCache = new MapDataCache(mapFileDir, Long.getLong("tileserver.mapDataCacheMB", 128) * 1024 * 1024);
+		int labelStoreTiles = Integer.getInteger("tileserver.labelStoreTiles", 65536);
+		this.labelStore = labelStoreTiles > 0 ? new SharedLabelStore(labelStoreTiles) : null;
+		for (int i = 0; i < size; i++) {
+			RenderContext context = new RenderContext(mapFileDir, this.mapDataCache);
+			this.all.add(context);
+			this.free.add(context);
+		}
+	}
+
+	public RenderContext acquire() throws InterruptedException {
+		if (this.affinity) {
+			RenderContext context = this.owned.get();
+			if (context == null) {
+				context = this.free.take();
+				this.owned.set(context);
+			}
+			return context;
+		}
+		return this.free.take();
+	}
+
+	public void release(RenderContext context) {
+		if (!this.affinity) this.free.offer(context);
+	}
+
+	public MapDataCache getMapDataCache() {
+		return this.mapDataCache;
+	}
+
+	/**
+	 * Null if the labels don't cross the edges of a MetaTile
+	 */
+	public SharedLabelStore getLabelStore() {
+		return this.labelStore;
+	}
+
+	/**
+	 * Closes every RenderContext, none of them may be in use anymore
+	 */
+	public void close() {
+		for (RenderContext context : this.all) {
+			context.close();
+		}
+		this.mapDataCache.clear();
+		if (this.labelStore != null) this.labelStore.clear();
+	}
+}
@@ -0,0 +1,175 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+/**
+ * @author SumaEV
+ * The Map Files and the Rendertheme the Tileserver currently renders with.
+ * When one of them changes on disk the GenerationWatcher builds a new RenderGeneration and swaps it in,
+ * new requests use the new one while running renderings finish with the one they started with.
+ * Every user of a RenderGeneration retain()s it first and release()s it when done. The last release()
+ * after the generation got retired closes its Map Files and frees the Rendertheme.
+ * The Rendertheme for @2x Tiles (see TileVariant) is only loaded once the first one is asked for.
+ */
+public class RenderGeneration {
+
+	private final long number;
+	private final MultiMapDataStore mf;
+	private final RenderThemeFuture renderThemeFuture;
+	private final RenderContextPool renderContexts;
+	private final ExternalRenderTheme renderTheme;
+	private final DisplayModel displayModel;
+	private final GraphicFactory GRAPHIC_FACTORY;
+	private DisplayModel scaledDisplayModel;
+	private RenderThemeFuture scaledRenderThemeFuture;
+	// Users of this generation, the Tileserver itself counts as one until the generation is retired
+	private final AtomicInteger users = new AtomicInteger(1);
+	private volatile boolean retired = false;
+
+	RenderGeneration(long number, MultiMapDataStore mf, RenderThemeFuture renderThemeFuture, RenderContextPool renderContexts,
+			ExternalRenderTheme renderTheme, DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY) {
+		this.number = number;
+		this.mf = mf;
+		this.renderThemeFuture = renderThemeFuture;
+		this.renderContexts = renderContexts;
+		this.renderTheme = renderTheme;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+	}
+
+	/**
+	 * Loads the Map Files and the Rendertheme. Blocks until the Rendertheme is parsed,
+	 * so a broken Rendertheme is noticed here and not by the first request.
+	 */
+	public static RenderGeneration load(long number, File mapFileDir, File renderThemeFile, DisplayModel displayModel,
+			GraphicFactory gRAPHIC_FACTORY, int renderThreads, boolean affinity) throws FileNotFoundException, ExecutionException, InterruptedException {
+		MultiMapDataStore mf = MapsforgeHelper.getMultiMapDataStore(mapFileDir);
+		if (mf == null) throw new FileNotFoundException("There are no Map Files in " + mapFileDir.getAbsolutePath());
+		ExternalRenderTheme renderTheme = new ExternalRenderTheme(renderThemeFile);
+		RenderThemeFuture renderThemeFuture = new RenderThemeFuture(gRAPHIC_FACTORY, renderTheme, displayModel);
+		new Thread(renderThemeFuture).start();
+		try {
+			renderThemeFuture.get();
+		} catch (ExecutionException | InterruptedException e) {
+			mf.close();
+			throw e;
+		}
+		// Every render Thread reads the map data with its own RenderContext, only the Rendertheme is shared
+		RenderContextPool renderContexts;
+		try {
+			renderContexts = new RenderContextPool(mapFileDir, renderThreads, affinity);
+		} catch (RuntimeException e) {
+			mf.close();
+			renderThemeFuture.decrementRefCount();
+			throw e;
+		}
+		return new RenderGeneration(number, mf, renderThemeFuture, renderContexts, renderTheme, displayModel, gRAPHIC_FACTORY);
+	}
+
+	public long getNumber() {
+		return number;
+	}
+
+	/**
+	 * The MultiMapDataStore that identifies the Tiles of this generation (see MetaTile.createRendererJob())
+	 */
+	public MultiMapDataStore getMapDataStore() {
+		return mf;
+	}
+
+	public RenderThemeFuture getRenderThemeFuture() {
+		return renderThemeFuture;
+	}
+
+	/**
+	 * The Rendertheme for Tiles of the given scale (1 or 2). The one for scale 2 is parsed
+	 * in the background the first time it is asked for, renderers wait for it.
+	 */
+	public RenderThemeFuture getRenderThemeFuture(int scale) {
+		if (scale == 1) return this.renderThemeFuture;
+		synchronized (this) {
+			if (this.scaledRenderThemeFuture == null) {
+				this.scaledRenderThemeFuture = new RenderThemeFuture(this.GRAPHIC_FACTORY, this.renderTheme, getDisplayModel(scale));
+				new Thread(this.scaledRenderThemeFuture).start();
+			}
+			return this.scaledRenderThemeFuture;
+		}
+	}
+
+	/**
+	 * The DisplayModel for Tiles of the given scale (1 or 2)
+	 */
+	public DisplayModel getDisplayModel(int scale) {
+		if (scale == 1) return this.displayModel;
+		synchronized (this) {
+			if (this.scaledDisplayModel == null) {
+				this.scaledDisplayModel = new DisplayModel();
+				this.scaledDisplayModel.setUserScaleFactor(scale);
+				this.scaledDisplayModel.setFixedTileSize(this.displayModel.getTileSize() * scale);
+			}
+			return this.scaledDisplayModel;
+		}
+	}
+
+	public RenderContextPool getRenderContexts() {
+		return renderContexts;
+	}
+
+	public boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Registers a user of this generation. Fails if the generation is closed already.
+	 */
+	public boolean retain() {
+		while (true) {
+			int current = this.users.get();
+			if (current <= 0) return false;
+			if (this.users.compareAndSet(current, current + 1)) return true;
+		}
+	}
+
+	public void release() {
+		if (this.users.decrementAndGet() == 0) close();
+	}
+
+	/**
+	 * Retains the generation that is current right now. retain() only fails for a generation that got
+	 * swapped out and closed in the meantime, then the reference already holds the next one.
+	 */
+	public static RenderGeneration acquireCurrent(AtomicReference<RenderGeneration> current) {
+		while (true) {
+			RenderGeneration generation = current.get();
+			if (generation.retain()) return generation;
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Called once a newer generation took over. It gets closed as soon as its last user is done.
+	 */
+	public void retire() {
+		this.retired = true;
+		release();
+	}
+
+	private void close() {
+		this.renderContexts.close();
+		this.mf.close();
+		this.renderThemeFuture.decrementRefCount();
+		synchronized (this) {
+			if (this.scaledRenderThemeFuture != null) this.scaledRenderThemeFuture.decrementRefCount();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package de.metager.tileserver;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author SumaEV
+ * The work queue of the render executor. It holds at most capacity TileRenderers and hands
+ * them out by priority (low zoom levels first, then oldest first).
+ * Requests that didn't fit into the queue or that waited longer than their deadline don't get rendered
+ * anymore, the client gets a fast "busy" reply instead. That way the queue cannot grow without limit
+ * and the latency under overload stays predictable. Requests of clients that hung up in the meantime are dropped.
+ */
+public class RenderQueue extends PriorityBlockingQueue<Runnable> implements RejectedExecutionHandler {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * A request the queue can drop without running it, see TileRenderer
+	 */
+	interface Request extends Runnable {
+		boolean isAbandoned();
+
+		boolean isExpired();
+
+		/**
+		 * Called instead of run() once the client hung up
+		 */
+		void abandon();
+
+		/**
+		 * Called instead of run() once the request waited too long or didn't fit into the queue
+		 */
+		void busy();
+	}
+
+	private final int capacity;
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong shed = new AtomicLong();
+	private final AtomicLong abandoned = new AtomicLong();
+
+	public RenderQueue(int capacity) {
+		super();
+		this.capacity = capacity;
+	}
+
+	@Override
+	public synchronized boolean offer(Runnable r) {
+		// A full queue makes the executor reject the request
+		if (size() >= this.capacity) return false;
+		return super.offer(r);
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		while (true) {
+			Runnable r = super.take();
+			if (!shedIfExpired(r)) return r;
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			Runnable r = super.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if (r == null || !shedIfExpired(r)) return r;
+		}
+	}
+
+	private boolean shedIfExpired(Runnable r) {
+		if (!(r instanceof Request)) return false;
+		Request renderer = (Request) r;
+		if (renderer.isAbandoned()) {
+			this.abandoned.incrementAndGet();
+			renderer.abandon();
+			return true;
+		}
+		if (renderer.isExpired()) {
+			this.shed.incrementAndGet();
+			renderer.busy();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+		this.rejected.incrementAndGet();
+		if (r instanceof Request) {
+			((Request) r).busy();
+		}
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Number of requests that didn't fit into the queue
+	 */
+	public long getRejected() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * Number of requests that were dropped because they waited longer than their deadline
+	 */
+	public long getShed() {
+		return this.shed.get();
+	}
+
+	/**
+	 * Number of requests that were dropped because the client hung up while they waited
+	 */
+	public long getAbandoned() {
+		return this.abandoned.get();
+	}
+}
@@ -0,0 +1,98 @@
+package de.metager.tileserver;
+
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+
+/**
+ * @author SumaEV
+ * Renders the stale Tiles of the DiskTileCache again after the Map Files or the Rendertheme changed.
+ * The TileServer keeps serving a stale Tile right away and queues it here, so an update of the map data
+ * doesn't turn every request into an on demand rendering at once. Like the Prefetcher it only renders while
+ * the render Threads are idle (see IdleRenderer), the most recently requested Tile first.
+ * At most budget Tiles wait for it, if more get queued the oldest ones are dropped. They are queued again
+ * when they get asked for the next time. Without a budget stale Tiles are not served, they get rendered
+ * on demand like any other miss.
+ */
+public class Revalidator extends IdleRenderer<Revalidator.Refresh> {
+
+	static final class Refresh {
+		final int x;
+		final int y;
+		final int z;
+		final TileVariant variant;
+		final PackedTileStore prerendered;
+
+		Refresh(int x, int y, int z, TileVariant variant, PackedTileStore prerendered) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.variant = variant;
+			this.prerendered = prerendered;
+		}
+	}
+
+	private AtomicReference<RenderGeneration> generation;
+	private TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer;
+	private TileMemoryCache<RendererJob> memoryCache;
+	private DiskTileCache diskCache;
+	private AccessStats accessStats;
+	private Prefetcher prefetcher;
+	private DisplayModel displayModel;
+	private GraphicFactory GRAPHIC_FACTORY;
+	private int metaTileSize;
+	private long renderTimeout;
+
+	private final AtomicLong refreshed = new AtomicLong();
+
+	public Revalidator(AtomicReference<RenderGeneration> generation, ThreadPoolExecutor executor,
+			TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer, TileMemoryCache<RendererJob> memoryCache,
+			DiskTileCache diskCache, AccessStats accessStats, Prefetcher prefetcher, DisplayModel displayModel,
+			GraphicFactory gRAPHIC_FACTORY, int metaTileSize, long renderTimeout, int budget) {
+		super(executor, budget);
+		this.generation = generation;
+		this.coalescer = coalescer;
+		this.memoryCache = memoryCache;
+		this.diskCache = diskCache;
+		this.accessStats = accessStats;
+		this.prefetcher = prefetcher;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+		this.metaTileSize = metaTileSize;
+		this.renderTimeout = renderTimeout;
+	}
+
+	/**
+	 * Queues the stale Tile x, y, z of the given variant. Composite Tiles are put together from the
+	 * prerendered Tiles where possible.
+	 */
+	public void refresh(int x, int y, int z, TileVariant variant, PackedTileStore prerendered) {
+		queue(new Refresh(x, y, z, variant, prerendered));
+	}
+
+	@Override
+	protected long key(Refresh refresh) {
+		return TileKey.of(refresh.z, refresh.x, refresh.y, refresh.variant);
+	}
+
+	@Override
+	protected void render(Refresh refresh) {
+		// Rendered again since it was queued
+		if (!this.diskCache.isStale(refresh.z, refresh.x, refresh.y, refresh.variant)) return;
+		RenderGeneration generation = RenderGeneration.acquireCurrent(this.generation);
+		// The TileRenderer releases the generation when it is done
+		TileRenderer renderer = new TileRenderer(generation, this.displayModel, this.GRAPHIC_FACTORY, this.coalescer, this.memoryCache,
+				this.diskCache, this.accessStats, this.prefetcher, refresh.prerendered, this.metaTileSize, refresh.x, refresh.y,
+				refresh.z, refresh.variant, Long.MAX_VALUE, this.renderTimeout, null);
+		if (renderer.refresh() != null) this.refreshed.incrementAndGet();
+	}
+
+	public long getRefreshed() {
+		return this.refreshed.get();
+	}
+}
@@ -0,0 +1,210 @@
+package de.metager.tileserver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.mapsforge.core.mapelements.MapElementContainer;
+import org.mapsforge.core.model.Rectangle;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.util.LayerUtil;
+
+/**
+ * @author SumaEV
+ * Remembers where the labels were placed, shared by every render Thread of a RenderGeneration.
+ * A MetaTile places the labels of all of its Tiles at once. Labels that reach into a neighbouring MetaTile
+ * are kept for its Tiles, so the neighbour draws the other half of them and leaves its own clashing labels out.
+ * Labels of the neighbour that would reach into a MetaTile that is drawn already are left out as well,
+ * nothing gets cut off at the edge. A MetaTile that gets rendered again (after it fell out of the Caches)
+ * gets the same labels as before instead of placing them again.
+ * At most capacity Tiles are remembered, the least recently used ones are forgotten first.
+ * Placing is done under striped locks, one per block of BLOCK x BLOCK Tiles. A MetaTile locks the blocks of its
+ * Tiles and of their neighbours, so MetaTiles that share an edge place one after another while
+ * MetaTiles of other areas place at the same time. The map of Tiles itself is only locked to read and update it.
+ */
+public class SharedLabelStore {
+
+	private static final class Entry {
+		// True once the Tile is drawn, its labels are final then
+		boolean placed;
+		// The labels on the Tile, or the ones of its drawn neighbours that reach into it
+		final Set<MapElementContainer> labels = new LinkedHashSet<>();
+	}
+
+	// Side of a block of Tiles that share a lock
+	private static final int BLOCK_SHIFT = 4;
+	// Number of locks, a power of two
+	private static final int STRIPES = 64;
+
+	private final int capacity;
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+	// Access ordered so the eldest entry is always the least recently used one
+	private final LinkedHashMap<Tile, Entry> tiles = new LinkedHashMap<>(1024, 0.75f, true);
+
+	private final AtomicLong placed = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	public SharedLabelStore(int capacity) {
+		this.capacity = capacity;
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Places the labels of a MetaTile. tiles are its Tiles and candidates the labels the renderer found for them.
+	 * Returns the labels to draw on every Tile of the MetaTile.
+	 */
+	public Set<MapElementContainer> place(List<Tile> tiles, Set<MapElementContainer> candidates) {
+		Set<Tile> own = new LinkedHashSet<>(tiles);
+		Set<Tile> neighbours = new LinkedHashSet<>();
+		for (Tile tile : tiles) {
+			for (Tile neighbour : tile.getNeighbours()) {
+				if (!own.contains(neighbour)) neighbours.add(neighbour);
+			}
+		}
+		// Ascending, so two MetaTiles never wait for each other's locks
+		TreeSet<Integer> locked = new TreeSet<>();
+		for (Tile tile : own) {
+			locked.add(stripe(tile));
+		}
+		for (Tile neighbour : neighbours) {
+			locked.add(stripe(neighbour));
+		}
+		for (int stripe : locked) {
+			this.stripes[stripe].lock();
+		}
+		try {
+			return place(tiles, neighbours, candidates);
+		} finally {
+			for (int stripe : locked.descendingSet()) {
+				this.stripes[stripe].unlock();
+			}
+		}
+	}
+
+	private Set<MapElementContainer> place(List<Tile> tiles, Set<Tile> neighbours, Set<MapElementContainer> candidates) {
+		Set<MapElementContainer> labels = new LinkedHashSet<>();
+		// Labels of drawn neighbours that reach into this MetaTile have to be drawn, the others must not reach into them
+		List<Rectangle> drawn = new ArrayList<>();
+		synchronized (this.tiles) {
+			boolean allPlaced = true;
+			for (Tile tile : tiles) {
+				Entry entry = this.tiles.get(tile);
+				if (entry != null) labels.addAll(entry.labels);
+				allPlaced &= entry != null && entry.placed;
+			}
+			if (allPlaced) {
+				this.reused.incrementAndGet();
+				return labels;
+			}
+			for (Tile neighbour : neighbours) {
+				Entry entry = this.tiles.get(neighbour);
+				if (entry != null && entry.placed) drawn.add(neighbour.getBoundaryAbsolute());
+			}
+		}
+		List<MapElementContainer> free = new ArrayList<>();
+		for (MapElementContainer candidate : candidates) {
+			if (labels.contains(candidate)) continue;
+			boolean reachesDrawn = false;
+			for (Rectangle boundary : drawn) {
+				if (candidate.intersects(boundary)) {
+					reachesDrawn = true;
+					break;
+				}
+			}
+			if (!reachesDrawn) free.add(candidate);
+		}
+		for (MapElementContainer label : LayerUtil.collisionFreeOrdered(free)) {
+			boolean clashes = false;
+			for (MapElementContainer fixed : labels) {
+				if (fixed.clashesWith(label)) {
+					clashes = true;
+					break;
+				}
+			}
+			if (!clashes) labels.add(label);
+		}
+
+		synchronized (this.tiles) {
+			for (Tile tile : tiles) {
+				Entry entry = entry(tile);
+				entry.placed = true;
+				entry.labels.clear();
+				addIntersecting(entry, tile, labels);
+			}
+			for (Tile neighbour : neighbours) {
+				Entry entry = entry(neighbour);
+				if (!entry.placed) addIntersecting(entry, neighbour, labels);
+			}
+			evict();
+		}
+		this.placed.incrementAndGet();
+		return labels;
+	}
+
+	/**
+	 * The lock of the block the Tile lies in
+	 */
+	private static int stripe(Tile tile) {
+		long block = TileKey.of(tile.zoomLevel, tile.tileX >> BLOCK_SHIFT, tile.tileY >> BLOCK_SHIFT) * 0x9E3779B97F4A7C15L;
+		return (int) (block >>> 58) & (STRIPES - 1);
+	}
+
+	private Entry entry(Tile tile) {
+		Entry entry = this.tiles.get(tile);
+		if (entry == null) {
+			entry = new Entry();
+			this.tiles.put(tile, entry);
+		}
+		return entry;
+	}
+
+	private static void addIntersecting(Entry entry, Tile tile, Set<MapElementContainer> labels) {
+		Rectangle boundary = tile.getBoundaryAbsolute();
+		for (MapElementContainer label : labels) {
+			if (label.intersects(boundary)) entry.labels.add(label);
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Tile, Entry>> it = this.tiles.entrySet().iterator();
+		while (this.tiles.size() > this.capacity && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	public void clear() {
+		synchronized (this.tiles) {
+			this.tiles.clear();
+		}
+	}
+
+	public int getCount() {
+		synchronized (this.tiles) {
+			return this.tiles.size();
+		}
+	}
+
+	/**
+	 * How many MetaTiles placed their labels
+	 */
+	public long getPlaced() {
+		return this.placed.get();
+	}
+
+	/**
+	 * How many MetaTiles got the labels they had before
+	 */
+	public long getReused() {
+		return this.reused.get();
+	}
+}
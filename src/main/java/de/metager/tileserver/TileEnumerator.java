@@ -0,0 +1,192 @@
+package de.metager.tileserver;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.util.MercatorProjection;
+
+/**
+ * @author SumaEV
+ * Lazily walks over all MetaTiles of a zoom range that intersect a Bounding Box.
+ * Within a zoom level the MetaTiles are visited along a Hilbert curve, so MetaTiles that get rendered
+ * one after another are close to each other and read neighbouring parts of the map files.
+ * Every MetaTile has an order (zoom level in the upper bits, position on the curve in the lower bits)
+ * which only grows, so a prerendering can be resumed from any order.
+ * MetaTiles below open sea that UniformTiles already took care of are left out.
+ * The walk can be limited to the subtree of a single MetaTile, that is how a PrerenderWorker walks its shard.
+ * The MetaTiles below an aligned square are a contiguous stretch of the Hilbert curve, so only that stretch is visited.
+ */
+public class TileEnumerator implements Iterator<TileEnumerator.Position> {
+
+	public static final class Position {
+		public final int z;
+		public final int x;
+		public final int y;
+		public final long order;
+
+		Position(int z, int x, int y, long order) {
+			this.z = z;
+			this.x = x;
+			this.y = y;
+			this.order = order;
+		}
+	}
+
+	private final BoundingBox bbox;
+	private final int endZoom;
+	private final int metaTileSize;
+	private final UniformTiles uniformTiles;
+	// Upper left Tile and size of the MetaTile whose subtree is walked, rootZoom is -1 for the whole Bounding Box
+	private final int rootZoom;
+	private final int rootX;
+	private final int rootY;
+	private final int rootSize;
+
+	private int z;
+	private long d;
+	private long end;
+	// Size of the current zoom level in MetaTiles and the MetaTiles covered by the Bounding Box
+	private int cells;
+	private int minCellX, minCellY, maxCellX, maxCellY;
+	private int cellSize;
+	private Position next;
+
+	public TileEnumerator(BoundingBox bbox, int startZoom, int endZoom, int metaTileSize, long resumeFrom, UniformTiles uniformTiles) {
+		this(bbox, startZoom, endZoom, metaTileSize, resumeFrom, uniformTiles, -1, 0, 0);
+	}
+
+	/**
+	 * Only walks the MetaTiles below the MetaTile with the upper left Tile rootX, rootY, rootZoom (including itself)
+	 */
+	public TileEnumerator(BoundingBox bbox, int startZoom, int endZoom, int metaTileSize, long resumeFrom, UniformTiles uniformTiles,
+			int rootZoom, int rootX, int rootY) {
+		this.bbox = bbox;
+		this.endZoom = endZoom;
+		this.metaTileSize = metaTileSize;
+		this.uniformTiles = uniformTiles;
+		this.rootZoom = rootZoom;
+		this.rootX = rootX;
+		this.rootY = rootY;
+		this.rootSize = rootZoom < 0 ? 0 : MetaTile.sizeForZoom(metaTileSize, rootZoom);
+		if (rootZoom > startZoom) startZoom = rootZoom;
+		int resumeZoom = (int) (resumeFrom >>> 48);
+		if (resumeZoom >= startZoom) {
+			startZoom(resumeZoom);
+			this.d = Math.max(this.d, resumeFrom & 0xFFFFFFFFFFFFL);
+		} else {
+			startZoom(startZoom);
+		}
+		this.next = advance();
+	}
+
+	public static long order(int z, long d) {
+		return ((long) z << 48) | d;
+	}
+
+	private void startZoom(int z) {
+		this.z = z;
+		this.d = 0;
+		this.cellSize = MetaTile.sizeForZoom(this.metaTileSize, z);
+		this.cells = (1 << z) / this.cellSize;
+		this.minCellX = MercatorProjection.longitudeToTileX(this.bbox.minLongitude, (byte) z) / this.cellSize;
+		this.maxCellX = MercatorProjection.longitudeToTileX(this.bbox.maxLongitude, (byte) z) / this.cellSize;
+		this.minCellY = MercatorProjection.latitudeToTileY(this.bbox.maxLatitude, (byte) z) / this.cellSize;
+		this.maxCellY = MercatorProjection.latitudeToTileY(this.bbox.minLatitude, (byte) z) / this.cellSize;
+		this.end = (long) this.cells * this.cells;
+		if (this.rootZoom >= 0 && z >= this.rootZoom) {
+			int shift = z - this.rootZoom;
+			int minX = (this.rootX << shift) / this.cellSize;
+			int minY = (this.rootY << shift) / this.cellSize;
+			int side = Math.max(1, (this.rootSize << shift) / this.cellSize);
+			this.minCellX = Math.max(this.minCellX, minX);
+			this.minCellY = Math.max(this.minCellY, minY);
+			this.maxCellX = Math.min(this.maxCellX, minX + side - 1);
+			this.maxCellY = Math.min(this.maxCellY, minY + side - 1);
+			long block = (long) side * side;
+			this.d = xyToHilbert(this.cells, minX, minY) / block * block;
+			this.end = this.d + block;
+		}
+	}
+
+	private Position advance() {
+		int[] xy = new int[2];
+		while (this.z <= this.endZoom) {
+			while (this.d < this.end) {
+				long current = this.d++;
+				hilbertToXY(this.cells, current, xy);
+				if (xy[0] >= this.minCellX && xy[0] <= this.maxCellX && xy[1] >= this.minCellY && xy[1] <= this.maxCellY) {
+					int x = xy[0] * this.cellSize;
+					int y = xy[1] * this.cellSize;
+					if (this.uniformTiles != null && this.uniformTiles.isPruned(this.z, x, y)) continue;
+					return new Position(this.z, x, y, order(this.z, current));
+				}
+			}
+			if (this.z == this.endZoom) break;
+			startZoom(this.z + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Converts the distance d along the Hilbert curve that fills an n x n grid to x and y
+	 */
+	static void hilbertToXY(int n, long d, int[] xy) {
+		int x = 0;
+		int y = 0;
+		long t = d;
+		for (int s = 1; s < n; s *= 2) {
+			int rx = (int) (1 & (t / 2));
+			int ry = (int) (1 & (t ^ rx));
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				int tmp = x;
+				x = y;
+				y = tmp;
+			}
+			x += s * rx;
+			y += s * ry;
+			t /= 4;
+		}
+		xy[0] = x;
+		xy[1] = y;
+	}
+
+	/**
+	 * Converts x and y in an n x n grid to the distance along the Hilbert curve, the inverse of hilbertToXY
+	 */
+	static long xyToHilbert(int n, int x, int y) {
+		long d = 0;
+		for (int s = n / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				int tmp = x;
+				x = y;
+				y = tmp;
+			}
+		}
+		return d;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.next != null;
+	}
+
+	@Override
+	public Position next() {
+		if (this.next == null) throw new NoSuchElementException();
+		Position current = this.next;
+		this.next = advance();
+		return current;
+	}
+}
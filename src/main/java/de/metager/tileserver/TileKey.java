@@ -0,0 +1,39 @@
+package de.metager.tileserver;
+
+/**
+ * @author SumaEV
+ * Packs a Tile into a single long for the sets and maps that keep track of Tiles:
+ * the id of the TileVariant in the topmost bits, below it 5 bits for the zoom level and 25 bits each for x and y.
+ * That is enough for every zoom level up to TileServer.MAX_ZOOM.
+ */
+public final class TileKey {
+
+	private static final long COORDINATE_MASK = 0x1FFFFFF;
+
+	private TileKey() {
+	}
+
+	public static long of(int z, int x, int y) {
+		return ((long) z << 50) | ((long) x << 25) | y;
+	}
+
+	public static long of(int z, int x, int y, TileVariant variant) {
+		return ((long) variant.getId() << 55) | of(z, x, y);
+	}
+
+	public static int zoom(long key) {
+		return (int) ((key >>> 50) & 0x1F);
+	}
+
+	public static int x(long key) {
+		return (int) ((key >>> 25) & COORDINATE_MASK);
+	}
+
+	public static int y(long key) {
+		return (int) (key & COORDINATE_MASK);
+	}
+
+	public static TileVariant variant(long key) {
+		return TileVariant.byId((int) (key >>> 55));
+	}
+}
@@ -0,0 +1,96 @@
+package de.metager.tileserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author SumaEV
+ * In-memory LRU Cache for encoded PNG Tiles. The capacity is given in bytes so
+ * it doesn't matter whether we store a lot of small ocean Tiles or a few big city Tiles.
+ * It sits in front of the prerendered Tiles and the on demand rendering.
+ */
+public class TileMemoryCache<K> {
+
+	private final long capacity;
+	private long size = 0;
+	// Access ordered so the eldest entry is always the least recently used one
+	private final LinkedHashMap<K, byte[]> tiles = new LinkedHashMap<>(1024, 0.75f, true);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public TileMemoryCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public synchronized byte[] get(K key) {
+		byte[] png = this.tiles.get(key);
+		if (png == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return png;
+	}
+
+	/**
+	 * Whether the Tile is cached, without counting as a hit or miss or changing the LRU order
+	 */
+	public synchronized boolean contains(K key) {
+		return this.tiles.containsKey(key);
+	}
+
+	public synchronized void put(K key, byte[] png) {
+		// A Tile bigger than the whole Cache would just evict everything else
+		if (png == null || png.length > this.capacity) return;
+		byte[] previous = this.tiles.put(key, png);
+		if (previous != null) this.size -= previous.length;
+		this.size += png.length;
+
+		Iterator<Map.Entry<K, byte[]>> it = this.tiles.entrySet().iterator();
+		while (this.size > this.capacity && it.hasNext()) {
+			Map.Entry<K, byte[]> eldest = it.next();
+			this.size -= eldest.getValue().length;
+			it.remove();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized void clear() {
+		this.tiles.clear();
+		this.size = 0;
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	public synchronized int getCount() {
+		return this.tiles.size();
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	@Override
+	public String toString() {
+		return "TileMemoryCache [tiles=" + getCount() + ", size=" + getSize() + "/" + this.capacity + ", hits="
+				+ getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+}
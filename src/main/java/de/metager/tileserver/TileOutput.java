@@ -0,0 +1,20 @@
+package de.metager.tileserver;
+
+import java.io.IOException;
+
+/**
+ * @author SumaEV
+ * Where a prerendering puts its Tiles: the packed tileset on this machine, or for a PrerenderWorker
+ * the PrerenderCoordinator on another one. Every method can be called from any number of Threads.
+ */
+public interface TileOutput {
+
+	public void put(int z, int x, int y, byte[] png) throws IOException;
+
+	/**
+	 * The hash of the map data the Tile was rendered from last time, 0 if it is unknown
+	 */
+	public long getHash(int z, int x, int y);
+
+	public void putHash(int z, int x, int y, long hash) throws IOException;
+}
@@ -1,89 +1,314 @@
 package de.metager.tileserver;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.apache.commons.io.IOUtils;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
 import org.mapsforge.core.graphics.GraphicFactory;
 import org.mapsforge.map.datastore.MultiMapDataStore;
-import org.mapsforge.map.layer.cache.FileSystemTileCache;
-import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
 import org.mapsforge.map.model.DisplayModel;
 import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
 
-import com.google.common.io.Files;
-
 /**
- * @author SumaEV A simple HttpHandler. It initializes the Tile Cache and
- *         handles incoming HTTP-Requests If the requests are valid Tile
- *         requests it starts the rendering Job.
+ * @author SumaEV Renders a Tile that was neither in the memory Cache nor
+ *         prerendered and hands the PNG back to the client connection.
+ *         Runs on the render executor, everything else is done by the TileServer.
+ *         Once the client hung up nothing new is started for it, a MetaTile that is being rendered
+ *         is still finished for the Caches. After renderTimeout no more Tiles are started and the
+ *         client gets "TIMEOUT", a failed rendering gets "ERROR" (see ClientConnection).
+ *         A 512 Tile (see TileVariant) is put together from the four Tiles below it, which
+ *         come from the Caches or the prerendered tileset or are rendered as a single MetaTile.
  */
-public class TileRenderer implements Runnable {
+public class TileRenderer implements RenderQueue.Request, Comparable<TileRenderer> {
+
+	// Keeps the order of requests with the same priority
+	private static final AtomicLong SEQUENCE = new AtomicLong();
 
 	private GraphicFactory GRAPHIC_FACTORY;
-	private FileSystemTileCache tileCache;
+	private RenderGeneration generation;
 	private MultiMapDataStore mf;
-	private DatabaseRenderer databaseRenderer;
 	private DisplayModel displayModel;
 	private RenderThemeFuture renderThemeFuture;
-	private Socket clientSocket;
-	private File prerenderedTiles;
-	public TileRenderer(MultiMapDataStore mf, RenderThemeFuture renderThemeFuture, DisplayModel displayModel,
-			DatabaseRenderer databaseRenderer, FileSystemTileCache tileCache, GraphicFactory gRAPHIC_FACTORY, File prerenderedTiles, Socket clientSocket) {
-			this.mf = mf;
-			this.renderThemeFuture = renderThemeFuture;
+	private TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer;
+	private TileMemoryCache<RendererJob> memoryCache;
+	private DiskTileCache diskCache;
+	private AccessStats accessStats;
+	private Prefetcher prefetcher;
+	private PackedTileStore prerendered;
+	private int metaTileSize;
+	private int x;
+	private int y;
+	private int z;
+	private TileVariant variant;
+	private ClientConnection connection;
+	private long deadline;
+	private long renderTimeout;
+	private long renderDeadline = Long.MAX_VALUE;
+	private long sequence;
+	private long queued;
+	public TileRenderer(RenderGeneration generation, DisplayModel displayModel,
+			GraphicFactory gRAPHIC_FACTORY, TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer,
+			TileMemoryCache<RendererJob> memoryCache, DiskTileCache diskCache, AccessStats accessStats, Prefetcher prefetcher,
+			PackedTileStore prerendered, int metaTileSize, int x, int y, int z, TileVariant variant, long deadline,
+			long renderTimeout, ClientConnection connection) {
+			this.generation = generation;
+			this.mf = generation.getMapDataStore();
+			this.renderThemeFuture = generation.getRenderThemeFuture();
 			this.displayModel = displayModel;
-			this.databaseRenderer = databaseRenderer;
-			this.tileCache = tileCache;
 			this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
-			this.clientSocket = clientSocket;
-			this.prerenderedTiles = prerenderedTiles;
+			this.coalescer = coalescer;
+			this.memoryCache = memoryCache;
+			this.diskCache = diskCache;
+			this.accessStats = accessStats;
+			this.prefetcher = prefetcher;
+			// Kept open until the TileRenderer is done, a replaced tileset is left out
+			this.prerendered = prerendered != null && prerendered.retain() ? prerendered : null;
+			this.metaTileSize = metaTileSize;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.variant = variant;
+			this.connection = connection;
+			this.deadline = deadline;
+			this.renderTimeout = renderTimeout;
+			this.sequence = SEQUENCE.incrementAndGet();
+			this.queued = System.nanoTime();
+	}
+
+	/**
+	 * Whether the client waited so long already that rendering this Tile isn't worth it anymore
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() > this.deadline;
+	}
+
+	/**
+	 * Whether the client hung up, nobody is waiting for the Tile anymore
+	 */
+	public boolean isAbandoned() {
+		return this.connection != null && this.connection.isClosed();
+	}
+
+	/**
+	 * Drops the request of a client that hung up without rendering
+	 */
+	public void abandon() {
+		release();
+		Metrics.INSTANCE.count(Metrics.Source.ABANDONED);
+	}
+
+	/**
+	 * Answers the request without rendering. If the Tile made it into the memory Cache
+	 * in the meantime the client still gets it, otherwise it gets told that we are busy.
+	 */
+	public void busy() {
+		byte[] png = this.memoryCache.get(this.variant.createRendererJob(this.generation, x, y, z));
+		release();
+		Metrics.INSTANCE.count(png != null ? Metrics.Source.MEMORY : Metrics.Source.BUSY);
+		this.connection.reply(png != null ? png : ClientConnection.BUSY);
+	}
+
+	private void release() {
+		this.generation.release();
+		if (this.prerendered != null) this.prerendered.release();
+	}
+
+	/**
+	 * Low zoom levels first as those cover the most area and are requested the most.
+	 * Requests with the same zoom level are rendered in the order they came in.
+	 */
+	@Override
+	public int compareTo(TileRenderer other) {
+		if (this.z != other.z) return Integer.compare(this.z, other.z);
+		return Long.compare(this.sequence, other.sequence);
 	}
 
 	@Override
 	public void run() {
+		Metrics.INSTANCE.record(Metrics.Phase.QUEUE, this.z, System.nanoTime() - this.queued);
+		this.renderDeadline = System.currentTimeMillis() + this.renderTimeout;
+		byte[] png = null;
+		// A failed rendering is an error, even if the deadline passed in the meantime
+		boolean failed = false;
 		try {
-			handleRequest();
+			png = handleRequest();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			failed = true;
+		} finally {
+			release();
+			if (png != null) {
+				Metrics.INSTANCE.count(Metrics.Source.RENDERED);
+				this.connection.reply(png);
+			} else if (isAbandoned()) {
+				Metrics.INSTANCE.count(Metrics.Source.ABANDONED);
+			} else if (!failed && System.currentTimeMillis() > this.renderDeadline) {
+				Metrics.INSTANCE.count(Metrics.Source.TIMEOUT);
+				this.connection.reply(ClientConnection.TIMEOUT);
+			} else {
+				Metrics.INSTANCE.count(Metrics.Source.FAILED);
+				this.connection.reply(ClientConnection.ERROR);
+			}
+		}
+	}
+
+	/**
+	 * Renders the Tile into the Caches without a client waiting for it (see Revalidator)
+	 */
+	byte[] refresh() {
+		this.renderDeadline = System.currentTimeMillis() + this.renderTimeout;
+		try {
+			byte[] png = this.memoryCache.get(this.variant.createRendererJob(this.generation, x, y, z));
+			if (png == null)
+				return handleRequest();
+			// Rendered on demand in the meantime, only the disk Cache is behind
+			this.diskCache.put(z, x, y, this.variant, png, this.generation.getNumber());
+			return png;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Whether nothing new should be started for this request anymore
+	 */
+	private boolean isCancelled() {
+		return isAbandoned() || System.currentTimeMillis() > this.renderDeadline;
+	}
+	private byte[] handleRequest() {
+		// We render the whole MetaTile around the requested Tile. Concurrent requests
+		// for any Tile of the same MetaTile share a single rendering
+		RendererJob rendererJob = this.variant.createRendererJob(this.generation, x, y, z);
+		// Another request might have rendered it while this one was queued
+		byte[] png = this.memoryCache.get(rendererJob);
+		if(png != null)
+			return png;
+		if (isCancelled())
+			return null;
+		if (this.variant.isComposite())
+			return composite(rendererJob);
+		Map<RendererJob, byte[]> tiles = render(this.generation, this.coalescer, this.memoryCache, this.diskCache, this.accessStats, this.metaTileSize,
+				this.variant, x, y, z, this.GRAPHIC_FACTORY, this.renderDeadline);
+		if (tiles == null)
+			return null;
+		// The client will most likely ask for the surrounding Tiles next
+		if (this.variant == TileVariant.DEFAULT)
+			this.prefetcher.prefetch(x, y, z);
+		return tiles.get(rendererJob);
+	}
+
+	/**
+	 * Puts the 512 Tile together from the four Tiles on the next zoom level. They lie in the same MetaTile,
+	 * so at most one rendering is needed. Tiles outside of the map stay transparent.
+	 */
+	private byte[] composite(RendererJob rendererJob) {
+		TileVariant part = this.variant.getPart();
+		Map<RendererJob, byte[]> rendered = null;
+		BufferedImage[] parts = new BufferedImage[4];
+		boolean any = false;
+		try {
+			for (int i = 0; i < 4; i++) {
+				int partX = 2 * x + (i & 1);
+				int partY = 2 * y + (i >> 1);
+				RendererJob partJob = part.createRendererJob(this.generation, partX, partY, z + 1);
+				byte[] png = rendered == null ? null : rendered.get(partJob);
+				if (png == null) png = this.memoryCache.get(partJob);
+				if (png == null && part == TileVariant.DEFAULT && this.prerendered != null) png = this.prerendered.get(z + 1, partX, partY);
+				// A stale part would make the new Tile stale as well
+				if (png == null && !this.diskCache.isStale(z + 1, partX, partY, part)) png = this.diskCache.get(z + 1, partX, partY, part);
+				// With MetaTiles of a single Tile every part needs its own rendering
+				if (png == null && (rendered == null || MetaTile.sizeForZoom(this.metaTileSize, z + 1) == 1)) {
+					if (isCancelled()) return null;
+					rendered = render(this.generation, this.coalescer, this.memoryCache, this.diskCache, this.accessStats, this.metaTileSize,
+							part, partX, partY, z + 1, this.GRAPHIC_FACTORY, this.renderDeadline);
+					if (rendered == null) return null;
+					png = rendered.get(partJob);
+				}
+				if (png == null) continue;
+				parts[i] = ImageIO.read(new ByteArrayInputStream(png));
+				any |= parts[i] != null;
+			}
 		} catch (IOException e) {
-			try {
-				clientSocket.close();
-			} catch (IOException e1) {}
+			e.printStackTrace();
+			return null;
+		}
+		if (!any) return null;
+		BufferedImage image = compose(parts, part.getPixels());
+		long start = System.nanoTime();
+		byte[] png = PngEncoder.DEFAULT.encode(image);
+		Metrics.INSTANCE.record(Metrics.Phase.ENCODE, this.z, System.nanoTime() - start);
+		if (!this.generation.isRetired()) {
+			this.memoryCache.put(rendererJob, png);
+			this.diskCache.put(z, x, y, this.variant, png, this.generation.getNumber());
 		}
+		return png;
 	}
-	private void handleRequest() throws IOException {
-		// Read in the request
-		InputStream is = clientSocket.getInputStream();
-		OutputStream os = clientSocket.getOutputStream();
-		BufferedReader br = new BufferedReader(new InputStreamReader(is));
-		String request = br.readLine();
-		Pattern pattern = Pattern.compile("(\\d+);(\\d+);(\\d+)");
-		Matcher m = pattern.matcher(request);
-		if(m.find()) {
-			int z = Integer.parseInt(m.group(1));
-			int x = Integer.parseInt(m.group(2));
-			int y = Integer.parseInt(m.group(3));
-			
-			// Check if this tile is prerendered
-			File tileFile = new File(prerenderedTiles, z + File.separator + x + File.separator + y + ".png");
-			if(tileFile.exists())
-				IOUtils.copy(new FileInputStream(tileFile), os);
-			else {
-				Tile tile = new Tile(x, y, z, this.mf, this.renderThemeFuture, this.displayModel, this.databaseRenderer, this.tileCache, this.GRAPHIC_FACTORY);
-				tile.generateTile(os);
+
+	/**
+	 * Draws the four parts (upper left, upper right, lower left, lower right) of size x size pixels into one image
+	 */
+	static BufferedImage compose(BufferedImage[] parts, int size) {
+		BufferedImage image = new BufferedImage(2 * size, 2 * size, BufferedImage.TYPE_INT_ARGB);
+		int[] row = new int[size];
+		for (int i = 0; i < 4; i++) {
+			if (parts[i] == null) continue;
+			for (int y = 0; y < size; y++) {
+				parts[i].getRGB(0, y, size, 1, row, 0, size);
+				image.setRGB((i & 1) * size, (i >> 1) * size + y, size, 1, row, 0, size);
 			}
-			os.close();
-			is.close();
-			clientSocket.close();
 		}
-	
+		return image;
+	}
+
+	/**
+	 * Renders the MetaTile containing x, y, z in the given (not composite) TileVariant with a RenderContext of the
+	 * generation and puts its Tiles into the memory Cache and the disk Cache. Concurrent renderings of the same
+	 * MetaTile are done only once, unless the rendering stopped at its deadline: the others render again with their own.
+	 * The render time is recorded in the AccessStats. No more Tiles are started after the deadline
+	 * (System.currentTimeMillis()), the ones done until then still go into the Caches.
+	 */
+	static Map<RendererJob, byte[]> render(RenderGeneration generation,
+			TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer, TileMemoryCache<RendererJob> memoryCache,
+			DiskTileCache diskCache, AccessStats accessStats, int metaTileSize, TileVariant variant, int x, int y, int z,
+			GraphicFactory gRAPHIC_FACTORY, long deadline) {
+		RenderThemeFuture renderThemeFuture = generation.getRenderThemeFuture(variant.getScale());
+		DisplayModel displayModel = generation.getDisplayModel(variant.getScale());
+		MetaTile metaTile = new MetaTile(x, y, z, metaTileSize, generation.getMapDataStore(), renderThemeFuture,
+				displayModel, gRAPHIC_FACTORY);
+		AtomicBoolean complete = new AtomicBoolean(true);
+		return coalescer.render(metaTile.getRendererJob(), () -> {
+			RenderContext context;
+			try {
+				context = generation.getRenderContexts().acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			try {
+				long start = System.nanoTime();
+				MetaTile rendering = new MetaTile(x, y, z, metaTileSize, generation.getMapDataStore(),
+						context.getMapDataStore(), renderThemeFuture, displayModel, gRAPHIC_FACTORY);
+				Map<RendererJob, byte[]> rendered = rendering.render(generation.getRenderContexts().getLabelStore(), deadline);
+				complete.set(rendering.isComplete());
+				if (variant == TileVariant.DEFAULT) accessStats.rendered(z, x, y, System.nanoTime() - start);
+				// Tiles of a retired generation would never be asked for again
+				if (!generation.isRetired()) {
+					rendered.forEach((job, png) -> {
+						memoryCache.put(job, png);
+						diskCache.put(job.tile.zoomLevel, job.tile.tileX, job.tile.tileY, variant, png, generation.getNumber());
+					});
+				}
+				return rendered;
+			} finally {
+				generation.getRenderContexts().release(context);
+			}
+		}, deadline, rendered -> rendered != null && complete.get());
 	}
 
 }
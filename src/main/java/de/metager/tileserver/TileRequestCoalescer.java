@@ -0,0 +1,104 @@
+package de.metager.tileserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * @author SumaEV
+ * Makes sure that a Tile which is requested by a lot of clients at the same time
+ * only gets rendered once. The first request for a key renders the Tile, every other
+ * request for the same key waits for that rendering to finish and gets served the same result.
+ * If the rendering fails, the waiting requests get the same exception. A rendering that stopped early (see
+ * render(key, renderer, deadline, complete)) is not shared, the waiting requests render again themselves.
+ */
+public class TileRequestCoalescer<K, V> {
+
+	/**
+	 * Tells the waiting requests that the rendering they waited for is not complete
+	 */
+	private static final class Incomplete extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Incomplete() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Incomplete INCOMPLETE = new Incomplete();
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the rendering for the given key. If there is no rendering for this key in progress
+	 * the supplied renderer is run in the calling Thread, otherwise we wait for the running one.
+	 */
+	public V render(K key, Supplier<V> renderer) {
+		return render(key, renderer, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Like render(key, renderer), but waiting for a running rendering gives up at the deadline
+	 * (System.currentTimeMillis()) and returns null. The running rendering goes on.
+	 */
+	public V render(K key, Supplier<V> renderer, long deadline) {
+		return render(key, renderer, deadline, rendered -> true);
+	}
+
+	/**
+	 * Like render(key, renderer, deadline), but a rendering for which complete is false is only returned to
+	 * the request that rendered it. The waiting requests render again (or wait for the next rendering)
+	 * until their own deadline.
+	 */
+	public V render(K key, Supplier<V> renderer, long deadline, Predicate<V> complete) {
+		while (true) {
+			CompletableFuture<V> future = new CompletableFuture<>();
+			CompletableFuture<V> running = this.inFlight.putIfAbsent(key, future);
+			if (running == null) return lead(key, future, renderer, complete);
+			try {
+				if (deadline == Long.MAX_VALUE) return running.get();
+				return running.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (TimeoutException e) {
+				return null;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Incomplete) {
+					if (System.currentTimeMillis() > deadline) return null;
+					continue;
+				}
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw new IllegalStateException(cause);
+			}
+		}
+	}
+
+	private V lead(K key, CompletableFuture<V> future, Supplier<V> renderer, Predicate<V> complete) {
+		try {
+			V rendered = renderer.get();
+			if (complete.test(rendered)) {
+				future.complete(rendered);
+			} else {
+				future.completeExceptionally(INCOMPLETE);
+			}
+			return rendered;
+		} catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			// Following requests are not coalesced anymore, they will find the Tile in the cache
+			this.inFlight.remove(key, future);
+		}
+	}
+
+	public int getRendersInFlight() {
+		return this.inFlight.size();
+	}
+}
@@ -0,0 +1,389 @@
+package de.metager.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+
+/**
+ * @author SumaEV
+ * The non blocking front end of the Tileserver. A single Thread accepts the connections,
+ * reads the "z;x;y" requests (optionally followed by ";512" and / or "@2x", see TileVariant) and serves everything that is cached in memory or prerendered on disk
+ * directly. Prerendered Tiles are transferred straight from the packed tileset to the socket.
+ * Tiles that were rendered on demand before are read from the DiskTileCache by a few disk read Threads. A stale one (rendered from older Map Files
+ * or an older Rendertheme) is served as well and queued to be rendered again by the Revalidator.
+ * Only real cache misses are handed to the render executor as a TileRenderer, which gives up on the request once
+ * the client hangs up or rendering takes longer than renderTimeout.
+ * Every request for a Tile that isn't prerendered is counted in the AccessStats.
+ * The request "stats" is answered with the runtime Metrics and the state of the caches and the render queue.
+ */
+public class TileServer implements Runnable {
+
+	private static final Pattern REQUEST = Pattern.compile("(\\d+);(\\d+);(\\d+)(?:;(\\d+))?(?:@(\\d)x)?");
+	private static final String STATS = "stats";
+	// The highest zoom level that is served. The Tile keys of the DiskTileCache only have 25 bits for x and y
+	// and the AccessStats count at most 32 zoom levels
+	public static final int MAX_ZOOM = 25;
+	// Name of the packed tileset within the directory of prerendered Tiles
+	public static final String PRERENDERED_FILE = "tiles.pack";
+	// Seconds between the checks for a new packed tileset
+	private static final long PRERENDERED_CHECK = 10;
+
+	private int port;
+	private ExecutorService executor;
+	private GraphicFactory GRAPHIC_FACTORY;
+	private AtomicReference<RenderGeneration> generation;
+	private DisplayModel displayModel;
+	private File prerenderedTiles;
+	private volatile PackedTileStore prerendered;
+	// Identifies the File the tileset was opened from, see fileKey()
+	private Object prerenderedKey;
+	// Opens a new tileset off the selector Thread
+	private ScheduledExecutorService prerenderedReloads;
+	private TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer;
+	private TileMemoryCache<RendererJob> memoryCache;
+	private DiskTileCache diskCache;
+	private AccessStats accessStats;
+	private Prefetcher prefetcher;
+	private PrerenderScheduler scheduler;
+	private Revalidator revalidator;
+	private int metaTileSize;
+	private long maxQueueTime;
+	private long renderTimeout;
+	// Threads that read the Tiles of the DiskTileCache, so the selector Thread never waits for the disk
+	private ExecutorService diskReads;
+
+	private Selector selector;
+	// Connections for which a render Thread has finished its work
+	private final ConcurrentLinkedQueue<ClientConnection> replies = new ConcurrentLinkedQueue<>();
+
+	public TileServer(int port, ExecutorService executor, AtomicReference<RenderGeneration> generation,
+			DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY, File prerenderedTiles,
+			TileRequestCoalescer<RendererJob, Map<RendererJob, byte[]>> coalescer, TileMemoryCache<RendererJob> memoryCache,
+			DiskTileCache diskCache, AccessStats accessStats, Prefetcher prefetcher, PrerenderScheduler scheduler,
+			Revalidator revalidator, int metaTileSize,
+			long maxQueueTime, long renderTimeout) {
+		this.port = port;
+		this.executor = executor;
+		this.generation = generation;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+		this.prerenderedTiles = prerenderedTiles;
+		this.coalescer = coalescer;
+		this.memoryCache = memoryCache;
+		this.diskCache = diskCache;
+		this.accessStats = accessStats;
+		this.prefetcher = prefetcher;
+		this.scheduler = scheduler;
+		this.revalidator = revalidator;
+		this.metaTileSize = metaTileSize;
+		this.maxQueueTime = maxQueueTime;
+		this.renderTimeout = renderTimeout;
+		this.diskReads = Executors.newFixedThreadPool(Integer.getInteger("tileserver.diskReadThreads", 2), r -> {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.prerenderedReloads = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void run() {
+		reloadPrerendered();
+		this.prerenderedReloads.scheduleWithFixedDelay(this::reloadPrerendered, PRERENDERED_CHECK, PRERENDERED_CHECK, TimeUnit.SECONDS);
+		try (Selector selector = Selector.open(); ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			this.selector = selector;
+			serverChannel.bind(new InetSocketAddress(this.port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (!Thread.interrupted()) {
+				selector.select();
+
+				ClientConnection reply;
+				while ((reply = this.replies.poll()) != null) {
+					try {
+						reply.startWriting();
+					} catch (IOException e) {
+						reply.close();
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept(serverChannel);
+						continue;
+					}
+					ClientConnection connection = (ClientConnection) key.attachment();
+					try {
+						if (key.isReadable() && connection.isWatching()) {
+							connection.checkClosed();
+						} else if (key.isReadable()) {
+							read(connection);
+						} else if (key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						connection.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Binding the port or the selector itself failed, there is nothing left to serve
+			System.err.println("[" + Instant.now() + "] The Tileserver stopped listening on port " + this.port);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Called by the render Threads once the response for a connection is ready
+	 */
+	void queueReply(ClientConnection connection) {
+		this.replies.add(connection);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * A prerendering replaces the File of the tileset when it's done, so every few seconds we check
+	 * whether there is a new one. The old one is retired, it gets closed once its last user is done.
+	 */
+	private void reloadPrerendered() {
+		File packFile = new File(this.prerenderedTiles, PRERENDERED_FILE);
+		Object key = fileKey(packFile);
+		if (Objects.equals(key, this.prerenderedKey)) return;
+		try {
+			PackedTileStore store = key == null ? null : PackedTileStore.open(packFile);
+			PackedTileStore retired = this.prerendered;
+			this.prerendered = store;
+			this.prerenderedKey = key;
+			if (retired != null) retired.retire();
+			if (store != null) System.out.println("[" + Instant.now() + "] Serving prerendered Tiles from " + packFile.getAbsolutePath());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Tells whether the File got replaced. An incremental prerendering writes into the File in place, the mapped
+	 * index of the open store sees those writes already. Where the file system has no file keys the
+	 * modification time has to do. Null if there is no such File.
+	 */
+	private static Object fileKey(File packFile) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(packFile.toPath(), BasicFileAttributes.class);
+			return attributes.fileKey() != null ? attributes.fileKey() : attributes.lastModifiedTime();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void accept(ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+			key.attach(new ClientConnection(this, channel, key));
+		}
+	}
+
+	private void read(ClientConnection connection) throws IOException {
+		String request = connection.readRequest();
+		if (request == null) return;
+		if (request.equals(STATS)) {
+			connection.readDone();
+			connection.send(getStats().getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+		Matcher m = REQUEST.matcher(request);
+		if (!m.find()) {
+			Metrics.INSTANCE.count(Metrics.Source.INVALID);
+			connection.close();
+			return;
+		}
+		int z, x, y;
+		TileVariant variant;
+		RendererJob rendererJob;
+		// Map Files and Rendertheme of this request, they might get swapped by the GenerationWatcher at any time
+		RenderGeneration generation = this.generation.get();
+		try {
+			z = Integer.parseInt(m.group(1));
+			x = Integer.parseInt(m.group(2));
+			y = Integer.parseInt(m.group(3));
+			if (z > MAX_ZOOM || x >= 1 << z || y >= 1 << z) {
+				// Well formed, but there is no such Tile
+				Metrics.INSTANCE.count(Metrics.Source.INVALID);
+				connection.readDone();
+				connection.send(ClientConnection.ERROR);
+				return;
+			}
+			variant = TileVariant.get(m.group(4) == null ? TileVariant.TILE_SIZE : Integer.parseInt(m.group(4)),
+					m.group(5) == null ? 1 : Integer.parseInt(m.group(5)));
+			if (variant == null) throw new IllegalArgumentException("Unknown tile variant " + request);
+			rendererJob = variant.createRendererJob(generation, x, y, z);
+		} catch (IllegalArgumentException e) {
+			// Not a valid Tile
+			Metrics.INSTANCE.count(Metrics.Source.INVALID);
+			connection.close();
+			return;
+		}
+
+		// We don't want to read from the client anymore
+		connection.readDone();
+		connection.measure(z);
+		byte[] png = this.memoryCache.get(rendererJob);
+		if (png != null) {
+			// Prerendered Tiles never make it into the memory Cache
+			if (variant == TileVariant.DEFAULT) this.accessStats.request(z, x, y);
+			Metrics.INSTANCE.count(Metrics.Source.MEMORY);
+			connection.send(png);
+			return;
+		}
+		// Check if this tile is prerendered, only the 256 Tiles are
+		// The render Threads retain the tileset themselves, it may get replaced before they start
+		PackedTileStore prerendered = this.prerendered;
+		long entry = prerendered == null || variant != TileVariant.DEFAULT ? 0 : prerendered.getEntry(z, x, y);
+		if (entry != 0 && prerendered.retain()) {
+			Metrics.INSTANCE.count(Metrics.Source.PACKED);
+			connection.send(prerendered, PackedTileStore.offset(entry), PackedTileStore.length(entry));
+			return;
+		}
+		if (variant == TileVariant.DEFAULT) this.accessStats.request(z, x, y);
+		connection.watchClose();
+		// Reading from disk can block, so it is left to the disk read Threads which hand the request
+		// over to the render executor if the Tile got evicted in the meantime
+		if (this.diskCache.isCached(z, x, y, variant)) {
+			this.diskReads.execute(() -> readDisk(connection, generation, rendererJob, prerendered, x, y, z, variant));
+			return;
+		}
+		render(connection, generation, prerendered, x, y, z, variant);
+	}
+
+	/**
+	 * Answers the request from the DiskTileCache or renders it. Runs on a disk read Thread.
+	 */
+	private void readDisk(ClientConnection connection, RenderGeneration generation, RendererJob rendererJob,
+			PackedTileStore prerendered, int x, int y, int z, TileVariant variant) {
+		byte[] png = this.diskCache.get(z, x, y, variant);
+		if (png != null && this.diskCache.isStale(z, x, y, variant)) {
+			if (this.revalidator.isEnabled()) {
+				// Kept out of the memory Cache, the next request should get the new one
+				Metrics.INSTANCE.count(Metrics.Source.STALE);
+				this.revalidator.refresh(x, y, z, variant, prerendered);
+				connection.reply(png);
+				return;
+			}
+			png = null;
+		}
+		if (png != null) {
+			Metrics.INSTANCE.count(Metrics.Source.DISK);
+			this.memoryCache.put(rendererJob, png);
+			connection.reply(png);
+			return;
+		}
+		render(connection, generation, prerendered, x, y, z, variant);
+	}
+
+	/**
+	 * Hands the request to the render executor. Can be called from any Thread.
+	 */
+	private void render(ClientConnection connection, RenderGeneration generation, PackedTileStore prerendered, int x, int y, int z,
+			TileVariant variant) {
+		// The TileRenderer keeps its generation open until it is done. If it got closed in the meantime
+		// the request is rendered with the current one
+		if (!generation.retain()) generation = RenderGeneration.acquireCurrent(this.generation);
+		// The executor rejects or sheds the request if it can't be rendered within maxQueueTime
+		this.executor.execute(new TileRenderer(generation, this.displayModel,
+				this.GRAPHIC_FACTORY, this.coalescer, this.memoryCache, this.diskCache, this.accessStats, this.prefetcher, prerendered, this.metaTileSize, x, y, z, variant,
+				System.currentTimeMillis() + this.maxQueueTime, this.renderTimeout, connection));
+	}
+
+	/**
+	 * The Metrics together with the current state of the memory Cache, the render queue and the render generation
+	 */
+	private String getStats() {
+		StringBuilder out = new StringBuilder();
+		Metrics.line(out, "tileserver_memory_cache_hits_total", this.memoryCache.getHits());
+		Metrics.line(out, "tileserver_memory_cache_misses_total", this.memoryCache.getMisses());
+		Metrics.line(out, "tileserver_memory_cache_evictions_total", this.memoryCache.getEvictions());
+		Metrics.line(out, "tileserver_memory_cache_tiles", this.memoryCache.getCount());
+		Metrics.line(out, "tileserver_memory_cache_bytes", this.memoryCache.getSize());
+		Metrics.line(out, "tileserver_memory_cache_capacity_bytes", this.memoryCache.getCapacity());
+		Metrics.line(out, "tileserver_disk_cache_hits_total", this.diskCache.getHits());
+		Metrics.line(out, "tileserver_disk_cache_misses_total", this.diskCache.getMisses());
+		Metrics.line(out, "tileserver_disk_cache_evictions_total", this.diskCache.getEvictions());
+		Metrics.line(out, "tileserver_disk_cache_dropped_writes_total", this.diskCache.getDropped());
+		Metrics.line(out, "tileserver_disk_cache_tiles", this.diskCache.getCount());
+		Metrics.line(out, "tileserver_disk_cache_stale_tiles", this.diskCache.getStale());
+		Metrics.line(out, "tileserver_disk_cache_bytes", this.diskCache.getSize());
+		Metrics.line(out, "tileserver_disk_cache_quota_bytes", this.diskCache.getQuota());
+		if (this.executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) this.executor;
+			Metrics.line(out, "tileserver_render_queue_depth", pool.getQueue().size());
+			Metrics.line(out, "tileserver_renders_active", pool.getActiveCount());
+			if (pool.getQueue() instanceof RenderQueue) {
+				RenderQueue queue = (RenderQueue) pool.getQueue();
+				Metrics.line(out, "tileserver_render_queue_capacity", queue.getCapacity());
+				Metrics.line(out, "tileserver_render_queue_rejected_total", queue.getRejected());
+				Metrics.line(out, "tileserver_render_queue_shed_total", queue.getShed());
+				Metrics.line(out, "tileserver_render_queue_abandoned_total", queue.getAbandoned());
+			}
+		}
+		Metrics.line(out, "tileserver_renders_in_flight", this.coalescer.getRendersInFlight());
+		Metrics.line(out, "tileserver_prefetch_pending", this.prefetcher.getPending());
+		Metrics.line(out, "tileserver_prefetch_rendered_total", this.prefetcher.getRendered());
+		Metrics.line(out, "tileserver_prefetch_dropped_total", this.prefetcher.getDropped());
+		Metrics.line(out, "tileserver_access_stats_metatiles", this.accessStats.getCount());
+		Metrics.line(out, "tileserver_scheduled_prerender_runs_total", this.scheduler.getRuns());
+		Metrics.line(out, "tileserver_scheduled_prerender_rendered_total", this.scheduler.getRendered());
+		Metrics.line(out, "tileserver_revalidate_pending", this.revalidator.getPending());
+		Metrics.line(out, "tileserver_revalidate_refreshed_total", this.revalidator.getRefreshed());
+		Metrics.line(out, "tileserver_revalidate_dropped_total", this.revalidator.getDropped());
+		MapDataCache mapDataCache = this.generation.get().getRenderContexts().getMapDataCache();
+		Metrics.line(out, "tileserver_map_data_cache_hits_total", mapDataCache.getHits());
+		Metrics.line(out, "tileserver_map_data_cache_misses_total", mapDataCache.getMisses());
+		Metrics.line(out, "tileserver_map_data_cache_evictions_total", mapDataCache.getEvictions());
+		Metrics.line(out, "tileserver_map_data_cache_blocks", mapDataCache.getCount());
+		Metrics.line(out, "tileserver_map_data_cache_bytes", mapDataCache.getSize());
+		Metrics.line(out, "tileserver_map_data_cache_capacity_bytes", mapDataCache.getCapacity());
+		SharedLabelStore labelStore = this.generation.get().getRenderContexts().getLabelStore();
+		if (labelStore != null) {
+			Metrics.line(out, "tileserver_label_store_placed_total", labelStore.getPlaced());
+			Metrics.line(out, "tileserver_label_store_reused_total", labelStore.getReused());
+			Metrics.line(out, "tileserver_label_store_tiles", labelStore.getCount());
+		}
+		Metrics.line(out, "tileserver_render_generation", this.generation.get().getNumber());
+		Metrics.INSTANCE.format(out);
+		return out.toString();
+	}
+}
@@ -0,0 +1,113 @@
+package de.metager.tileserver;
+
+import org.mapsforge.map.layer.renderer.RendererJob;
+
+/**
+ * @author SumaEV
+ * The size and pixel density a Tile is asked for in. A 512 Tile covers the same area as the 256 Tile
+ * with the same z, x, y but shows the detail of the next zoom level: it is made of the four 256 Tiles
+ * below it, so a client needs a quarter of the requests for the same screen. A @2x Tile is rendered with
+ * every line, symbol and label twice as big into twice as many pixels for high DPI displays.
+ * Each variant is cached on its own, only the 256 Tiles are prerendered.
+ */
+public final class TileVariant {
+
+	public static final int TILE_SIZE = 256;
+	public static final TileVariant DEFAULT = new TileVariant(0, TILE_SIZE, 1);
+	private static final TileVariant[] VARIANTS = { DEFAULT, new TileVariant(1, 2 * TILE_SIZE, 1),
+			new TileVariant(2, TILE_SIZE, 2), new TileVariant(3, 2 * TILE_SIZE, 2) };
+
+	private final int id;
+	private final int tileSize;
+	private final int scale;
+
+	private TileVariant(int id, int tileSize, int scale) {
+		this.id = id;
+		this.tileSize = tileSize;
+		this.scale = scale;
+	}
+
+	/**
+	 * Returns the variant or null if there is none with this tile size and scale
+	 */
+	public static TileVariant get(int tileSize, int scale) {
+		for (TileVariant variant : VARIANTS) {
+			if (variant.tileSize == tileSize && variant.scale == scale) return variant;
+		}
+		return null;
+	}
+
+	static TileVariant byId(int id) {
+		return VARIANTS[id];
+	}
+
+	/**
+	 * The variant whose getSuffix() the given file name ends with (without ".png")
+	 */
+	static TileVariant bySuffix(String name) {
+		for (int i = VARIANTS.length - 1; i > 0; i--) {
+			if (name.endsWith(VARIANTS[i].getSuffix())) return VARIANTS[i];
+		}
+		return DEFAULT;
+	}
+
+	int getId() {
+		return this.id;
+	}
+
+	/**
+	 * 256 or 512
+	 */
+	public int getTileSize() {
+		return this.tileSize;
+	}
+
+	/**
+	 * 1 or 2
+	 */
+	public int getScale() {
+		return this.scale;
+	}
+
+	/**
+	 * Edge length of the image in pixels
+	 */
+	public int getPixels() {
+		return this.tileSize * this.scale;
+	}
+
+	/**
+	 * True for the 512 Tiles that are put together from the four Tiles below them
+	 */
+	public boolean isComposite() {
+		return this.tileSize > TILE_SIZE;
+	}
+
+	/**
+	 * The variant the Tiles a composite Tile is made of are rendered in
+	 */
+	public TileVariant getPart() {
+		return get(TILE_SIZE, this.scale);
+	}
+
+	/**
+	 * Appended to the Tile number in file names, empty for the default variant
+	 */
+	public String getSuffix() {
+		return (this.tileSize == TILE_SIZE ? "" : "-" + this.tileSize) + (this.scale == 1 ? "" : "@" + this.scale + "x");
+	}
+
+	/**
+	 * The RendererJob that identifies the Tile x, y, z of this variant for caches and coalescing
+	 */
+	public RendererJob createRendererJob(RenderGeneration generation, int x, int y, int z) {
+		org.mapsforge.core.model.Tile tile = new org.mapsforge.core.model.Tile(x, y, (byte) z, getPixels());
+		return new RendererJob(tile, generation.getMapDataStore(), generation.getRenderThemeFuture(this.scale),
+				generation.getDisplayModel(this.scale), (float) 1, false, false);
+	}
+
+	@Override
+	public String toString() {
+		return this.tileSize + "@" + this.scale + "x";
+	}
+}
@@ -1,70 +1,106 @@
 package de.metager.tileserver;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import org.mapsforge.core.graphics.GraphicFactory;
 import org.mapsforge.map.datastore.MultiMapDataStore;
-import org.mapsforge.map.layer.cache.FileSystemTileCache;
-import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
 import org.mapsforge.map.model.DisplayModel;
 import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
 
 /**
- * @author SumaEV A simple HttpHandler. It initializes the Tile Cache and
- *         handles incoming HTTP-Requests If the requests are valid Tile
- *         requests it starts the rendering Job.
+ * @author SumaEV Prerenders a single MetaTile into a TileOutput. The hash of the map data the
+ *         MetaTile is rendered from is stored with its upper left Tile: if the output holds the
+ *         same hash already the MetaTile is skipped, otherwise it is rendered, its PNGs are
+ *         written and then its hash. Below open sea the whole subtree is written at once (see
+ *         UniformTiles). The result is reported to the PrerenderProgress.
  */
 public class TileWriter implements Runnable {
 
 	private GraphicFactory GRAPHIC_FACTORY;
-	private FileSystemTileCache tileCache;
 	private MultiMapDataStore mf;
-	private DatabaseRenderer databaseRenderer;
 	private DisplayModel displayModel;
 	private RenderThemeFuture renderThemeFuture;
-	private String tile;
-	private File outputPath;
-	public TileWriter(String tile, File outputPath, MultiMapDataStore mf, RenderThemeFuture renderThemeFuture, DisplayModel displayModel,
-			DatabaseRenderer databaseRenderer, FileSystemTileCache tileCache, GraphicFactory gRAPHIC_FACTORY) {
+	private int x;
+	private int y;
+	private int z;
+	private int metaTileSize;
+	private TileOutput output;
+	private long seed;
+	private PrerenderProgress progress;
+	private long order;
+	private UniformTiles uniformTiles;
+	private RenderContextPool renderContexts;
+	public TileWriter(int x, int y, int z, int metaTileSize, TileOutput output, long seed, PrerenderProgress progress, long order, UniformTiles uniformTiles, RenderContextPool renderContexts, MultiMapDataStore mf, RenderThemeFuture renderThemeFuture, DisplayModel displayModel,
+			GraphicFactory gRAPHIC_FACTORY) {
 			this.mf = mf;
 			this.renderThemeFuture = renderThemeFuture;
 			this.displayModel = displayModel;
-			this.databaseRenderer = databaseRenderer;
-			this.tileCache = tileCache;
 			this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
-			this.tile = tile;
-			this.outputPath = outputPath;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.metaTileSize = metaTileSize;
+			this.output = output;
+			this.seed = seed;
+			this.progress = progress;
+			this.order = order;
+			this.uniformTiles = uniformTiles;
+			this.renderContexts = renderContexts;
 	}
 
 	@Override
 	public void run() {
+		write();
+	}
+
+	/**
+	 * Renders and writes the MetaTile. Returns false if that failed, the MetaTile then stays unfinished
+	 * in the PrerenderProgress so the checkpoint never moves past it.
+	 */
+	public boolean write() {
+		RenderContext context = null;
 		try {
-			handleRequest();
-		} catch (IOException e) {
+			context = renderContexts.acquire();
+			handleRequest(context);
+			if(progress != null)
+				progress.finished(order);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to render MetaTile " + z + "/" + x + "/" + y);
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if(context != null)
+				renderContexts.release(context);
 		}
+		if(progress != null)
+			progress.failed(order);
+		return false;
 	}
-	private void handleRequest() throws IOException {
-		outputPath.getParentFile().mkdirs();
-		outputPath.createNewFile();
-		try(OutputStream os = new FileOutputStream(outputPath);){
-			Pattern pattern = Pattern.compile("(\\d+);(\\d+);(\\d+)");
-			Matcher m = pattern.matcher(tile);
-			if(m.find()) {
-				int z = Integer.parseInt(m.group(1));
-				int x = Integer.parseInt(m.group(2));
-				int y = Integer.parseInt(m.group(3));
-				
-				Tile tile = new Tile(x, y, z, this.mf, this.renderThemeFuture, this.displayModel, this.databaseRenderer, this.tileCache, this.GRAPHIC_FACTORY);
-				tile.generateTile(os);
-			}
+	private void handleRequest(RenderContext context) throws IOException {
+		MetaTile metaTile = new MetaTile(x, y, z, metaTileSize, mf, context.getMapDataStore(), renderThemeFuture, displayModel, GRAPHIC_FACTORY);
+		// The hash of a MetaTile is stored with its upper left Tile. If the tileset already
+		// contains this MetaTile rendered from the same map data, there is nothing to do
+		long hash = metaTile.getDataHash(seed);
+		// Below open sea all Tiles look the same, so they get written right away instead of being rendered one by one
+		int seaUntil = uniformTiles.getSeaUntil(metaTile);
+		if(output.getHash(z, metaTile.getMinX(), metaTile.getMinY()) == hash) {
+			if(seaUntil > z)
+				uniformTiles.prune(metaTile, seaUntil, order);
+			return;
+		}
+		// Render the MetaTile and write every Tile of it
+		for(Map.Entry<RendererJob, byte[]> tile : metaTile.render().entrySet()) {
+			long start = System.nanoTime();
+			output.put(z, tile.getKey().tile.tileX, tile.getKey().tile.tileY, tile.getValue());
+			Metrics.INSTANCE.record(Metrics.Phase.WRITE, z, System.nanoTime() - start);
 		}
-	
+		if(seaUntil > z)
+			uniformTiles.writeSubtree(output, metaTile, seaUntil, order);
+		output.putHash(z, metaTile.getMinX(), metaTile.getMinY(), hash);
 	}
 
 }
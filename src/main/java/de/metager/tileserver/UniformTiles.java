@@ -0,0 +1,160 @@
+package de.metager.tileserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+/**
+ * @author SumaEV
+ * Skips the open sea during a prerendering. If a MetaTile and everything below it is nothing but water,
+ * every Tile below it looks the same as long as the map data comes from the same sub-file of the Map Files.
+ * For those zoom levels only a single Tile gets rendered and all Tiles below the MetaTile point to it.
+ * The TileEnumerator asks isPruned() to leave out the MetaTiles that are covered that way.
+ * The pruned MetaTiles are saved with the PrerenderProgress, so a resumed prerendering leaves them out as well.
+ */
+public class UniformTiles {
+
+	private static final class Pruned {
+		// Zoom level up to which the subtree is written
+		final int until;
+		// Order of the MetaTile (see TileEnumerator), -1 if it was pruned by an earlier run
+		final long order;
+
+		Pruned(int until, long order) {
+			this.until = until;
+			this.order = order;
+		}
+	}
+
+	private final int metaTileSize;
+	private final int[] subFileMaxZooms;
+	private final MultiMapDataStore mf;
+	private final RenderThemeFuture renderThemeFuture;
+	private final DisplayModel displayModel;
+	private final GraphicFactory GRAPHIC_FACTORY;
+	// The pruned MetaTiles by their upper left Tile (see TileKey)
+	private final ConcurrentHashMap<Long, Pruned> pruned = new ConcurrentHashMap<>();
+	// The rendered sea Tile of each zoom level
+	private final Map<Integer, byte[]> seaTiles = new ConcurrentHashMap<>();
+	private final AtomicLong prunedTiles = new AtomicLong();
+
+	public UniformTiles(int metaTileSize, int[] subFileMaxZooms, MultiMapDataStore mf, RenderThemeFuture renderThemeFuture,
+			DisplayModel displayModel, GraphicFactory gRAPHIC_FACTORY) {
+		this.metaTileSize = metaTileSize;
+		this.subFileMaxZooms = subFileMaxZooms;
+		this.mf = mf;
+		this.renderThemeFuture = renderThemeFuture;
+		this.displayModel = displayModel;
+		this.GRAPHIC_FACTORY = gRAPHIC_FACTORY;
+	}
+
+	/**
+	 * Returns the zoom level up to which the MetaTile and everything below it is open sea,
+	 * or the zoom level of the MetaTile itself if that's not the case.
+	 */
+	public int getSeaUntil(MetaTile metaTile) {
+		int z = metaTile.getZoom();
+		int until = this.subFileMaxZooms[z];
+		if (until <= z || !metaTile.isOpenSea()) return z;
+		// Everything that shows up down to zoom level "until" is in the map data of that zoom level
+		int shift = until - z;
+		org.mapsforge.core.model.Tile upperLeft = new org.mapsforge.core.model.Tile(metaTile.getMinX() << shift,
+				metaTile.getMinY() << shift, (byte) until, 256);
+		org.mapsforge.core.model.Tile lowerRight = new org.mapsforge.core.model.Tile(((metaTile.getMinX() + metaTile.getSize()) << shift) - 1,
+				((metaTile.getMinY() + metaTile.getSize()) << shift) - 1, (byte) until, 256);
+		MapReadResult data = metaTile.getMapDataStore().readMapData(upperLeft, lowerRight);
+		if (data == null || !data.isWater || !data.ways.isEmpty() || !data.pointOfInterests.isEmpty()) return z;
+		return until;
+	}
+
+	/**
+	 * Writes the sea Tile for every Tile below the MetaTile down to zoom level "until"
+	 * and leaves out those MetaTiles from now on.
+	 */
+	public void writeSubtree(TileOutput output, MetaTile metaTile, int until, long order) throws IOException {
+		prune(metaTile, until, order);
+		int z = metaTile.getZoom();
+		for (int zoom = z + 1; zoom <= until; zoom++) {
+			int shift = zoom - z;
+			int minX = metaTile.getMinX() << shift;
+			int minY = metaTile.getMinY() << shift;
+			int size = metaTile.getSize() << shift;
+			byte[] png = getSeaTile(zoom, minX, minY, metaTile.getMapDataStore());
+			if (png == null) continue;
+			for (int y = minY; y < minY + size; y++) {
+				for (int x = minX; x < minX + size; x++) {
+					output.put(zoom, x, y, png);
+				}
+			}
+			this.prunedTiles.addAndGet((long) size * size);
+		}
+	}
+
+	/**
+	 * Leaves out the MetaTiles below the MetaTile down to zoom level "until", their Tiles are already there
+	 */
+	public void prune(MetaTile metaTile, int until, long order) {
+		this.pruned.put(TileKey.of(metaTile.getZoom(), metaTile.getMinX(), metaTile.getMinY()), new Pruned(until, order));
+	}
+
+	/**
+	 * Prunes the MetaTile with the upper left Tile x, y, z again that was pruned by an interrupted run
+	 */
+	public void restore(int z, int x, int y, int until) {
+		this.pruned.put(TileKey.of(z, x, y), new Pruned(until, -1));
+	}
+
+	/**
+	 * The pruned MetaTiles {z, x, y, until} that come before the given order. Those are finished,
+	 * the subtree of a MetaTile that is still being written must not be left out by a resumed run.
+	 */
+	public List<int[]> getPruned(long before) {
+		List<int[]> pruned = new ArrayList<>();
+		for (Map.Entry<Long, Pruned> entry : this.pruned.entrySet()) {
+			if (entry.getValue().order >= before) continue;
+			long key = entry.getKey();
+			pruned.add(new int[] { TileKey.zoom(key), TileKey.x(key), TileKey.y(key), entry.getValue().until });
+		}
+		return pruned;
+	}
+
+	/**
+	 * True if the MetaTile with the upper left Tile x, y, z lies below a pruned MetaTile
+	 */
+	public boolean isPruned(int z, int x, int y) {
+		if (this.pruned.isEmpty()) return false;
+		for (int zoom = 0; zoom < z; zoom++) {
+			int size = MetaTile.sizeForZoom(this.metaTileSize, zoom);
+			int ancestorX = x >> (z - zoom);
+			int ancestorY = y >> (z - zoom);
+			Pruned ancestor = this.pruned.get(TileKey.of(zoom, ancestorX - (ancestorX % size), ancestorY - (ancestorY % size)));
+			if (ancestor != null && ancestor.until >= z) return true;
+		}
+		return false;
+	}
+
+	public long getPrunedTiles() {
+		return this.prunedTiles.get();
+	}
+
+	private byte[] getSeaTile(int z, int x, int y, MapDataStore reader) {
+		return this.seaTiles.computeIfAbsent(z, zoom -> {
+			MetaTile seaTile = new MetaTile(x, y, zoom, 1, this.mf, reader, this.renderThemeFuture, this.displayModel, this.GRAPHIC_FACTORY);
+			for (byte[] png : seaTile.render().values()) {
+				return png;
+			}
+			return null;
+		});
+	}
+
+}
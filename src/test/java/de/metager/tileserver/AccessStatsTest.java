@@ -0,0 +1,114 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * MetaTiles are ranked by requests times render time, every decay halves the requests and forgets the
+ * MetaTiles nobody asks for anymore.
+ */
+public class AccessStatsTest {
+
+	private static final int META_TILE_SIZE = 4;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("accessstats").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(this.dir);
+	}
+
+	@Test
+	public void ranksByRequestsTimesRenderTime() {
+		AccessStats stats = stats(100);
+		// Tiles of the same MetaTile count for its upper left Tile
+		request(stats, 14, 101, 202, 3);
+		request(stats, 14, 102, 203, 3);
+		stats.rendered(14, 100, 200, 1000000);
+		// Asked for less often but much slower
+		request(stats, 14, 0, 0, 2);
+		stats.rendered(14, 0, 0, 10000000);
+		// Not rendered yet, as slow as the average on its zoom level
+		request(stats, 14, 8, 8, 4);
+		// Once isn't enough
+		request(stats, 14, 40, 40, 1);
+		stats.rendered(14, 40, 40, 100000000);
+
+		List<int[]> ranked = stats.ranked(2);
+		assertEquals(3, ranked.size());
+		assertArrayEquals(new int[] { 14, 8, 8 }, ranked.get(0));
+		assertArrayEquals(new int[] { 14, 0, 0 }, ranked.get(1));
+		assertArrayEquals(new int[] { 14, 100, 200 }, ranked.get(2));
+	}
+
+	@Test
+	public void decayHalvesTheRequests() {
+		AccessStats stats = stats(100);
+		request(stats, 14, 0, 0, 4);
+		request(stats, 14, 8, 8, 1);
+		stats.decay();
+		// Forgotten
+		assertEquals(1, stats.getCount());
+		assertEquals(1, stats.ranked(2).size());
+		stats.decay();
+		assertEquals(0, stats.ranked(2).size());
+		assertEquals(1, stats.getCount());
+		stats.decay();
+		assertEquals(0, stats.getCount());
+	}
+
+	@Test
+	public void ignoresNewMetaTilesWhenFull() {
+		AccessStats stats = stats(2);
+		request(stats, 14, 0, 0, 2);
+		request(stats, 14, 4, 0, 2);
+		request(stats, 14, 8, 0, 2);
+		assertEquals(2, stats.getCount());
+		// Known ones are still counted
+		request(stats, 14, 0, 0, 2);
+		assertArrayEquals(new int[] { 14, 0, 0 }, stats.ranked(2).get(0));
+	}
+
+	@Test
+	public void survivesARestart() {
+		AccessStats stats = stats(100);
+		request(stats, 14, 100, 200, 3);
+		stats.rendered(14, 100, 200, 2000000);
+		stats.save();
+
+		AccessStats restarted = stats(100);
+		restarted.load();
+		assertEquals(1, restarted.getCount());
+		List<int[]> ranked = restarted.ranked(3);
+		assertEquals(1, ranked.size());
+		assertArrayEquals(new int[] { 14, 100, 200 }, ranked.get(0));
+		assertTrue(new File(this.dir, "stats").exists());
+	}
+
+	private AccessStats stats(int maxEntries) {
+		return new AccessStats(new File(this.dir, "stats"), META_TILE_SIZE, maxEntries);
+	}
+
+	private static void request(AccessStats stats, int z, int x, int y, int times) {
+		for (int i = 0; i < times; i++) {
+			stats.request(z, x, y);
+		}
+	}
+}
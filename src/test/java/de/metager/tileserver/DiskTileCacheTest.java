@@ -0,0 +1,143 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * The DiskTileCache keeps Tiles that are asked for again over Tiles that are only seen once, and Tiles
+ * rendered from older Map Files stay stale until they are rendered again.
+ */
+public class DiskTileCacheTest {
+
+	private static final long TIMEOUT = 10000;
+
+	private File dir;
+	private Thread writer;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("diskcache").toFile();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		stop();
+		FileUtils.deleteQuietly(this.dir);
+	}
+
+	@Test
+	public void keepsTilesThatAreAskedForAgain() throws InterruptedException {
+		DiskTileCache cache = start(new DiskTileCache(this.dir, 1000, "maps", 1));
+		for (int y = 0; y < 5; y++) {
+			cache.put(10, 0, y, TileVariant.DEFAULT, png(100, y), 1);
+		}
+		await(() -> cache.getCount() == 5);
+		assertArrayEquals(png(100, 0), cache.get(10, 0, 0));
+
+		// A burst of Tiles that are only seen once
+		for (int y = 5; y < 15; y++) {
+			cache.put(10, 0, y, TileVariant.DEFAULT, png(100, y), 1);
+		}
+		await(() -> cache.isCached(10, 0, 14, TileVariant.DEFAULT) && cache.getSize() <= cache.getQuota());
+		assertTrue(cache.contains(10, 0, 0));
+		assertFalse(cache.contains(10, 0, 1));
+		assertNull(cache.get(10, 0, 1));
+		assertTrue(cache.getEvictions() > 0);
+		assertFalse(new File(this.dir, "10/0/1.png").exists());
+	}
+
+	@Test
+	public void keepsVariantsApart() throws InterruptedException {
+		DiskTileCache cache = start(new DiskTileCache(this.dir, 1000, "maps", 1));
+		cache.put(10, 0, 0, TileVariant.DEFAULT, png(100, 1), 1);
+		cache.put(10, 0, 0, TileVariant.byId(1), png(100, 2), 1);
+		await(() -> cache.getCount() == 2);
+		assertArrayEquals(png(100, 1), cache.get(10, 0, 0));
+		assertArrayEquals(png(100, 2), cache.get(10, 0, 0, TileVariant.byId(1)));
+	}
+
+	@Test
+	public void tilesOfOlderGenerationsAreStale() throws InterruptedException {
+		DiskTileCache cache = start(new DiskTileCache(this.dir, 1000, "maps", 1));
+		cache.put(10, 0, 0, TileVariant.DEFAULT, png(100, 0), 1);
+		await(() -> cache.getCount() == 1);
+		assertFalse(cache.isStale(10, 0, 0, TileVariant.DEFAULT));
+
+		cache.retag("new maps", 2);
+		assertTrue(cache.isStale(10, 0, 0, TileVariant.DEFAULT));
+		assertFalse(cache.contains(10, 0, 0));
+		assertTrue(cache.isCached(10, 0, 0, TileVariant.DEFAULT));
+		// Stale Tiles are still served
+		assertNotNull(cache.get(10, 0, 0));
+
+		// Rendered with the old generation but written after the retag
+		cache.put(10, 0, 1, TileVariant.DEFAULT, png(100, 1), 1);
+		cache.put(10, 0, 0, TileVariant.DEFAULT, png(100, 2), 2);
+		await(() -> cache.isCached(10, 0, 1, TileVariant.DEFAULT) && !cache.isStale(10, 0, 0, TileVariant.DEFAULT));
+		assertTrue(cache.isStale(10, 0, 1, TileVariant.DEFAULT));
+		assertEquals(1, cache.getStale());
+
+		// After a restart the late Tile is still stale
+		stop();
+		DiskTileCache restarted = start(new DiskTileCache(this.dir, 1000, "new maps", 2));
+		await(() -> restarted.getCount() == 2);
+		assertTrue(restarted.isStale(10, 0, 1, TileVariant.DEFAULT));
+	}
+
+	@Test
+	public void tilesOfOtherMapFilesAreStaleAfterARestart() throws InterruptedException {
+		DiskTileCache cache = start(new DiskTileCache(this.dir, 1000, "maps", 1));
+		cache.put(10, 0, 0, TileVariant.DEFAULT, png(100, 0), 1);
+		await(() -> cache.getCount() == 1);
+		stop();
+
+		DiskTileCache restarted = start(new DiskTileCache(this.dir, 1000, "new maps", 1));
+		await(() -> restarted.getCount() == 1);
+		assertTrue(restarted.isStale(10, 0, 0, TileVariant.DEFAULT));
+		assertArrayEquals(png(100, 0), restarted.get(10, 0, 0));
+	}
+
+	private DiskTileCache start(DiskTileCache cache) {
+		this.writer = new Thread(cache);
+		this.writer.start();
+		return cache;
+	}
+
+	private void stop() throws InterruptedException {
+		if (this.writer == null) return;
+		this.writer.interrupt();
+		this.writer.join();
+		this.writer = null;
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private static byte[] png(int length, int seed) {
+		byte[] png = new byte[length];
+		for (int i = 0; i < length; i++) {
+			png[i] = (byte) (seed * 31 + i);
+		}
+		return png;
+	}
+}
@@ -0,0 +1,81 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * A downsampled Tile is made of its four children, every pixel the alpha weighted average of 2 x 2 pixels.
+ */
+public class DownsamplerTest {
+
+	private static final int SIZE = 8;
+
+	@Test
+	public void averagesByAlpha() {
+		int red = 0xFFFF0000;
+		assertEquals(red, Downsampler.average(red, red, red, red));
+		// Black and white make grey
+		assertEquals(0xFF808080, Downsampler.average(0xFF000000, 0xFF000000, 0xFFFFFFFF, 0xFFFFFFFF));
+		// Transparent pixels don't darken the colour, they only lower the alpha
+		assertEquals(0x40FF0000, Downsampler.average(red, 0, 0, 0));
+		assertEquals(0x80FF0000, Downsampler.average(red, 0x00000000, red, 0x0000FF00));
+		assertEquals(0, Downsampler.average(0, 0x0000FF00, 0, 0x000000FF));
+	}
+
+	@Test
+	public void scalesEveryChildIntoItsQuarter() {
+		int[] colours = { 0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0x80FFFFFF };
+		BufferedImage[] children = new BufferedImage[4];
+		for (int i = 0; i < 4; i++) {
+			children[i] = filled(colours[i]);
+		}
+		BufferedImage tile = Downsampler.scale(children, SIZE);
+		assertEquals(SIZE, tile.getWidth());
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				int child = (y < SIZE / 2 ? 0 : 2) + (x < SIZE / 2 ? 0 : 1);
+				assertEquals(x + "/" + y, colours[child], tile.getRGB(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void leavesMissingChildrenTransparent() {
+		BufferedImage[] children = { null, filled(0xFF00FF00), null, null };
+		BufferedImage tile = Downsampler.scale(children, SIZE);
+		assertEquals(0, tile.getRGB(0, 0));
+		assertEquals(0xFF00FF00, tile.getRGB(SIZE - 1, 0));
+		assertEquals(0, tile.getRGB(SIZE - 1, SIZE - 1));
+	}
+
+	@Test
+	public void averagesNeighbouringPixels() {
+		BufferedImage child = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				// Stripes of black and white columns
+				child.setRGB(x, y, x % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF);
+			}
+		}
+		BufferedImage tile = Downsampler.scale(new BufferedImage[] { child, child, child, child }, SIZE);
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				assertEquals(0xFF808080, tile.getRGB(x, y));
+			}
+		}
+	}
+
+	private static BufferedImage filled(int argb) {
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				image.setRGB(x, y, argb);
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,74 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.map.layer.renderer.RendererJob;
+
+/**
+ * @author SumaEV
+ * The old generation is retired before the Caches are cleared, so renderings still running with it can't
+ * put their Tiles back into the cleared Caches.
+ */
+public class GenerationWatcherTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("generations").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(this.dir);
+	}
+
+	@Test
+	public void retiresBeforeClearingTheCaches() throws IOException {
+		RenderGeneration current = new RenderGeneration(1, null, null, null, null, null, null);
+		RenderGeneration next = new RenderGeneration(2, null, null, null, null, null, null);
+		// A rendering that is still running keeps the old generation open
+		assertTrue(current.retain());
+		AtomicReference<RenderGeneration> generation = new AtomicReference<>(current);
+		List<String> steps = new ArrayList<>();
+
+		TileMemoryCache<RendererJob> memoryCache = new TileMemoryCache<RendererJob>(1000) {
+			@Override
+			public synchronized void clear() {
+				steps.add("clear, retired " + current.isRetired() + ", current " + generation.get().getNumber());
+				super.clear();
+			}
+		};
+		DiskTileCache diskCache = new DiskTileCache(this.dir, 1000, "maps", 1) {
+			@Override
+			public void retag(String signature, long number) {
+				steps.add("retag " + number + ", retired " + current.isRetired());
+				super.retag(signature, number);
+			}
+		};
+		File theme = new File(this.dir, "theme.xml");
+		Files.write(theme.toPath(), new byte[] { 1 });
+		GenerationWatcher watcher = new GenerationWatcher(generation, memoryCache, diskCache, this.dir, theme, null, null, 1, false);
+
+		watcher.swap(current, next);
+		assertSame(next, generation.get());
+		assertEquals(2, steps.size());
+		assertEquals("clear, retired true, current 2", steps.get(0));
+		assertEquals("retag 2, retired true", steps.get(1));
+		assertFalse(next.isRetired());
+	}
+}
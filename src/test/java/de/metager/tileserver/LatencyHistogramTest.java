@@ -0,0 +1,59 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * Every value falls into a bucket whose bounds contain it and that is at most 12.5% wide.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketsContainTheirValues() {
+		long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 1023, 1024, 1025, 123456789, Long.MAX_VALUE / 2, Long.MAX_VALUE };
+		for (long value : values) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(value + " below its bucket", LatencyHistogram.lowestInBucket(index) <= value);
+			assertTrue(value + " above its bucket", LatencyHistogram.highestInBucket(index) >= value);
+		}
+		for (int shift = 0; shift < 63; shift++) {
+			long value = 1L << shift;
+			assertEquals(value, LatencyHistogram.lowestInBucket(LatencyHistogram.index(value)));
+			assertEquals(value - 1, LatencyHistogram.highestInBucket(LatencyHistogram.index(value - 1)));
+		}
+	}
+
+	@Test
+	public void bucketsAreContiguousAndNarrow() {
+		int last = LatencyHistogram.index(Long.MAX_VALUE);
+		for (int index = 0; index < last; index++) {
+			long lowest = LatencyHistogram.lowestInBucket(index);
+			long highest = LatencyHistogram.highestInBucket(index);
+			assertEquals(highest + 1, LatencyHistogram.lowestInBucket(index + 1));
+			assertEquals(index, LatencyHistogram.index(lowest));
+			assertEquals(index, LatencyHistogram.index(highest));
+			assertTrue("Bucket " + index + " is too wide", highest - lowest + 1 <= Math.max(1, lowest / 8));
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestInBucket(last));
+	}
+
+	@Test
+	public void percentilesStayWithinTheBucketWidth() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 1000; micros++) {
+			histogram.record(micros * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+		assertEquals(500500, histogram.getSum());
+		long median = histogram.getPercentile(0.5);
+		assertTrue("Median " + median, median >= 500 && median <= 500 * 1.125);
+		long p99 = histogram.getPercentile(0.99);
+		assertTrue("99th percentile " + p99, p99 >= 990 && p99 <= 1000);
+		assertEquals(1000, histogram.getPercentile(1));
+		assertEquals(0, new LatencyHistogram().getPercentile(0.5));
+	}
+}
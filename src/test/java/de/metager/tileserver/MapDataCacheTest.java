@@ -0,0 +1,175 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+
+/**
+ * @author SumaEV
+ * An area within a block is cut out of the block that is read once, with the Ways and POIs in and around it.
+ * Areas spanning several blocks and zoom levels without blocks are read from the Map Files directly.
+ */
+public class MapDataCacheTest {
+
+	private static final int BASE_ZOOM = 10;
+	private static final int ZOOM = 12;
+	private static final int TILE_SIZE = 256;
+
+	/**
+	 * A POI in the middle of every Tile and a short Way around it, the left half of the map is land, the right half open sea
+	 */
+	private static class Reader extends MapDataStore {
+		final AtomicInteger reads = new AtomicInteger();
+
+		@Override
+		public MapReadResult readMapData(Tile upperLeft, Tile lowerRight) {
+			this.reads.incrementAndGet();
+			MapReadResult result = new MapReadResult();
+			result.isWater = true;
+			for (int y = upperLeft.tileY; y <= lowerRight.tileY; y++) {
+				for (int x = upperLeft.tileX; x <= lowerRight.tileX; x++) {
+					if (x >= 2) continue;
+					BoundingBox box = new Tile(x, y, upperLeft.zoomLevel, TILE_SIZE).getBoundingBox();
+					LatLong center = box.getCenterPoint();
+					result.pointOfInterests.add(new PointOfInterest((byte) 0, Collections.singletonList(new Tag("name", x + "/" + y)), center));
+					double lat = box.getLatitudeSpan() / 10;
+					double lon = box.getLongitudeSpan() / 10;
+					result.ways.add(new Way((byte) 0, Collections.<Tag> emptyList(), new LatLong[][] { {
+							new LatLong(center.latitude - lat, center.longitude - lon), new LatLong(center.latitude + lat, center.longitude + lon) } },
+							null));
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public MapReadResult readMapData(Tile tile) {
+			return readMapData(tile, tile);
+		}
+
+		@Override
+		public MapReadResult readPoiData(Tile tile) {
+			return new MapReadResult();
+		}
+
+		@Override
+		public BoundingBox boundingBox() {
+			return new BoundingBox(-85, -180, 85, 180);
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public long getDataTimestamp(Tile tile) {
+			return 0;
+		}
+
+		@Override
+		public LatLong startPosition() {
+			return null;
+		}
+
+		@Override
+		public Byte startZoomLevel() {
+			return null;
+		}
+
+		@Override
+		public boolean supportsTile(Tile tile) {
+			return true;
+		}
+	}
+
+	@Test
+	public void cutsAreasOutOfTheBlock() {
+		MapDataCache cache = new MapDataCache(baseZooms(), 1 << 20);
+		Reader reader = new Reader();
+		MapReadResult upperLeft = cache.readMapData(reader, tile(0, 0), tile(1, 1));
+		MapReadResult lowerLeft = cache.readMapData(reader, tile(0, 2), tile(1, 3));
+		// The whole block of 4 x 4 Tiles is read once
+		assertEquals(1, reader.reads.get());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getCount());
+
+		assertEquals(names("0/0", "1/0", "0/1", "1/1"), names(upperLeft));
+		assertEquals(4, upperLeft.ways.size());
+		assertEquals(names("0/2", "1/2", "0/3", "1/3"), names(lowerLeft));
+		assertFalse(upperLeft.isWater);
+	}
+
+	@Test
+	public void onlyEmptyCutOutsAreWater() {
+		MapDataCache cache = new MapDataCache(baseZooms(), 1 << 20);
+		Reader reader = new Reader();
+		MapReadResult sea = cache.readMapData(reader, tile(2, 0), tile(3, 1));
+		assertTrue(sea.isWater);
+		assertTrue(sea.pointOfInterests.isEmpty());
+		assertTrue(sea.ways.isEmpty());
+		assertFalse(cache.readMapData(reader, tile(0, 0), tile(0, 0)).isWater);
+	}
+
+	@Test
+	public void readsOtherAreasDirectly() {
+		MapDataCache cache = new MapDataCache(baseZooms(), 1 << 20);
+		Reader reader = new Reader();
+		// Spans two blocks
+		MapReadResult across = cache.readMapData(reader, tile(1, 3), tile(1, 4));
+		assertEquals(names("1/3", "1/4"), names(across));
+		// The blocks are read for higher zoom levels only
+		cache.readMapData(reader, new Tile(0, 0, (byte) BASE_ZOOM, TILE_SIZE), new Tile(0, 0, (byte) BASE_ZOOM, TILE_SIZE));
+		assertEquals(2, reader.reads.get());
+		assertEquals(0, cache.getCount());
+		assertEquals(0, cache.getMisses());
+	}
+
+	@Test
+	public void blocksBiggerThanTheCacheAreNotKept() {
+		MapDataCache cache = new MapDataCache(baseZooms(), 100);
+		Reader reader = new Reader();
+		cache.readMapData(reader, tile(0, 0), tile(1, 1));
+		cache.readMapData(reader, tile(0, 0), tile(1, 1));
+		assertEquals(2, reader.reads.get());
+		assertEquals(0, cache.getCount());
+	}
+
+	private static int[] baseZooms() {
+		int[] baseZooms = new int[ZOOM + 1];
+		Arrays.fill(baseZooms, BASE_ZOOM);
+		return baseZooms;
+	}
+
+	private static Tile tile(int x, int y) {
+		return new Tile(x, y, (byte) ZOOM, TILE_SIZE);
+	}
+
+	private static Set<String> names(String... names) {
+		return new HashSet<>(Arrays.asList(names));
+	}
+
+	private static Set<String> names(MapReadResult result) {
+		Set<String> names = new HashSet<>();
+		for (PointOfInterest poi : result.pointOfInterests) {
+			names.add(poi.tags.get(0).value);
+		}
+		return names;
+	}
+}
@@ -0,0 +1,149 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * Whatever the PackedTileWriter puts into a tileset the PackedTileStore reads back unchanged.
+ */
+public class PackedTileStoreTest {
+
+	private File dir;
+	private File target;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("packed").toFile();
+		this.target = new File(this.dir, TileServer.PRERENDERED_FILE);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(this.dir);
+	}
+
+	@Test
+	public void readsBackWhatWasWritten() throws IOException {
+		byte[] big = png(PackedTileWriter.SHARED_PNG_SIZE * 4, 1);
+		byte[] sea = png(100, 2);
+		try (PackedTileWriter writer = new PackedTileWriter(this.target, 3)) {
+			writer.put(0, 0, 0, big);
+			writer.put(3, 7, 7, sea);
+			writer.put(3, 0, 7, sea.clone());
+			writer.putHash(3, 7, 7, 42);
+			assertFalse(this.target.exists());
+		}
+		assertTrue(this.target.exists());
+		assertFalse(new File(this.target.getPath() + ".tmp").exists());
+
+		PackedTileStore store = PackedTileStore.open(this.target);
+		try {
+			assertEquals(3, store.getMaxZoom());
+			assertArrayEquals(big, store.get(0, 0, 0));
+			assertArrayEquals(sea, store.get(3, 7, 7));
+			assertArrayEquals(sea, store.get(3, 0, 7));
+			assertEquals(big.length, PackedTileStore.length(store.getEntry(0, 0, 0)));
+			// Identical small PNGs are stored once
+			assertEquals(store.getEntry(3, 7, 7), store.getEntry(3, 0, 7));
+			assertEquals(42, store.getHash(3, 7, 7));
+			assertEquals(0, store.getHash(3, 0, 7));
+			assertEquals(0, store.getEntry(1, 1, 1));
+			assertNull(store.get(1, 1, 1));
+			// Beyond maxZoom or outside of the zoom level
+			assertEquals(0, store.getEntry(4, 0, 0));
+			assertEquals(0, store.getEntry(2, 4, 0));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTilesOutsideOfTheTileset() throws IOException {
+		try (PackedTileWriter writer = new PackedTileWriter(this.target, 2)) {
+			writer.put(3, 0, 0, png(10, 3));
+		}
+	}
+
+	@Test
+	public void updatesAnExistingTilesetInPlace() throws IOException {
+		byte[] old = png(2000, 4);
+		byte[] updated = png(3000, 5);
+		try (PackedTileWriter writer = new PackedTileWriter(this.target, 2)) {
+			writer.put(2, 1, 1, old);
+			writer.put(2, 2, 2, old);
+		}
+		PackedTileStore store = PackedTileStore.open(this.target);
+		try {
+			try (PackedTileWriter writer = PackedTileWriter.openExisting(this.target)) {
+				writer.put(2, 1, 1, updated);
+				writer.flush();
+				// An open store sees the update right away
+				assertArrayEquals(updated, store.get(2, 1, 1));
+				// The old PNG stays in the tileset as dead data
+				assertEquals(old.length, writer.getReplaced());
+				assertTrue(this.target.length() >= 2 * old.length + updated.length);
+			}
+			assertArrayEquals(old, store.get(2, 2, 2));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void resumesAnInterruptedTileset() throws IOException {
+		byte[] first = png(2000, 6);
+		byte[] second = png(2000, 7);
+		assertNull(PackedTileWriter.resume(this.target));
+		PackedTileWriter interrupted = new PackedTileWriter(this.target, 2);
+		interrupted.put(1, 0, 0, first);
+		interrupted.flush();
+
+		PackedTileWriter resumed = PackedTileWriter.resume(this.target);
+		assertNotNull(resumed);
+		resumed.put(1, 1, 1, second);
+		resumed.close();
+
+		PackedTileStore store = PackedTileStore.open(this.target);
+		try {
+			assertArrayEquals(first, store.get(1, 0, 0));
+			assertArrayEquals(second, store.get(1, 1, 1));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void closesOnceTheLastUserIsDone() throws IOException {
+		try (PackedTileWriter writer = new PackedTileWriter(this.target, 1)) {
+			writer.put(0, 0, 0, png(10, 8));
+		}
+		PackedTileStore store = PackedTileStore.open(this.target);
+		assertTrue(store.retain());
+		store.retire();
+		assertTrue(store.getChannel().isOpen());
+		store.release();
+		assertFalse(store.getChannel().isOpen());
+		assertFalse(store.retain());
+	}
+
+	private static byte[] png(int length, long seed) {
+		byte[] png = new byte[length];
+		new Random(seed).nextBytes(png);
+		return png;
+	}
+}
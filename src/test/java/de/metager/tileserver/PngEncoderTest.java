@@ -0,0 +1,98 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * Without quantization the PngEncoder is lossless: ImageIO decodes every PNG to the pixels it was encoded from,
+ * whatever colour type, bit depth and filter it picked.
+ */
+public class PngEncoderTest {
+
+	private static final int SIZE = 64;
+
+	@Test
+	public void opaqueTilesAreLossless() throws IOException {
+		assertLossless(image(new Random(1), 1 << 24, true));
+	}
+
+	@Test
+	public void translucentTilesAreLossless() throws IOException {
+		assertLossless(image(new Random(2), 1 << 24, false));
+	}
+
+	@Test
+	public void indexedTilesAreLossless() throws IOException {
+		// 1, 2, 4 and 8 bits per pixel, with and without transparent colours
+		for (int colours : new int[] { 1, 2, 3, 4, 16, 17, 256 }) {
+			assertLossless(image(new Random(colours), colours, true));
+			assertLossless(image(new Random(colours), colours, false));
+		}
+	}
+
+	@Test
+	public void quantizedTilesKeepTheirSize() throws IOException {
+		BufferedImage image = image(new Random(3), 1 << 24, true);
+		BufferedImage decoded = decode(new PngEncoder(6, PngEncoder.Filter.NONE, true).encode(image));
+		assertEquals(SIZE, decoded.getWidth());
+		assertEquals(SIZE, decoded.getHeight());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidLevels() {
+		new PngEncoder(10, PngEncoder.Filter.NONE, false);
+	}
+
+	private static void assertLossless(BufferedImage image) throws IOException {
+		for (int level : new int[] { 0, 1, 9 }) {
+			for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+				PngEncoder encoder = new PngEncoder(level, filter, false);
+				// Twice, the second time with the reused buffers
+				for (int i = 0; i < 2; i++) {
+					BufferedImage decoded = decode(encoder.encode(image));
+					for (int y = 0; y < SIZE; y++) {
+						for (int x = 0; x < SIZE; x++) {
+							assertEquals(filter + ", level " + level + " at " + x + "/" + y, image.getRGB(x, y), decoded.getRGB(x, y));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static BufferedImage decode(byte[] png) throws IOException {
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+		assertNotNull(decoded);
+		return decoded;
+	}
+
+	/**
+	 * An image with at most the given number of colours. Translucent images also have fully transparent pixels.
+	 */
+	private static BufferedImage image(Random random, int colours, boolean opaque) {
+		int[] palette = new int[Math.min(colours, 1024)];
+		for (int i = 0; i < palette.length; i++) {
+			int alpha = opaque ? 0xFF : i % 3 == 0 ? 0 : random.nextInt(256);
+			palette[i] = alpha << 24 | random.nextInt(1 << 24);
+		}
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				int argb = colours > palette.length ? (opaque ? 0xFF : random.nextInt(256)) << 24 | random.nextInt(1 << 24)
+						: palette[(x + y * SIZE) % palette.length];
+				image.setRGB(x, y, argb);
+			}
+		}
+		return image;
+	}
+}
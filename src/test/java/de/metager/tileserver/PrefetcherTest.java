@@ -0,0 +1,105 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * The Prefetcher keeps at most budget MetaTiles, drops the oldest ones first and renders the most recent one first.
+ */
+public class PrefetcherTest {
+
+	private static final int META_TILE_SIZE = 4;
+
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+	private Thread thread;
+
+	/**
+	 * Records the MetaTiles instead of rendering them
+	 */
+	private static class RecordingPrefetcher extends Prefetcher {
+		final List<int[]> rendered = new ArrayList<>();
+
+		RecordingPrefetcher(ThreadPoolExecutor executor, int budget) {
+			super(null, executor, null, null, null, null, null, null, META_TILE_SIZE, budget, 0, 18);
+		}
+
+		@Override
+		protected void render(int[] upperLeft) {
+			synchronized (this.rendered) {
+				this.rendered.add(upperLeft);
+				this.rendered.notifyAll();
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread.join();
+		}
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void dropsTheOldestMetaTilesOverBudget() {
+		RecordingPrefetcher prefetcher = new RecordingPrefetcher(this.executor, 3);
+		// Four neighbours and the children
+		prefetcher.prefetch(41, 42, 10);
+		assertEquals(3, prefetcher.getPending());
+		assertEquals(2, prefetcher.getDropped());
+	}
+
+	@Test
+	public void queuesWaitingMetaTilesOnlyOnce() {
+		RecordingPrefetcher prefetcher = new RecordingPrefetcher(this.executor, 10);
+		prefetcher.prefetch(41, 42, 10);
+		prefetcher.prefetch(40, 43, 10);
+		assertEquals(5, prefetcher.getPending());
+		assertEquals(0, prefetcher.getDropped());
+	}
+
+	@Test
+	public void skipsMetaTilesOutsideOfTheWorld() {
+		RecordingPrefetcher prefetcher = new RecordingPrefetcher(this.executor, 10);
+		// No left and upper neighbour
+		prefetcher.prefetch(0, 0, 10);
+		assertEquals(3, prefetcher.getPending());
+	}
+
+	@Test
+	public void queuesNothingWithoutBudget() {
+		RecordingPrefetcher prefetcher = new RecordingPrefetcher(this.executor, 0);
+		prefetcher.prefetch(41, 42, 10);
+		assertEquals(0, prefetcher.getPending());
+		assertEquals(0, prefetcher.getDropped());
+	}
+
+	@Test
+	public void rendersTheChildrenFirst() throws InterruptedException {
+		RecordingPrefetcher prefetcher = new RecordingPrefetcher(this.executor, 10);
+		prefetcher.prefetch(41, 42, 10);
+		this.thread = new Thread(prefetcher);
+		this.thread.start();
+		synchronized (prefetcher.rendered) {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (prefetcher.rendered.size() < 5 && System.currentTimeMillis() < deadline) {
+				prefetcher.rendered.wait(100);
+			}
+			assertEquals(5, prefetcher.rendered.size());
+			assertArrayEquals(new int[] { 11, 80, 84 }, prefetcher.rendered.get(0));
+			assertArrayEquals(new int[] { 10, 36, 40 }, prefetcher.rendered.get(4));
+		}
+		assertEquals(0, prefetcher.getPending());
+	}
+}
@@ -0,0 +1,75 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * The CacheManager descends into a subtree only while it overlaps an Area, on every zoom level up to its maxZoom.
+ */
+public class PrerenderAreaTest {
+
+	private final PrerenderArea germany = new PrerenderArea("germany", 7, 65, 40, 69, 44, 12);
+
+	@Test
+	public void overlapsOnHigherZoomLevels() {
+		assertTrue(this.germany.intersects(7, 65, 40, 65, 40));
+		assertTrue(this.germany.intersects(7, 60, 30, 65, 40));
+		assertFalse(this.germany.intersects(7, 70, 40, 71, 41));
+		// Tile 69 on zoom 7 is 138 and 139 on zoom 8
+		assertTrue(this.germany.intersects(8, 139, 80, 139, 80));
+		assertFalse(this.germany.intersects(8, 140, 80, 143, 83));
+		assertTrue(this.germany.intersects(12, 65 << 5, 40 << 5, (65 << 5) + 15, (40 << 5) + 15));
+	}
+
+	@Test
+	public void overlapsOnLowerZoomLevels() {
+		// The whole world
+		assertTrue(this.germany.intersects(0, 0, 0, 0, 0));
+		// 65..69 on zoom 7 is 16..17 on zoom 5
+		assertTrue(this.germany.intersects(5, 17, 10, 17, 10));
+		assertFalse(this.germany.intersects(5, 18, 10, 19, 11));
+		assertFalse(this.germany.intersects(5, 16, 12, 17, 13));
+	}
+
+	@Test
+	public void endsAtItsMaxZoom() {
+		assertFalse(this.germany.intersects(13, 65 << 6, 40 << 6, 65 << 6, 40 << 6));
+	}
+
+	@Test
+	public void loadsAreasFromAFile() throws IOException {
+		File file = File.createTempFile("areas", ".txt");
+		try {
+			Files.write(file.toPath(), "# name;zoom;minX;minY;maxX;maxY;maxZoom\n\nworld;0;0;0;0;0;6\n poland ; 7;70;40;72;43;12\n"
+					.getBytes(StandardCharsets.UTF_8));
+			List<PrerenderArea> areas = PrerenderArea.load(file);
+			assertEquals(2, areas.size());
+			assertEquals("poland", areas.get(1).name);
+			assertEquals(72, areas.get(1).maxX);
+			assertEquals(12, areas.get(1).maxZoom);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsIncompleteAreas() throws IOException {
+		File file = File.createTempFile("areas", ".txt");
+		try {
+			Files.write(file.toPath(), "world;0;0;0;0;0\n".getBytes(StandardCharsets.UTF_8));
+			PrerenderArea.load(file);
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.BoundingBox;
+
+/**
+ * @author SumaEV
+ * A worker that sends a Tile longer than a packed tileset can hold loses its connection and its shard, which is handed
+ * out to the next worker.
+ */
+public class PrerenderCoordinatorTest {
+
+	private File dir;
+	private Thread coordinator;
+	private int port;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("coordinator").toFile();
+		try (ServerSocket socket = new ServerSocket(0)) {
+			this.port = socket.getLocalPort();
+		}
+		// A single shard with every zoom level up to 2
+		this.coordinator = new Thread(new PrerenderCoordinator(this.port, this.dir, new BoundingBox(-80, -170, 80, 170), 0, 2, 1, 1,
+				60000));
+		this.coordinator.start();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		this.coordinator.interrupt();
+		this.coordinator.join(10000);
+		FileUtils.deleteQuietly(this.dir);
+	}
+
+	@Test(timeout = 20000)
+	public void dropsWorkersSendingInvalidLengths() throws Exception {
+		try (Socket socket = connect()) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			assertEquals(0, lease(in, out));
+			out.writeByte(PrerenderCoordinator.TILE);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+			// Without the check the coordinator would wait for 16 MB that never come
+			out.writeInt(PackedTileStore.MAX_PNG_SIZE + 1);
+			out.flush();
+			try {
+				in.readByte();
+			} catch (EOFException | SocketException e) {
+				// Closed as expected
+			}
+		}
+
+		byte[] png = { 1, 2, 3 };
+		try (Socket socket = connect()) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			// The shard of the dropped worker is handed out again
+			assertEquals(0, lease(in, out));
+			out.writeByte(PrerenderCoordinator.TILE);
+			out.writeInt(1);
+			out.writeInt(1);
+			out.writeInt(0);
+			out.writeInt(png.length);
+			out.write(png);
+			out.writeByte(PrerenderCoordinator.DONE);
+			out.writeInt(0);
+			out.flush();
+			this.coordinator.join();
+		}
+		PackedTileStore store = PackedTileStore.open(new File(this.dir, TileServer.PRERENDERED_FILE));
+		try {
+			assertArrayEquals(png, store.get(1, 1, 0));
+		} finally {
+			store.close();
+		}
+	}
+
+	private Socket connect() throws InterruptedException {
+		while (true) {
+			try {
+				return new Socket("localhost", this.port);
+			} catch (IOException e) {
+				// Not listening yet
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	/**
+	 * Leases a shard and returns its id. Like a worker it asks again while every shard is leased.
+	 */
+	private static int lease(DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+		byte type;
+		while (true) {
+			out.writeByte(PrerenderCoordinator.LEASE);
+			out.flush();
+			type = in.readByte();
+			if (type != PrerenderCoordinator.WAIT) break;
+			Thread.sleep(20);
+		}
+		assertEquals(PrerenderCoordinator.SHARD, type);
+		int id = in.readInt();
+		// zoom, x, y, endZoom, metaTileSize, seed and the bounding box
+		for (int i = 0; i < 5; i++) {
+			in.readInt();
+		}
+		in.readLong();
+		for (int i = 0; i < 4; i++) {
+			in.readDouble();
+		}
+		return id;
+	}
+}
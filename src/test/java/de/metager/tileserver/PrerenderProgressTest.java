@@ -0,0 +1,111 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * The checkpoint stays in front of every MetaTile that isn't finished, failed ones included,
+ * and a resumed run leaves out the open sea that was pruned before it.
+ */
+public class PrerenderProgressTest {
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("progress").toFile();
+		this.file = new File(this.dir, TileServer.PRERENDERED_FILE + ".progress");
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(this.dir);
+	}
+
+	@Test
+	public void checkpointIsTheFirstUnfinishedMetaTile() {
+		PrerenderProgress progress = new PrerenderProgress(this.file, false, 8);
+		assertEquals(0, progress.getCheckpoint());
+		progress.started(10);
+		progress.started(11);
+		progress.started(12);
+		assertEquals(10, progress.getCheckpoint());
+		progress.finished(11);
+		assertEquals(10, progress.getCheckpoint());
+		progress.finished(10);
+		assertEquals(12, progress.getCheckpoint());
+		progress.finished(12);
+		assertEquals(13, progress.getCheckpoint());
+		assertEquals(3, progress.getFinished());
+	}
+
+	@Test
+	public void failedMetaTilesHoldTheCheckpoint() {
+		PrerenderProgress progress = new PrerenderProgress(this.file, false, 8);
+		progress.started(10);
+		progress.started(11);
+		progress.failed(10);
+		progress.finished(11);
+		assertEquals(10, progress.getCheckpoint());
+		assertEquals(1, progress.getFailed());
+	}
+
+	@Test
+	public void resumesOnlyTheSameKindOfPrerendering() throws IOException {
+		PrerenderProgress progress = new PrerenderProgress(this.file, true, 8);
+		progress.started(10);
+		progress.started(11);
+		progress.finished(10);
+		try (PackedTileWriter output = new PackedTileWriter(new File(this.dir, TileServer.PRERENDERED_FILE), 1)) {
+			progress.save(output);
+		}
+		assertEquals(11, new PrerenderProgress(this.file, true, 8).load());
+		assertEquals(0, new PrerenderProgress(this.file, false, 8).load());
+		assertEquals(0, new PrerenderProgress(this.file, true, 4).load());
+
+		progress.delete();
+		assertEquals(0, new PrerenderProgress(this.file, true, 8).load());
+	}
+
+	@Test
+	public void resumedRunsLeaveOutThePrunedOpenSea() throws IOException {
+		PrerenderProgress progress = new PrerenderProgress(this.file, false, 4);
+		UniformTiles uniformTiles = new UniformTiles(4, null, null, null, null, null);
+		long sea = TileEnumerator.order(5, 10);
+		long stillWriting = TileEnumerator.order(5, 20);
+		progress.started(sea);
+		progress.started(stillWriting);
+		uniformTiles.prune(new MetaTile(8, 8, 5, 4, null, null, null, null), 9, sea);
+		uniformTiles.prune(new MetaTile(16, 16, 5, 4, null, null, null, null), 9, stillWriting);
+		progress.finished(sea);
+		try (PackedTileWriter output = new PackedTileWriter(new File(this.dir, TileServer.PRERENDERED_FILE), 1)) {
+			progress.save(output, uniformTiles);
+		}
+
+		PrerenderProgress resumed = new PrerenderProgress(this.file, false, 4);
+		assertEquals(stillWriting, resumed.load());
+		UniformTiles restored = new UniformTiles(4, null, null, null, null, null);
+		resumed.loadPruned(restored);
+		assertTrue(restored.isPruned(9, 8 << 4, 8 << 4));
+		assertFalse(restored.isPruned(10, 8 << 5, 8 << 5));
+		// Its subtree may be half written, the resumed run renders it again
+		assertFalse(restored.isPruned(9, 16 << 4, 16 << 4));
+
+		// Other kinds of prerendering don't prune anything
+		UniformTiles other = new UniformTiles(4, null, null, null, null, null);
+		new PrerenderProgress(this.file, true, 4).loadPruned(other);
+		assertFalse(other.isPruned(9, 8 << 4, 8 << 4));
+	}
+}
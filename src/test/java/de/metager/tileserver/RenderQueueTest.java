@@ -0,0 +1,113 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * The render queue is bounded and drops requests that expired or whose client hung up instead of rendering them.
+ */
+public class RenderQueueTest {
+
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private static final class Request implements RenderQueue.Request, Comparable<Request> {
+		final long sequence = SEQUENCE.incrementAndGet();
+		final boolean expired;
+		final boolean abandoned;
+		boolean ran;
+		boolean answeredBusy;
+		boolean dropped;
+
+		Request(boolean expired, boolean abandoned) {
+			this.expired = expired;
+			this.abandoned = abandoned;
+		}
+
+		@Override
+		public void run() {
+			this.ran = true;
+		}
+
+		@Override
+		public boolean isAbandoned() {
+			return this.abandoned;
+		}
+
+		@Override
+		public boolean isExpired() {
+			return this.expired;
+		}
+
+		@Override
+		public void abandon() {
+			this.dropped = true;
+		}
+
+		@Override
+		public void busy() {
+			this.answeredBusy = true;
+		}
+
+		@Override
+		public int compareTo(Request other) {
+			return Long.compare(this.sequence, other.sequence);
+		}
+	}
+
+	@Test
+	public void rejectsRequestsBeyondTheCapacity() {
+		RenderQueue queue = new RenderQueue(2);
+		assertTrue(queue.offer(new Request(false, false)));
+		assertTrue(queue.offer(new Request(false, false)));
+		assertFalse(queue.offer(new Request(false, false)));
+		assertEquals(2, queue.size());
+	}
+
+	@Test
+	public void shedsExpiredAndAbandonedRequests() throws InterruptedException {
+		RenderQueue queue = new RenderQueue(4);
+		Request expired = new Request(true, false);
+		Request abandoned = new Request(false, true);
+		Request fresh = new Request(false, false);
+		queue.offer(expired);
+		queue.offer(abandoned);
+		queue.offer(fresh);
+
+		assertSame(fresh, queue.take());
+		assertTrue(expired.answeredBusy);
+		assertFalse(expired.dropped);
+		assertTrue(abandoned.dropped);
+		assertFalse(abandoned.answeredBusy);
+		assertEquals(1, queue.getShed());
+		assertEquals(1, queue.getAbandoned());
+	}
+
+	@Test
+	public void pollReturnsNothingIfEverythingExpired() throws InterruptedException {
+		RenderQueue queue = new RenderQueue(4);
+		Request expired = new Request(true, false);
+		queue.offer(expired);
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		assertTrue(expired.answeredBusy);
+		assertEquals(1, queue.getShed());
+	}
+
+	@Test
+	public void rejectedRequestsAreAnsweredBusy() {
+		RenderQueue queue = new RenderQueue(1);
+		Request rejected = new Request(false, false);
+		queue.rejectedExecution(rejected, null);
+		assertTrue(rejected.answeredBusy);
+		assertFalse(rejected.ran);
+		assertEquals(1, queue.getRejected());
+	}
+}
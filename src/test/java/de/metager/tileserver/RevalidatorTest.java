@@ -0,0 +1,69 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * A stale Tile that is asked for again while it waits is queued only once, every variant on its own,
+ * and at most budget Tiles wait.
+ */
+public class RevalidatorTest {
+
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+
+	@After
+	public void tearDown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void queuesWaitingTilesOnlyOnce() {
+		Revalidator revalidator = revalidator(10);
+		revalidator.refresh(1, 2, 12, TileVariant.DEFAULT, null);
+		revalidator.refresh(1, 2, 12, TileVariant.DEFAULT, null);
+		assertEquals(1, revalidator.getPending());
+		// The same Tile in other variants and on other zoom levels
+		revalidator.refresh(1, 2, 12, TileVariant.get(512, 1), null);
+		revalidator.refresh(1, 2, 12, TileVariant.get(256, 2), null);
+		revalidator.refresh(1, 2, 13, TileVariant.DEFAULT, null);
+		revalidator.refresh(2, 1, 12, TileVariant.DEFAULT, null);
+		assertEquals(5, revalidator.getPending());
+		assertEquals(0, revalidator.getDropped());
+	}
+
+	@Test
+	public void dropsTheOldestTilesOverBudget() {
+		Revalidator revalidator = revalidator(2);
+		revalidator.refresh(0, 0, 12, TileVariant.DEFAULT, null);
+		revalidator.refresh(1, 0, 12, TileVariant.DEFAULT, null);
+		revalidator.refresh(2, 0, 12, TileVariant.DEFAULT, null);
+		assertEquals(2, revalidator.getPending());
+		assertEquals(1, revalidator.getDropped());
+		// The dropped Tile is queued again the next time it is asked for
+		revalidator.refresh(0, 0, 12, TileVariant.DEFAULT, null);
+		assertEquals(2, revalidator.getPending());
+		assertEquals(2, revalidator.getDropped());
+	}
+
+	@Test
+	public void staleTilesAreNotServedWithoutBudget() {
+		Revalidator revalidator = revalidator(0);
+		assertFalse(revalidator.isEnabled());
+		revalidator.refresh(0, 0, 12, TileVariant.DEFAULT, null);
+		assertEquals(0, revalidator.getPending());
+		assertTrue(revalidator(1).isEnabled());
+	}
+
+	private Revalidator revalidator(int budget) {
+		return new Revalidator(null, this.executor, null, null, null, null, null, null, null, 4, 1000, budget);
+	}
+}
@@ -0,0 +1,159 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Display;
+import org.mapsforge.core.graphics.Filter;
+import org.mapsforge.core.graphics.Matrix;
+import org.mapsforge.core.mapelements.MapElementContainer;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.model.Rectangle;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * @author SumaEV
+ * MetaTiles of different areas place their labels at the same time, neighbouring MetaTiles one after another,
+ * so a label on their shared edge is placed only once.
+ */
+public class SharedLabelStoreTest {
+
+	private static final byte ZOOM = 10;
+	private static final int TILE_SIZE = 256;
+
+	private final ExecutorService threads = Executors.newFixedThreadPool(2);
+
+	private static class Label extends MapElementContainer {
+		Label(double x, double y, int priority) {
+			super(new Point(x, y), Display.IFSPACE, priority);
+			this.boundary = new Rectangle(-20, -10, 20, 10);
+		}
+
+		@Override
+		public void draw(Canvas canvas, Point origin, Matrix matrix, Filter filter) {
+		}
+	}
+
+	/**
+	 * Waits in its first collision check until the other area checks its labels as well
+	 */
+	private static class GateLabel extends Label {
+		private final CyclicBarrier barrier;
+		private final AtomicBoolean passed = new AtomicBoolean();
+
+		GateLabel(double x, double y, int priority, CyclicBarrier barrier) {
+			super(x, y, priority);
+			this.barrier = barrier;
+		}
+
+		@Override
+		public boolean clashesWith(MapElementContainer other) {
+			if (this.passed.compareAndSet(false, true)) {
+				try {
+					this.barrier.await(5, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					throw new IllegalStateException("The other area didn't place its labels at the same time", e);
+				}
+			}
+			return super.clashesWith(other);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		this.threads.shutdownNow();
+	}
+
+	@Test
+	public void disjointAreasPlaceInParallel() throws Exception {
+		SharedLabelStore store = new SharedLabelStore(1024);
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		List<Tile> west = metaTile(0, 0);
+		List<Tile> east = metaTile(512, 512);
+		Set<MapElementContainer> westLabels = labels(new GateLabel(100, 100, 2, barrier), new GateLabel(300, 300, 1, barrier));
+		Set<MapElementContainer> eastLabels = labels(new GateLabel(512 * TILE_SIZE + 100, 512 * TILE_SIZE + 100, 2, barrier),
+				new GateLabel(512 * TILE_SIZE + 300, 512 * TILE_SIZE + 300, 1, barrier));
+
+		Future<Set<MapElementContainer>> westPlaced = this.threads.submit(() -> store.place(west, westLabels));
+		Future<Set<MapElementContainer>> eastPlaced = this.threads.submit(() -> store.place(east, eastLabels));
+		assertEquals(westLabels, westPlaced.get(10, TimeUnit.SECONDS));
+		assertEquals(eastLabels, eastPlaced.get(10, TimeUnit.SECONDS));
+		assertEquals(2, store.getPlaced());
+	}
+
+	@Test
+	public void sharedEdgeIsPlacedOnce() throws Exception {
+		double edge = 2 * TILE_SIZE;
+		for (int i = 0; i < 200; i++) {
+			SharedLabelStore store = new SharedLabelStore(1024);
+			List<Tile> left = metaTile(0, 0);
+			List<Tile> right = metaTile(2, 0);
+			// Both MetaTiles found a label on their shared edge, the two clash
+			Set<MapElementContainer> leftLabels = labels(new Label(edge, 100, 1));
+			Set<MapElementContainer> rightLabels = labels(new Label(edge + 5, 100, 2));
+			CyclicBarrier start = new CyclicBarrier(2);
+			Future<Set<MapElementContainer>> leftPlaced = this.threads.submit(placeAfter(start, store, left, leftLabels));
+			Future<Set<MapElementContainer>> rightPlaced = this.threads.submit(placeAfter(start, store, right, rightLabels));
+			Set<MapElementContainer> onLeft = leftPlaced.get(10, TimeUnit.SECONDS);
+			Set<MapElementContainer> onRight = rightPlaced.get(10, TimeUnit.SECONDS);
+			assertEquals(1, onLeft.size());
+			// Both halves of the same label
+			assertEquals(onLeft, onRight);
+		}
+	}
+
+	@Test
+	public void placedMetaTilesGetTheirLabelsBack() {
+		SharedLabelStore store = new SharedLabelStore(1024);
+		Set<MapElementContainer> labels = labels(new Label(100, 100, 1));
+		Set<MapElementContainer> placed = store.place(metaTile(0, 0), labels);
+		Set<MapElementContainer> again = store.place(metaTile(0, 0), labels(new Label(300, 300, 1)));
+		assertEquals(placed, again);
+		assertEquals(1, store.getPlaced());
+		assertEquals(1, store.getReused());
+		assertTrue(store.getCount() > 0);
+		store.clear();
+		assertEquals(0, store.getCount());
+	}
+
+	private static Callable<Set<MapElementContainer>> placeAfter(CyclicBarrier start, SharedLabelStore store, List<Tile> tiles,
+			Set<MapElementContainer> labels) {
+		return () -> {
+			start.await(5, TimeUnit.SECONDS);
+			return store.place(tiles, labels);
+		};
+	}
+
+	/**
+	 * The 2 x 2 Tiles with the upper left one x, y
+	 */
+	private static List<Tile> metaTile(int x, int y) {
+		List<Tile> tiles = new ArrayList<>();
+		for (int dy = 0; dy < 2; dy++) {
+			for (int dx = 0; dx < 2; dx++) {
+				tiles.add(new Tile(x + dx, y + dy, ZOOM, TILE_SIZE));
+			}
+		}
+		return tiles;
+	}
+
+	private static Set<MapElementContainer> labels(MapElementContainer... labels) {
+		return new LinkedHashSet<>(Arrays.asList(labels));
+	}
+}
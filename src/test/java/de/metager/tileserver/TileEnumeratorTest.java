@@ -0,0 +1,114 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mapsforge.core.model.BoundingBox;
+
+/**
+ * @author SumaEV
+ * The TileEnumerator visits every MetaTile of the Bounding Box once, along a Hilbert curve and with growing orders.
+ */
+public class TileEnumeratorTest {
+
+	private static final BoundingBox WORLD = new BoundingBox(-85, -179.9, 85, 179.9);
+	private static final int META_TILE_SIZE = 4;
+	private static final int END_ZOOM = 5;
+
+	@Test
+	public void coversEveryMetaTileOnce() {
+		List<TileEnumerator.Position> positions = walk(new TileEnumerator(WORLD, 0, END_ZOOM, META_TILE_SIZE, 0, null));
+		for (int z = 0; z <= END_ZOOM; z++) {
+			int cellSize = MetaTile.sizeForZoom(META_TILE_SIZE, z);
+			Set<Long> expected = new HashSet<>();
+			for (int x = 0; x < 1 << z; x += cellSize) {
+				for (int y = 0; y < 1 << z; y += cellSize) {
+					expected.add(((long) x << 32) | y);
+				}
+			}
+			Set<Long> visited = new HashSet<>();
+			for (TileEnumerator.Position position : positions) {
+				if (position.z == z) assertTrue("Visited twice: " + position.x + "/" + position.y, visited.add(((long) position.x << 32) | position.y));
+			}
+			assertEquals("Zoom level " + z, expected, visited);
+		}
+	}
+
+	@Test
+	public void ordersGrowAlongAHilbertCurve() {
+		List<TileEnumerator.Position> positions = walk(new TileEnumerator(WORLD, 0, END_ZOOM, META_TILE_SIZE, 0, null));
+		for (int i = 1; i < positions.size(); i++) {
+			TileEnumerator.Position previous = positions.get(i - 1);
+			TileEnumerator.Position current = positions.get(i);
+			assertTrue(current.order > previous.order);
+			assertTrue(current.z >= previous.z);
+			if (current.z == previous.z) {
+				// Consecutive MetaTiles are neighbours
+				int cellSize = MetaTile.sizeForZoom(META_TILE_SIZE, current.z);
+				assertEquals(cellSize, Math.abs(current.x - previous.x) + Math.abs(current.y - previous.y));
+			}
+		}
+	}
+
+	@Test
+	public void resumesAtTheCheckpoint() {
+		List<TileEnumerator.Position> positions = walk(new TileEnumerator(WORLD, 0, END_ZOOM, META_TILE_SIZE, 0, null));
+		int from = positions.size() / 2;
+		List<TileEnumerator.Position> resumed = walk(
+				new TileEnumerator(WORLD, 0, END_ZOOM, META_TILE_SIZE, positions.get(from).order, null));
+		assertEquals(orders(positions.subList(from, positions.size())), orders(resumed));
+	}
+
+	@Test
+	public void walksTheSubtreeOfAMetaTile() {
+		int rootZoom = 3;
+		int rootX = 4;
+		int rootY = 0;
+		List<TileEnumerator.Position> expected = new ArrayList<>();
+		for (TileEnumerator.Position position : walk(new TileEnumerator(WORLD, 0, END_ZOOM, META_TILE_SIZE, 0, null))) {
+			if (position.z < rootZoom) continue;
+			int shift = position.z - rootZoom;
+			if (position.x >> shift >= rootX && position.x >> shift < rootX + 4 && position.y >> shift >= rootY
+					&& position.y >> shift < rootY + 4) {
+				expected.add(position);
+			}
+		}
+		List<TileEnumerator.Position> subtree = walk(
+				new TileEnumerator(WORLD, 0, END_ZOOM, META_TILE_SIZE, 0, null, rootZoom, rootX, rootY));
+		// One MetaTile on zoom level 3, 4 below it on 4 and 16 on 5
+		assertEquals(21, subtree.size());
+		assertEquals(orders(expected), orders(subtree));
+	}
+
+	@Test
+	public void hilbertConversionsAreInverse() {
+		int n = 16;
+		int[] xy = new int[2];
+		for (long d = 0; d < n * n; d++) {
+			TileEnumerator.hilbertToXY(n, d, xy);
+			assertEquals(d, TileEnumerator.xyToHilbert(n, xy[0], xy[1]));
+		}
+	}
+
+	private static List<TileEnumerator.Position> walk(TileEnumerator enumerator) {
+		List<TileEnumerator.Position> positions = new ArrayList<>();
+		while (enumerator.hasNext()) {
+			positions.add(enumerator.next());
+		}
+		return positions;
+	}
+
+	private static List<Long> orders(List<TileEnumerator.Position> positions) {
+		List<Long> orders = new ArrayList<>();
+		for (TileEnumerator.Position position : positions) {
+			orders.add(position.order);
+		}
+		return orders;
+	}
+}
@@ -0,0 +1,72 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * The capacity of the memory Cache is a number of bytes, the least recently used Tiles go first.
+ */
+public class TileMemoryCacheTest {
+
+	@Test
+	public void evictsLeastRecentlyUsedOnceTheBytesAreExceeded() {
+		TileMemoryCache<String> cache = new TileMemoryCache<>(300);
+		cache.put("a", new byte[100]);
+		cache.put("b", new byte[100]);
+		cache.put("c", new byte[100]);
+		assertEquals(300, cache.getSize());
+		assertEquals(3, cache.getCount());
+
+		// a is used again, so b is the least recently used one now
+		assertNotNull(cache.get("a"));
+		cache.put("d", new byte[100]);
+		assertEquals(300, cache.getSize());
+		assertEquals(1, cache.getEvictions());
+		assertTrue(cache.contains("a"));
+		assertFalse(cache.contains("b"));
+
+		// One big Tile takes the place of several small ones
+		cache.put("e", new byte[250]);
+		assertEquals(250, cache.getSize());
+		assertEquals(1, cache.getCount());
+		assertEquals(4, cache.getEvictions());
+	}
+
+	@Test
+	public void replacingATileCountsOnlyTheNewBytes() {
+		TileMemoryCache<String> cache = new TileMemoryCache<>(300);
+		cache.put("a", new byte[100]);
+		cache.put("a", new byte[40]);
+		assertEquals(40, cache.getSize());
+		assertEquals(1, cache.getCount());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void ignoresTilesBiggerThanTheCache() {
+		TileMemoryCache<String> cache = new TileMemoryCache<>(300);
+		cache.put("a", new byte[100]);
+		cache.put("huge", new byte[301]);
+		assertNull(cache.get("huge"));
+		assertTrue(cache.contains("a"));
+		assertEquals(100, cache.getSize());
+	}
+
+	@Test
+	public void countsHitsAndMisses() {
+		TileMemoryCache<String> cache = new TileMemoryCache<>(300);
+		cache.put("a", new byte[100]);
+		cache.get("a");
+		cache.get("b");
+		// contains() is no access
+		cache.contains("b");
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+}
@@ -0,0 +1,167 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * A key that is rendered already must not be rendered a second time by a concurrent request.
+ */
+public class TileRequestCoalescerTest {
+
+	@Test
+	public void concurrentRequestsShareOneRendering() throws Exception {
+		TileRequestCoalescer<String, Object> coalescer = new TileRequestCoalescer<>();
+		AtomicInteger renderings = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Object tile = new Object();
+		AtomicReference<Object> first = new AtomicReference<>();
+		AtomicReference<Object> second = new AtomicReference<>();
+
+		Thread renderer = new Thread(() -> first.set(coalescer.render("1/2/3", () -> {
+			renderings.incrementAndGet();
+			started.countDown();
+			awaitQuietly(release);
+			return tile;
+		})));
+		renderer.start();
+		started.await();
+		Thread waiter = new Thread(() -> second.set(coalescer.render("1/2/3", () -> {
+			renderings.incrementAndGet();
+			return new Object();
+		})));
+		waiter.start();
+		awaitWaiting(waiter);
+		assertEquals(1, coalescer.getRendersInFlight());
+
+		release.countDown();
+		renderer.join();
+		waiter.join();
+		assertEquals(1, renderings.get());
+		assertSame(tile, first.get());
+		assertSame(tile, second.get());
+		assertEquals(0, coalescer.getRendersInFlight());
+	}
+
+	@Test
+	public void waitingGivesUpAtTheDeadline() throws Exception {
+		TileRequestCoalescer<String, Object> coalescer = new TileRequestCoalescer<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread renderer = new Thread(() -> coalescer.render("1/2/3", () -> {
+			started.countDown();
+			awaitQuietly(release);
+			return new Object();
+		}));
+		renderer.start();
+		started.await();
+		try {
+			assertNull(coalescer.render("1/2/3", () -> new Object(), System.currentTimeMillis() + 50));
+		} finally {
+			release.countDown();
+			renderer.join();
+		}
+	}
+
+	@Test
+	public void failedRenderingIsNotCoalescedAnymore() {
+		TileRequestCoalescer<String, Object> coalescer = new TileRequestCoalescer<>();
+		try {
+			coalescer.render("1/2/3", () -> {
+				throw new IllegalStateException("broken Map File");
+			});
+			fail("The exception of the renderer must reach the caller");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, coalescer.getRendersInFlight());
+		Object tile = new Object();
+		assertSame(tile, coalescer.render("1/2/3", () -> tile));
+	}
+
+	@Test
+	public void waitingRequestsGetTheException() throws Exception {
+		TileRequestCoalescer<String, Object> coalescer = new TileRequestCoalescer<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread renderer = new Thread(() -> {
+			try {
+				coalescer.render("1/2/3", () -> {
+					started.countDown();
+					awaitQuietly(release);
+					throw new IllegalStateException("broken Map File");
+				});
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		});
+		renderer.start();
+		started.await();
+		AtomicReference<Throwable> thrown = new AtomicReference<>();
+		Thread waiter = new Thread(() -> {
+			try {
+				coalescer.render("1/2/3", () -> new Object(), System.currentTimeMillis() + 10000);
+			} catch (RuntimeException e) {
+				thrown.set(e);
+			}
+		});
+		waiter.start();
+		awaitWaiting(waiter);
+		release.countDown();
+		renderer.join();
+		waiter.join();
+		assertTrue(thrown.get() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void incompleteRenderingsAreNotShared() throws Exception {
+		TileRequestCoalescer<String, Object> coalescer = new TileRequestCoalescer<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Object partial = new Object();
+		Object complete = new Object();
+		AtomicReference<Object> first = new AtomicReference<>();
+		AtomicReference<Object> second = new AtomicReference<>();
+		Thread renderer = new Thread(() -> first.set(coalescer.render("1/2/3", () -> {
+			started.countDown();
+			awaitQuietly(release);
+			return partial;
+		}, System.currentTimeMillis(), rendered -> rendered != partial)));
+		renderer.start();
+		started.await();
+		Thread waiter = new Thread(() -> second.set(coalescer.render("1/2/3", () -> complete, System.currentTimeMillis() + 10000,
+				rendered -> rendered != partial)));
+		waiter.start();
+		awaitWaiting(waiter);
+		release.countDown();
+		renderer.join();
+		waiter.join();
+		// The one that stopped early keeps its part, the waiting one renders with its own deadline
+		assertSame(partial, first.get());
+		assertSame(complete, second.get());
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void awaitWaiting(Thread thread) throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+	}
+}
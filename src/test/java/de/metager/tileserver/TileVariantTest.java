@@ -0,0 +1,77 @@
+package de.metager.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * @author SumaEV
+ * Every variant is found by its size and scale and by the suffix of its file name, and a 512 Tile is put
+ * together from the four Tiles below it in the right order.
+ */
+public class TileVariantTest {
+
+	@Test
+	public void findsTheVariantOfARequest() {
+		assertSame(TileVariant.DEFAULT, TileVariant.get(256, 1));
+		assertEquals(512, TileVariant.get(512, 1).getPixels());
+		assertEquals(512, TileVariant.get(256, 2).getPixels());
+		assertEquals(1024, TileVariant.get(512, 2).getPixels());
+		assertNull(TileVariant.get(128, 1));
+		assertNull(TileVariant.get(256, 3));
+	}
+
+	@Test
+	public void suffixesNameTheirVariant() {
+		assertEquals("", TileVariant.DEFAULT.getSuffix());
+		assertEquals("-512", TileVariant.get(512, 1).getSuffix());
+		assertEquals("@2x", TileVariant.get(256, 2).getSuffix());
+		assertEquals("-512@2x", TileVariant.get(512, 2).getSuffix());
+		for (int id = 0; id < 4; id++) {
+			TileVariant variant = TileVariant.byId(id);
+			assertEquals(id, variant.getId());
+			assertSame(variant, TileVariant.bySuffix("7" + variant.getSuffix()));
+		}
+	}
+
+	@Test
+	public void compositesAreMadeOfTheirParts() {
+		assertFalse(TileVariant.DEFAULT.isComposite());
+		assertFalse(TileVariant.get(256, 2).isComposite());
+		assertTrue(TileVariant.get(512, 1).isComposite());
+		assertSame(TileVariant.DEFAULT, TileVariant.get(512, 1).getPart());
+		assertSame(TileVariant.get(256, 2), TileVariant.get(512, 2).getPart());
+	}
+
+	@Test
+	public void composesTheFourPartsInOrder() {
+		int size = 4;
+		int[] colours = { 0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0xFFFFFFFF };
+		BufferedImage[] parts = new BufferedImage[4];
+		for (int i = 0; i < 4; i++) {
+			// The lower left part is missing
+			if (i == 2) continue;
+			parts[i] = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					parts[i].setRGB(x, y, colours[i]);
+				}
+			}
+		}
+		BufferedImage image = TileRenderer.compose(parts, size);
+		assertEquals(2 * size, image.getWidth());
+		assertEquals(2 * size, image.getHeight());
+		for (int y = 0; y < 2 * size; y++) {
+			for (int x = 0; x < 2 * size; x++) {
+				int part = (y < size ? 0 : 2) + (x < size ? 0 : 1);
+				assertEquals(x + "/" + y, part == 2 ? 0 : colours[part], image.getRGB(x, y));
+			}
+		}
+	}
+}